@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+/*
+ * Tests the edit journal that lets the editor recover unsaved edits after its process dies.
+ */
+public class EditJournalTest extends AndroidTestCase {
+
+    private static final long NOTE_ID = 987654;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteJournals();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteJournals();
+        super.tearDown();
+    }
+
+    public void testReplayRecoversEdits() throws Exception {
+        EditJournal journal = EditJournal.open(getContext(), NOTE_ID);
+        assertNull(journal.replay("hello world"));
+        String typed = ", big";
+        for (int i = 0; i < typed.length(); i++) {
+            journal.append(5 + i, 5 + i, typed, i, i + 1);
+        }
+        journal.append(0, 5, "HELLO", 0, 5);
+        journal.flushAndWait();
+
+        // A new journal instance stands in for the restarted process.
+        EditJournal restarted = EditJournal.open(getContext(), NOTE_ID);
+        assertEquals("HELLO, big world", restarted.replay("hello world"));
+
+        // Edits after the replay are journalled on top of the recovered text.
+        restarted.append(16, 16, "!", 0, 1);
+        restarted.flushAndWait();
+        assertEquals("HELLO, big world!",
+                EditJournal.open(getContext(), NOTE_ID).replay("hello world"));
+    }
+
+    // A journal whose base differs from the saved note does not apply to it.
+    public void testJournalForOtherContentIsDiscarded() throws Exception {
+        EditJournal journal = EditJournal.open(getContext(), NOTE_ID);
+        journal.replay("first");
+        journal.append(5, 5, " edit", 0, 5);
+        journal.flushAndWait();
+
+        EditJournal restarted = EditJournal.open(getContext(), NOTE_ID);
+        assertNull(restarted.replay("changed elsewhere"));
+        restarted.flushAndWait();
+        // Only the new journal based on the saved note is left.
+        assertEquals(1, listJournals().length);
+    }
+
+    // After a rotation the journal replays from either the old or the new saved content.
+    public void testRotateAndDiscard() throws Exception {
+        EditJournal journal = EditJournal.open(getContext(), NOTE_ID);
+        journal.replay("abc");
+        journal.append(3, 3, "def", 0, 3);
+        journal.rotate("abcdef");
+        journal.append(0, 1, "A", 0, 1);
+        journal.flushAndWait();
+
+        // The snapshot has not been saved yet.
+        assertEquals("Abcdef", EditJournal.open(getContext(), NOTE_ID).replay("abc"));
+
+        journal.discardBefore(NoteAutosaver.hash("abcdef"));
+        journal.flushAndWait();
+        assertEquals(1, listJournals().length);
+        assertEquals("Abcdef", EditJournal.open(getContext(), NOTE_ID).replay("abcdef"));
+    }
+
+    // A record cut short by a crash is ignored; the records before it still apply.
+    public void testTornRecordIsIgnored() throws Exception {
+        EditJournal journal = EditJournal.open(getContext(), NOTE_ID);
+        journal.replay("");
+        journal.append(0, 0, "kept", 0, 4);
+        journal.append(4, 4, " lost", 0, 5);
+        journal.flushAndWait();
+        journal.close();
+        journal.flushAndWait();
+
+        File[] files = listJournals();
+        assertEquals(1, files.length);
+        RandomAccessFile file = new RandomAccessFile(files[0], "rw");
+        try {
+            file.setLength(file.length() - 3);
+        } finally {
+            file.close();
+        }
+        EditJournal restarted = EditJournal.open(getContext(), NOTE_ID);
+        assertEquals("kept", restarted.replay(""));
+
+        // Edits after the recovery are not written behind the torn bytes.
+        restarted.append(4, 4, "!", 0, 1);
+        restarted.flushAndWait();
+        assertEquals("kept!", EditJournal.open(getContext(), NOTE_ID).replay(""));
+    }
+
+    public void testDelete() throws Exception {
+        EditJournal journal = EditJournal.open(getContext(), NOTE_ID);
+        journal.replay("text");
+        journal.append(0, 4, "", 0, 0);
+        journal.delete();
+        journal.append(0, 0, "ignored", 0, 7);
+        journal.flushAndWait();
+
+        assertEquals(0, listJournals().length);
+        EditJournal restarted = EditJournal.open(getContext(), NOTE_ID);
+        assertNull(restarted.replay("text"));
+        restarted.flushAndWait();
+    }
+
+    // Journals of notes that no longer exist are swept when an editor starts.
+    public void testDeleteStaleJournals() throws Exception {
+        EditJournal journal = EditJournal.open(getContext(), NOTE_ID);
+        journal.replay("text");
+        journal.append(4, 4, "!", 0, 1);
+        journal.flushAndWait();
+        assertEquals(1, listJournals().length);
+
+        // No note has this ID, so its journal is stale.
+        EditJournal.deleteStaleJournals(getContext());
+        journal.flushAndWait();
+        assertEquals(0, listJournals().length);
+    }
+
+    // A new note that reuses the ID of a deleted note does not get that note's edits.
+    public void testResetIgnoresOldJournal() throws Exception {
+        EditJournal journal = EditJournal.open(getContext(), NOTE_ID);
+        journal.replay("");
+        journal.append(0, 0, "old", 0, 3);
+        journal.flushAndWait();
+
+        EditJournal reused = EditJournal.open(getContext(), NOTE_ID);
+        reused.reset("");
+        assertNull(reused.replay(""));
+        reused.append(0, 0, "new", 0, 3);
+        reused.flushAndWait();
+        assertEquals("new", EditJournal.open(getContext(), NOTE_ID).replay(""));
+    }
+
+    private File[] listJournals() {
+        File[] files = new File(getContext().getFilesDir(), "journals")
+                .listFiles((dir, name) -> name.startsWith("note-" + NOTE_ID + "."));
+        return files != null ? files : new File[0];
+    }
+
+    private void deleteJournals() {
+        for (File file : listJournals()) {
+            file.delete();
+        }
+    }
+}
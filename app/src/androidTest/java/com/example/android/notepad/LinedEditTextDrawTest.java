@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.view.ContextThemeWrapper;
+import android.view.View;
+
+/*
+ * Measures how long the ruled note editor takes to draw one screen of a 20,000 line note.
+ */
+public class LinedEditTextDrawTest extends AndroidTestCase {
+
+    private static final String TAG = "LinedEditTextDrawTest";
+
+    private static final int LINES = 20000;
+    private static final int FRAMES = 50;
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+
+    private NoteEditor.LinedEditText mView;
+    private CountingCanvas mCanvas;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mView = new NoteEditor.LinedEditText(
+                new ContextThemeWrapper(getContext(), R.style.AppTheme), null);
+        StringBuilder text = new StringBuilder(LINES * 12);
+        for (int i = 0; i < LINES; i++) {
+            text.append("Line ").append(i).append('\n');
+        }
+        mView.setText(text);
+        mView.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        mView.layout(0, 0, WIDTH, HEIGHT);
+        mCanvas = new CountingCanvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCanvas = null;
+        mView = null;
+        super.tearDown();
+    }
+
+    /*
+     * Draws a screen in the middle of the note and checks that only the visible lines are ruled.
+     */
+    public void testDrawsVisibleLinesOnly() {
+        assertEquals(LINES + 1, mView.getLineCount());
+        mView.scrollTo(0, mView.getLayout().getLineTop(LINES / 2));
+
+        mCanvas.lines = 0;
+        drawFrame();
+
+        // One ruled line per visible text line, a partly visible line at each edge and the margin.
+        int visible = HEIGHT / mView.getLineHeight();
+        assertTrue("drew " + mCanvas.lines + " lines for " + visible + " visible lines",
+                mCanvas.lines > 0 && mCanvas.lines <= visible + 3);
+    }
+
+    /*
+     * Logs the average time to draw one frame, and for comparison the time the ruled lines
+     * took when every line of the note was measured and drawn on each frame.
+     */
+    public void testDrawTime() {
+        mView.scrollTo(0, mView.getLayout().getLineTop(LINES / 2));
+        // Warm up text layout caches.
+        drawFrame();
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < FRAMES; i++) {
+            drawFrame();
+        }
+        long current = SystemClock.elapsedRealtimeNanos() - start;
+
+        Paint paint = new Paint();
+        Rect r = new Rect();
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < FRAMES; i++) {
+            int count = mView.getLineCount();
+            for (int line = 0; line < count; line++) {
+                int baseline = mView.getLineBounds(line, r);
+                mCanvas.drawLine(r.left, baseline + 4, r.right, baseline + 4, paint);
+            }
+        }
+        long allLines = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(TAG, "frame: " + current / FRAMES / 1000 + " us, ruling every line took "
+                + allLines / FRAMES / 1000 + " us per frame");
+    }
+
+    // Draws the view the way its parent does: translated by the scroll offset and clipped to it.
+    private void drawFrame() {
+        int scrollX = mView.getScrollX();
+        int scrollY = mView.getScrollY();
+        mCanvas.save();
+        mCanvas.translate(-scrollX, -scrollY);
+        mCanvas.clipRect(scrollX, scrollY, scrollX + WIDTH, scrollY + HEIGHT);
+        mView.draw(mCanvas);
+        mCanvas.restore();
+    }
+
+    private static class CountingCanvas extends Canvas {
+        int lines;
+
+        CountingCanvas(Bitmap bitmap) {
+            super(bitmap);
+        }
+
+        @Override
+        public void drawLine(float startX, float startY, float stopX, float stopY, Paint paint) {
+            lines++;
+            super.drawLine(startX, startY, stopX, stopY, paint);
+        }
+    }
+}
@@ -16,12 +16,16 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
@@ -31,8 +35,15 @@ import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /*
  */
@@ -186,9 +197,14 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
      */
     public void testGetStreamTypes() {
 
-        // Tests the notes table URI. This should return null, since the content provider does
-        // not provide a stream MIME type for multiple notes.
-        assertNull(mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL));
+        // Tests the notes table URI. The notes can be exported as plain text, JSON Lines or
+        // Markdown, with plain text first.
+        String[] exportTypes = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL);
+        assertNotNull(exportTypes);
+        assertEquals(3, exportTypes.length);
+        assertEquals(MIME_TYPE_TEXT, exportTypes[0]);
+        assertTrue(Arrays.asList(exportTypes).contains(NotePad.Notes.EXPORT_TYPE_JSON_LINES));
+        assertTrue(Arrays.asList(exportTypes).contains(NotePad.Notes.EXPORT_TYPE_MARKDOWN));
 
         // Tests the live folders URI. This should return null, since the content provider does not
         // provide a stream MIME type for multiple notes.
@@ -222,9 +238,15 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
          * Tests with a URI that should not have any associated stream MIME types, but with a
          * filter that returns all types. The result should still be null.
          */
-        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL);
+        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.SEARCH_URI, MIME_TYPES_ALL);
         assertNull(mimeType);
 
+        // Tests the notes table URI with a filter that selects only Markdown.
+        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, "text/markdown");
+        assertNotNull(mimeType);
+        assertEquals(1, mimeType.length);
+        assertEquals(NotePad.Notes.EXPORT_TYPE_MARKDOWN, mimeType[0]);
+
     }
 
     /*
@@ -280,13 +302,13 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         testAssetDescriptor.close();
 
         /*
-         * Changes the URI to a notes URI for multiple notes, and re-test. This should fail, since
-         * the provider does not support this type of URI. A FileNotFound exception is expected,
-         * so call fail() if it does *not* occur.
+         * Changes the URI to a live folder URI for multiple notes, and re-test. This should fail,
+         * since the provider does not support this type of URI. A FileNotFound exception is
+         * expected, so call fail() if it does *not* occur.
          */
         try {
             testAssetDescriptor = mMockResolver.openTypedAssetFileDescriptor(
-                    NotePad.Notes.CONTENT_URI,
+                    NotePad.Notes.LIVE_FOLDER_URI,
                     MIME_TYPE_TEXT,
                     null
             );
@@ -790,6 +812,1144 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests full-text search through the search URI. The provider keeps the search index in sync
+     * with the notes table, so rows inserted, updated and deleted are reflected in the results.
+     * Notes are inserted through the resolver, since the provider maintains the index itself.
+     */
+    public void testSearch() {
+        for (NoteInfo note : TEST_NOTES) {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, note.getContentValues());
+        }
+
+        // Builds a search URI for the terms "note 3"
+        Uri searchUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "note 3")
+                .build();
+
+        // Only "This is note 3" contains both terms.
+        Cursor cursor = mMockResolver.query(searchUri, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TEST_NOTES[3].title,
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        cursor.close();
+
+        // Terms are matched as prefixes, so "not" matches every note.
+        searchUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "not")
+                .build();
+        cursor = mMockResolver.query(searchUri, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        // Updates the body of note 3, and asserts that the old terms no longer match it.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Rewritten body");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { TEST_NOTES[3].title });
+
+        searchUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "rewritten")
+                .build();
+        cursor = mMockResolver.query(searchUri, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Deletes the note, and asserts that it is removed from the index.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { TEST_NOTES[3].title });
+        cursor = mMockResolver.query(searchUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that Chinese text is split into overlapping bigrams, so that a multi-character word in
+     * the middle of a sentence, and a single character, both match the index.
+     */
+    public void testSearchChinese() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "会议记录");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "明天下午讨论重要的工作安排");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "购物清单");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "牛奶 面包 鸡蛋");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        assertEquals(1, searchCount("工作"));
+        assertEquals(1, searchCount("重要的工作"));
+        assertEquals(1, searchCount("面包"));
+        assertEquals(1, searchCount("排"));
+        assertEquals(0, searchCount("工安"));
+    }
+
+    /*
+     * Tests the notes_with_tags URI: notes come back with their tag's name and color, and notes
+     * without a tag are still returned with null tag columns.
+     */
+    public void testQueriesOnNotesWithTagsUri() {
+        ContentValues tagValues = new ContentValues();
+        tagValues.put(NotePad.Notes.COLUMN_NAME_TAG_NAME, "Travel");
+        tagValues.put(NotePad.Notes.COLUMN_NAME_TAG_COLOR, 0xFF123456);
+        Uri tagUri = mMockResolver.insert(NotePad.Notes.TAGS_CONTENT_URI, tagValues);
+        long tagId = ContentUris.parseId(tagUri);
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Tagged");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, 2000L);
+        values.put(NotePad.Notes.COLUMN_NAME_TAG_ID, tagId);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Untagged");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, 1000L);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        final String[] projection = {
+                NotePad.Notes._ID,
+                NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_JOINED_TAG_NAME,
+                NotePad.Notes.COLUMN_NAME_JOINED_TAG_COLOR
+        };
+        Cursor cursor = mMockResolver.query(NotePad.Notes.NOTES_WITH_TAGS_URI, projection,
+                null, null, NotePad.Notes.DEFAULT_SORT_ORDER);
+        assertEquals(2, cursor.getCount());
+
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Tagged", cursor.getString(1));
+        assertEquals("Travel", cursor.getString(2));
+        assertEquals(0xFF123456, cursor.getInt(3));
+
+        assertTrue(cursor.moveToNext());
+        assertEquals("Untagged", cursor.getString(1));
+        assertTrue(cursor.isNull(2));
+        cursor.close();
+
+        // The tag filter used by the note list still works against the joined tables.
+        cursor = mMockResolver.query(NotePad.Notes.NOTES_WITH_TAGS_URI, projection,
+                NotePad.Notes.COLUMN_NAME_TAG_ID + " = ?",
+                new String[] {String.valueOf(tagId)}, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that the provider keeps the preview column in sync with the note text.
+     */
+    public void testPreview() {
+        StringBuilder longNote = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            longNote.append("line ").append(i).append(' ');
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Preview");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "short note");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals("short note", queryPreview(noteUri));
+
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, longNote.toString());
+        mMockResolver.update(noteUri, values, null, null);
+        assertEquals(longNote.substring(0, 100) + "...", queryPreview(noteUri));
+
+        // Updates that do not touch the note text leave the preview alone.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        mMockResolver.update(noteUri, values, null, null);
+        assertEquals(longNote.substring(0, 100) + "...", queryPreview(noteUri));
+    }
+
+    // Returns the preview column of a single note.
+    private String queryPreview(Uri noteUri) {
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] {NotePad.Notes.COLUMN_NAME_PREVIEW}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        String preview = cursor.getString(0);
+        cursor.close();
+        return preview;
+    }
+
+    /*
+     * Runs EXPLAIN QUERY PLAN on the SQL the provider generates for its hot queries: the note
+     * list, the list filtered by tag, and the widget's latest note. None of them may fall back to
+     * a full scan of the notes table or sort through a temporary B-tree.
+     */
+    public void testHotQueriesUseIndexes() {
+        insertData();
+
+        final String[] listProjection = {
+                NotePad.Notes._ID,
+                NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_PREVIEW,
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                NotePad.Notes.COLUMN_NAME_TAG_ID,
+                NotePad.Notes.COLUMN_NAME_JOINED_TAG_NAME,
+                NotePad.Notes.COLUMN_NAME_JOINED_TAG_COLOR
+        };
+
+        assertIndexedPlan(getProvider().buildQueryForTest(NotePad.Notes.NOTES_WITH_TAGS_URI,
+                listProjection, null, null), null);
+
+        assertIndexedPlan(getProvider().buildQueryForTest(NotePad.Notes.NOTES_WITH_TAGS_URI,
+                listProjection, NotePad.Notes.COLUMN_NAME_TAG_ID + " = ?", null),
+                new String[] {"1"});
+
+        assertIndexedPlan(getProvider().buildQueryForTest(NotePad.Notes.CONTENT_URI,
+                new String[] {NotePad.Notes.COLUMN_NAME_PREVIEW, NotePad.Notes.COLUMN_NAME_TITLE},
+                null, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC LIMIT 1"), null);
+    }
+
+    // Fails if the query plan for the given SQL scans the notes table or sorts in a temp B-tree.
+    private void assertIndexedPlan(String sql, String[] args) {
+        Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        int detailIndex = plan.getColumnIndexOrThrow("detail");
+        StringBuilder details = new StringBuilder();
+        boolean fullScan = false;
+        boolean tempSort = false;
+        while (plan.moveToNext()) {
+            String detail = plan.getString(detailIndex);
+            details.append(detail).append('\n');
+
+            // Older SQLite versions print "SCAN TABLE notes", newer ones "SCAN notes".
+            String table = detail.replace("SCAN TABLE ", "SCAN ");
+            if (table.startsWith("SCAN " + NotePad.Notes.TABLE_NAME + " ")
+                    || table.equals("SCAN " + NotePad.Notes.TABLE_NAME)) {
+                fullScan |= !detail.contains("USING INDEX") && !detail.contains("USING COVERING INDEX");
+            }
+            tempSort |= detail.contains("USE TEMP B-TREE FOR ORDER BY");
+        }
+        plan.close();
+
+        assertFalse("Full table scan in plan for " + sql + "\n" + details, fullScan);
+        assertFalse("Temp B-tree sort in plan for " + sql + "\n" + details, tempSort);
+    }
+
+    /*
+     * Tests keyset paging on the notes URI: walking the pages returns every note exactly once in
+     * (modified DESC, _id DESC) order, including notes that share a modification date.
+     */
+    public void testKeysetPaging() {
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < 7; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Page" + i);
+            // Pairs of notes share a modification date.
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + (i / 2));
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+
+        final String[] projection = {
+                NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+        Uri pageUri = NotePad.Notes.NOTES_WITH_TAGS_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "3")
+                .build();
+
+        int total = 0;
+        int pages = 0;
+        long lastModified = Long.MAX_VALUE;
+        long lastId = Long.MAX_VALUE;
+        while (true) {
+            Cursor cursor = mMockResolver.query(pageUri, projection, null, null, null);
+            int count = cursor.getCount();
+            assertTrue(count <= 3);
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                long modified = cursor.getLong(1);
+                assertTrue(modified < lastModified || (modified == lastModified && id < lastId));
+                lastModified = modified;
+                lastId = id;
+            }
+            cursor.close();
+            total += count;
+            pages++;
+            if (count < 3) {
+                break;
+            }
+            pageUri = NotePad.Notes.NOTES_WITH_TAGS_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_MODIFIED,
+                            String.valueOf(lastModified))
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_ID, String.valueOf(lastId))
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "3")
+                    .build();
+        }
+        assertEquals(7, total);
+        assertEquals(3, pages);
+
+        // A page after the first is read from the index without a sort.
+        assertIndexedPlan(getProvider().buildQueryForTest(pageUri, projection, null, null), null);
+    }
+
+    /*
+     * Tests that bulkInsert inserts every row and keeps the search index in sync.
+     */
+    public void testBulkInsert() {
+        ContentValues[] rows = new ContentValues[25];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new ContentValues();
+            rows[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Bulk" + i);
+            rows[i].put(NotePad.Notes.COLUMN_NAME_NOTE, "imported batch row");
+        }
+
+        assertEquals(rows.length, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, rows));
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(rows.length, cursor.getCount());
+        cursor.close();
+        assertEquals(rows.length, searchCount("imported"));
+    }
+
+    /*
+     * Tests that applyBatch applies all operations, and that a failing operation rolls back the
+     * whole batch.
+     */
+    public void testApplyBatch() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "First")
+                .build());
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Second")
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI)
+                .withSelection(NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] {"First"})
+                .withValue(NotePad.Notes.COLUMN_NAME_NOTE, "updated in batch")
+                .build());
+
+        ContentProviderResult[] results = mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+        assertEquals(3, results.length);
+        assertEquals(Integer.valueOf(1), results[2].count);
+        assertEquals(1, searchCount("updated"));
+
+        // The last operation's assertion fails, so the insert before it must be rolled back.
+        operations.clear();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Rolled back")
+                .build());
+        operations.add(ContentProviderOperation.newAssertQuery(NotePad.Notes.CONTENT_URI)
+                .withExpectedCount(0)
+                .build());
+        try {
+            mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+            fail("Expected the batch to fail");
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests write-ahead logging: a reader is not blocked by an open write transaction. A writer
+     * thread holds a transaction with an uncommitted update while this thread runs the note list
+     * query through the provider. The query completes while the transaction is still open and
+     * sees only the last committed data.
+     */
+    public void testReaderNotBlockedByWriteTransaction() throws Exception {
+        assertTrue(mDb.isWriteAheadLoggingEnabled());
+        insertData();
+
+        final CountDownLatch inTransaction = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mDb.beginTransaction();
+                try {
+                    ContentValues values = new ContentValues();
+                    values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Uncommitted");
+                    mDb.update(NotePad.Notes.TABLE_NAME, values, null, null);
+                    inTransaction.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    // Not marked successful, so the update is rolled back.
+                    mDb.endTransaction();
+                }
+            }
+        });
+        writer.start();
+
+        try {
+            assertTrue(inTransaction.await(5, TimeUnit.SECONDS));
+            Cursor cursor = mMockResolver.query(NotePad.Notes.NOTES_WITH_TAGS_URI,
+                    new String[] {NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE}, null, null, null);
+            try {
+                assertEquals(TEST_NOTES.length, cursor.getCount());
+                while (cursor.moveToNext()) {
+                    assertFalse("Uncommitted".equals(cursor.getString(1)));
+                }
+            } finally {
+                cursor.close();
+            }
+            // A blocked reader would only have returned once the writer gave up and ended the
+            // transaction.
+            assertTrue(writer.isAlive());
+        } finally {
+            release.countDown();
+            writer.join();
+        }
+    }
+
+    /*
+     * Tests renaming and recoloring a tag through its tags/# URI. The joined note list must show
+     * the new values.
+     */
+    public void testUpdateTag() {
+        ContentValues tagValues = new ContentValues();
+        tagValues.put(NotePad.Notes.COLUMN_NAME_TAG_NAME, "Old name");
+        Uri tagUri = mMockResolver.insert(NotePad.Notes.TAGS_CONTENT_URI, tagValues);
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TAG_ID, ContentUris.parseId(tagUri));
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        tagValues.clear();
+        tagValues.put(NotePad.Notes.COLUMN_NAME_TAG_NAME, "New name");
+        tagValues.put(NotePad.Notes.COLUMN_NAME_TAG_COLOR, 0xFF00FF00);
+        assertEquals(1, mMockResolver.update(tagUri, tagValues, null, null));
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.NOTES_WITH_TAGS_URI,
+                new String[] {
+                        NotePad.Notes.COLUMN_NAME_JOINED_TAG_NAME,
+                        NotePad.Notes.COLUMN_NAME_JOINED_TAG_COLOR
+                },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("New name", cursor.getString(0));
+        assertEquals(0xFF00FF00, cursor.getInt(1));
+        cursor.close();
+    }
+
+    /*
+     * Tests deleting a tag through its tags/# URI: the notes that used it are reassigned to no tag
+     * in the same operation, and other notes keep their tags.
+     */
+    public void testDeleteTagReassignsNotes() {
+        ContentValues tagValues = new ContentValues();
+        tagValues.put(NotePad.Notes.COLUMN_NAME_TAG_NAME, "Doomed");
+        Uri doomedUri = mMockResolver.insert(NotePad.Notes.TAGS_CONTENT_URI, tagValues);
+        tagValues.put(NotePad.Notes.COLUMN_NAME_TAG_NAME, "Kept");
+        Uri keptUri = mMockResolver.insert(NotePad.Notes.TAGS_CONTENT_URI, tagValues);
+        long doomedId = ContentUris.parseId(doomedUri);
+        long keptId = ContentUris.parseId(keptUri);
+
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < 5; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_TAG_ID, i < 3 ? doomedId : keptId);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+
+        assertEquals(1, mMockResolver.delete(doomedUri, null, null));
+
+        Cursor cursor = mMockResolver.query(doomedUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] {NotePad.Notes._ID}, NotePad.Notes.COLUMN_NAME_TAG_ID + " = ?",
+                new String[] {"0"}, null);
+        assertEquals(3, cursor.getCount());
+        cursor.close();
+
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] {NotePad.Notes._ID}, NotePad.Notes.COLUMN_NAME_TAG_ID + " = ?",
+                new String[] {String.valueOf(keptId)}, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests the note_tags association: per-note tag URIs, trigger-maintained counts and the
+     * any/all tag filters.
+     */
+    public void testNoteTags() {
+        ContentValues tagValues = new ContentValues();
+        tagValues.put(NotePad.Notes.COLUMN_NAME_TAG_NAME, "Red");
+        long redId = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.TAGS_CONTENT_URI, tagValues));
+        tagValues.put(NotePad.Notes.COLUMN_NAME_TAG_NAME, "Blue");
+        long blueId = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.TAGS_CONTENT_URI, tagValues));
+
+        // Note 1 gets Red as its primary tag, note 2 starts untagged.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TAG_ID, redId);
+        Uri note1 = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Uri note2 = mMockResolver.insert(NotePad.Notes.CONTENT_URI, new ContentValues());
+        Uri note1Tags = Uri.withAppendedPath(note1, NotePad.Notes.PATH_SEGMENT_NOTE_TAGS);
+        Uri note2Tags = Uri.withAppendedPath(note2, NotePad.Notes.PATH_SEGMENT_NOTE_TAGS);
+
+        ContentValues association = new ContentValues();
+        association.put(NotePad.Notes.COLUMN_NAME_TAG_ID, blueId);
+        mMockResolver.insert(note1Tags, association);
+        mMockResolver.insert(note2Tags, association);
+        // Adding the same tag twice is a no-op.
+        mMockResolver.insert(note2Tags, association);
+
+        Cursor cursor = mMockResolver.query(note1Tags, null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+        assertEquals(1, queryNoteCount(redId));
+        assertEquals(2, queryNoteCount(blueId));
+
+        // The first tag added to an untagged note becomes its primary tag.
+        assertEquals(blueId, queryPrimaryTag(note2));
+
+        assertEquals(2, filteredCount(String.valueOf(blueId), null));
+        assertEquals(2, filteredCount(redId + "," + blueId, NotePad.Notes.TAG_MATCH_ANY));
+        assertEquals(1, filteredCount(redId + "," + blueId + "," + redId, NotePad.Notes.TAG_MATCH_ALL));
+
+        // Removing the primary tag falls back to the note's remaining tag.
+        assertEquals(1, mMockResolver.delete(ContentUris.withAppendedId(note1Tags, redId), null, null));
+        assertEquals(blueId, queryPrimaryTag(note1));
+        assertEquals(0, queryNoteCount(redId));
+
+        // Deleting a note removes its associations.
+        mMockResolver.delete(note2, null, null);
+        assertEquals(1, queryNoteCount(blueId));
+
+        // Deleting a tag leaves its notes untagged.
+        mMockResolver.delete(ContentUris.withAppendedId(NotePad.Notes.TAG_ID_URI_BASE, blueId), null, null);
+        assertEquals(0, queryPrimaryTag(note1));
+        cursor = mMockResolver.query(note1Tags, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    // Returns the maintained note count of a tag.
+    private int queryNoteCount(long tagId) {
+        Cursor cursor = mMockResolver.query(
+                ContentUris.withAppendedId(NotePad.Notes.TAG_ID_URI_BASE, tagId),
+                new String[] {NotePad.Notes.COLUMN_NAME_TAG_NOTE_COUNT}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        int count = cursor.getInt(0);
+        cursor.close();
+        return count;
+    }
+
+    // Returns the primary tag_id of a note.
+    private long queryPrimaryTag(Uri noteUri) {
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] {NotePad.Notes.COLUMN_NAME_TAG_ID}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        long tagId = cursor.getLong(0);
+        cursor.close();
+        return tagId;
+    }
+
+    // Returns the number of notes matched by a tag filter.
+    private int filteredCount(String tags, String match) {
+        Uri.Builder builder = NotePad.Notes.NOTES_WITH_TAGS_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_TAGS, tags);
+        if (match != null) {
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_TAG_MATCH, match);
+        }
+        Cursor cursor = mMockResolver.query(builder.build(), null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    /*
+     * Tests that repeated by-id reads are served from the provider's row cache and that
+     * writes invalidate the cached row.
+     */
+    public void testNoteRowCache() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Cached");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "first");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Bundle before = cacheStats();
+
+        assertEquals("first", queryNoteText(noteUri));
+        assertEquals("first", queryNoteText(noteUri));
+        Bundle after = cacheStats();
+        assertEquals(1, after.getInt(NoteRowCache.STATS_MISSES) - before.getInt(NoteRowCache.STATS_MISSES));
+        assertEquals(1, after.getInt(NoteRowCache.STATS_HITS) - before.getInt(NoteRowCache.STATS_HITS));
+
+        // Updating the note by id drops the cached row.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "second");
+        mMockResolver.update(noteUri, values, null, null);
+        assertEquals("second", queryNoteText(noteUri));
+
+        // So does an update through the notes collection.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "third");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes._ID + " = " + ContentUris.parseId(noteUri), null);
+        assertEquals("third", queryNoteText(noteUri));
+
+        // A deleted note is not served from the cache.
+        mMockResolver.delete(noteUri, null, null);
+        Cursor cursor = mMockResolver.query(noteUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    private Bundle cacheStats() {
+        return mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePadProvider.METHOD_CACHE_STATS, null, null);
+    }
+
+    private String queryNoteText(Uri noteUri) {
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] {NotePad.Notes.COLUMN_NAME_NOTE}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        String text = cursor.getString(0);
+        cursor.close();
+        return text;
+    }
+
+    /*
+     * Tests that the autosaver writes edits in the background, skips content that is already
+     * saved and writes only the latest of several queued snapshots.
+     */
+    public void testAutosave() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Autosaved");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "original");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        NoteAutosaver autosaver = new NoteAutosaver(mMockResolver, noteUri, () -> "unused", 0);
+        autosaver.setSavedContent("original");
+
+        // Saving unchanged content does not touch the note.
+        autosaver.save("original");
+        awaitIdle(autosaver);
+        assertEquals(START_DATE, queryModificationDate(noteUri));
+
+        autosaver.save("edited");
+        awaitIdle(autosaver);
+        assertEquals("edited", queryNoteText(noteUri));
+        assertTrue(queryModificationDate(noteUri) > START_DATE);
+
+        // Snapshots queued while the writer is busy collapse into the latest one.
+        for (int i = 0; i < 100; i++) {
+            autosaver.save("edit " + i);
+        }
+        awaitIdle(autosaver);
+        assertEquals("edit 99", queryNoteText(noteUri));
+
+        // A snapshot with a title writes the title, even when the content is unchanged.
+        autosaver.save("edit 99", "Titled");
+        awaitIdle(autosaver);
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] {NotePad.Notes.COLUMN_NAME_TITLE}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Titled", cursor.getString(0));
+        cursor.close();
+
+        // Cancelling drops a snapshot queued behind a busy writer. The saved listener runs on
+        // the writer thread, so blocking it holds the writer while the next snapshot is queued.
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        autosaver.setOnSavedListener(hash -> {
+            writing.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        autosaver.save("written");
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        autosaver.save("cancelled");
+        assertFalse(autosaver.isIdle());
+        autosaver.cancel();
+        autosaver.setOnSavedListener(null);
+        release.countDown();
+        awaitIdle(autosaver);
+        assertEquals("written", queryNoteText(noteUri));
+    }
+
+    private static void awaitIdle(NoteAutosaver autosaver) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (!autosaver.isIdle()) {
+            assertTrue("autosave did not finish", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private long queryModificationDate(Uri noteUri) {
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] {NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        long date = cursor.getLong(0);
+        cursor.close();
+        return date;
+    }
+
+    /*
+     * Tests that content writes are recorded as revisions, stored as deltas between periodic
+     * snapshots, and that every revision can be reconstructed.
+     */
+    public void testNoteRevisions() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            text.append("Original line ").append(i).append('\n');
+        }
+        ArrayList<String> expected = new ArrayList<String>();
+        expected.add(text.toString());
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "History");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Uri revisionsUri = Uri.withAppendedPath(noteUri, NotePad.Notes.PATH_SEGMENT_REVISIONS);
+
+        // Appends lines and edits the middle of the note, one revision per update.
+        for (int i = 0; i < 45; i++) {
+            if (i % 3 == 0) {
+                text.insert(text.length() / 2, "edit " + i);
+            } else {
+                text.append("Added line ").append(i).append('\n');
+            }
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+            expected.add(text.toString());
+        }
+
+        // Writing the same content again, or only the title, records nothing.
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+
+        Cursor cursor = mMockResolver.query(revisionsUri, new String[] {
+                NotePad.Notes.COLUMN_NAME_REVISION,
+                NotePad.Notes.COLUMN_NAME_REVISION_SNAPSHOT
+        }, null, null, null);
+        assertEquals(expected.size(), cursor.getCount());
+        int snapshots = 0;
+        int revision = expected.size();
+        while (cursor.moveToNext()) {
+            // Newest first.
+            assertEquals(revision--, cursor.getInt(0));
+            snapshots += cursor.getInt(1);
+        }
+        cursor.close();
+        // One snapshot every SNAPSHOT_INTERVAL revisions, the rest are deltas.
+        assertEquals((expected.size() + NoteRevisions.SNAPSHOT_INTERVAL - 1)
+                / NoteRevisions.SNAPSHOT_INTERVAL, snapshots);
+
+        for (int i = 0; i < expected.size(); i++) {
+            Uri revisionUri = ContentUris.withAppendedId(revisionsUri, i + 1);
+            assertEquals(NotePad.Notes.REVISION_CONTENT_ITEM_TYPE, mMockResolver.getType(revisionUri));
+            cursor = mMockResolver.query(revisionUri,
+                    new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals("revision " + (i + 1), expected.get(i), cursor.getString(0));
+            cursor.close();
+        }
+
+        // A revision that does not exist returns no rows.
+        cursor = mMockResolver.query(ContentUris.withAppendedId(revisionsUri, expected.size() + 1),
+                null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        assertEquals(NotePad.Notes.REVISIONS_CONTENT_TYPE, mMockResolver.getType(revisionsUri));
+
+        // Deleting the note deletes its history.
+        mMockResolver.delete(noteUri, null, null);
+        cursor = mMockResolver.query(revisionsUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that every write to a note bumps its version, that clients cannot set the version,
+     * and that a bulk update bumps only the notes it changes.
+     */
+    public void testNoteVersion() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Versioned");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "v1");
+        values.put(NotePad.Notes.COLUMN_NAME_VERSION, 42);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Uri otherUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, new ContentValues());
+        assertEquals(1, queryVersion(noteUri));
+
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "v2");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(2, queryVersion(noteUri));
+        assertEquals("v2", queryNoteText(noteUri));
+
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        values.put(NotePad.Notes.COLUMN_NAME_VERSION, 100);
+        mMockResolver.update(noteUri, values, null, null);
+        assertEquals(3, queryVersion(noteUri));
+
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE);
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] {"Renamed"});
+        assertEquals(4, queryVersion(noteUri));
+        assertEquals(1, queryVersion(otherUri));
+    }
+
+    private long queryVersion(Uri noteUri) {
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] {NotePad.Notes.COLUMN_NAME_VERSION}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        long version = cursor.getLong(0);
+        cursor.close();
+        return version;
+    }
+
+    /*
+     * Tests conditional reads: unchanged notes come back as stubs that carry only the id,
+     * version and modification date, both from the row cache and from SQL.
+     */
+    public void testConditionalQuery() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Old");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "old body");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE);
+        Uri oldUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "New");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "new body");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + ONE_DAY_MILLIS);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        String[] projection = {
+                NotePad.Notes._ID,
+                NotePad.Notes.COLUMN_NAME_NOTE,
+                NotePad.Notes.COLUMN_NAME_VERSION
+        };
+        Uri ifVersion1 = oldUri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_IF_VERSION, "1").build();
+
+        // Served from the row cache.
+        Cursor cursor = mMockResolver.query(ifVersion1, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(ContentUris.parseId(oldUri), cursor.getLong(0));
+        assertTrue(cursor.isNull(1));
+        assertEquals(1, cursor.getLong(2));
+        cursor.close();
+
+        // A selection bypasses the cache; the stub is built in SQL.
+        cursor = mMockResolver.query(ifVersion1, projection,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] {"Old"}, null);
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.isNull(1));
+        cursor.close();
+
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "old body, edited");
+        mMockResolver.update(oldUri, values, null, null);
+        cursor = mMockResolver.query(ifVersion1, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("old body, edited", cursor.getString(1));
+        assertEquals(2, cursor.getLong(2));
+        cursor.close();
+
+        // On the collection only notes modified after the stamp carry their columns.
+        Uri changedSince = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_IF_CHANGED_SINCE,
+                        String.valueOf(START_DATE))
+                .build();
+        cursor = mMockResolver.query(changedSince,
+                new String[] {NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE},
+                null, null, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " ASC");
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.isNull(0));
+        assertEquals(START_DATE, cursor.getLong(1));
+        assertTrue(cursor.moveToNext());
+        assertEquals("New", cursor.getString(0));
+        cursor.close();
+    }
+
+    /*
+     * Tests the body stream of a note larger than a cursor window. The body is read from the
+     * database in chunks, so it streams in full even though a query could not return it.
+     */
+    public void testBodyStream() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int line = 0; builder.length() < 3 * 1024 * 1024; line++) {
+            // Mixes in characters outside the BMP so chunk boundaries fall among surrogate pairs.
+            builder.append("line ").append(line).append(" \u7b14\u8bb0 \ud83d\udcdd\n");
+        }
+        String body = builder.toString();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Large");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Uri bodyUri = Uri.withAppendedPath(noteUri, NotePad.Notes.PATH_SEGMENT_BODY);
+
+        assertEquals("text/plain", mMockResolver.getType(bodyUri));
+        String[] mimeTypes = mMockResolver.getStreamTypes(bodyUri, MIME_TYPES_ALL);
+        assertNotNull(mimeTypes);
+        assertEquals("text/plain", mimeTypes[0]);
+
+        String streamed = readFully(mMockResolver.openInputStream(bodyUri));
+        assertEquals(body.length(), streamed.length());
+        assertTrue(body.equals(streamed));
+
+        // The note ID stream still starts with the title and a blank line.
+        AssetFileDescriptor descriptor =
+                mMockResolver.openTypedAssetFileDescriptor(noteUri, MIME_TYPE_TEXT, null);
+        streamed = readFully(descriptor.createInputStream());
+        assertTrue(streamed.equals("Large\n\n" + body + "\n"));
+
+        // A deleted note has no body to stream.
+        mMockResolver.delete(noteUri, null, null);
+        try {
+            mMockResolver.openInputStream(bodyUri);
+            fail();
+        } catch (FileNotFoundException e) {
+            // continue
+        }
+    }
+
+    /*
+     * Tests that a body stream whose note is edited between chunks reports an error instead of
+     * ending as if the truncated body were complete.
+     */
+    public void testBodyStreamReportsConcurrentEdit() throws IOException {
+        // Three chunks of three-byte characters. The first chunk alone is larger than the pipe
+        // and the stream buffer, so the provider is still writing it when the note is edited.
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 3 * NoteExporter.BODY_CHUNK_CHARS) {
+            builder.append('笔');
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Edited");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, builder.toString());
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Uri bodyUri = Uri.withAppendedPath(noteUri, NotePad.Notes.PATH_SEGMENT_BODY);
+
+        // An unchanged note streams without an error.
+        ParcelFileDescriptor pfd = mMockResolver.openFileDescriptor(bodyUri, "r");
+        String streamed = readFully(new ParcelFileDescriptor.AutoCloseInputStream(pfd));
+        assertEquals(builder.length(), streamed.length());
+        pfd.checkError();
+
+        pfd = mMockResolver.openFileDescriptor(bodyUri, "r");
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+        try {
+            byte[] buffer = new byte[8192];
+            long read = in.read(buffer);
+            assertTrue(read > 0);
+
+            values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "edited");
+            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                read += count;
+            }
+            assertTrue(read < 3L * builder.length());
+            try {
+                pfd.checkError();
+                fail();
+            } catch (IOException e) {
+                // continue
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Reads a UTF-8 stream into a string and closes it.
+    private static String readFully(InputStream in) throws IOException {
+        Reader reader = new InputStreamReader(in, "UTF-8");
+        try {
+            StringBuilder builder = new StringBuilder();
+            char[] buffer = new char[8192];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                builder.append(buffer, 0, count);
+            }
+            return builder.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * Tests exporting the notes table as a stream. The export spans several windows of rows and
+     * can be filtered by tag.
+     */
+    public void testExport() throws IOException {
+        ContentValues[] rows = new ContentValues[300];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new ContentValues();
+            rows[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Export" + i);
+            rows[i].put(NotePad.Notes.COLUMN_NAME_NOTE, "row " + i);
+        }
+        // Characters that JSON must escape.
+        rows[0].put(NotePad.Notes.COLUMN_NAME_NOTE, "say \"hi\"\nC:\\notes\t\u0001");
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, rows);
+
+        // Tags two of the notes.
+        ContentValues tagValues = new ContentValues();
+        tagValues.put(NotePad.Notes.COLUMN_NAME_TAG_NAME, "Work");
+        long tagId = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.TAGS_CONTENT_URI, tagValues));
+        ContentValues association = new ContentValues();
+        association.put(NotePad.Notes.COLUMN_NAME_TAG_ID, tagId);
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] {NotePad.Notes._ID}, NotePad.Notes.COLUMN_NAME_TITLE + " IN (?, ?)",
+                new String[] {"Export0", "Export299"}, null);
+        assertEquals(2, cursor.getCount());
+        while (cursor.moveToNext()) {
+            mMockResolver.insert(Uri.withAppendedPath(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, cursor.getLong(0)),
+                    NotePad.Notes.PATH_SEGMENT_NOTE_TAGS), association);
+        }
+        cursor.close();
+
+        // JSON Lines: one object per note, in ID order.
+        String[] lines = export(NotePad.Notes.CONTENT_URI, NotePad.Notes.EXPORT_TYPE_JSON_LINES)
+                .split("\n");
+        assertEquals(rows.length, lines.length);
+        assertTrue(lines[0].startsWith("{\"_id\":"));
+        assertTrue(lines[0].contains("\"title\":\"Export0\""));
+        assertTrue(lines[0].endsWith(
+                "\"note\":\"say \\\"hi\\\"\\nC:\\\\notes\\t\\u0001\"}"));
+        assertTrue(lines[rows.length - 1].contains("\"note\":\"row 299\""));
+
+        // Markdown: each note is headed by its title.
+        String markdown = export(NotePad.Notes.CONTENT_URI, NotePad.Notes.EXPORT_TYPE_MARKDOWN);
+        assertTrue(markdown.startsWith("# Export0\n\n"));
+        assertTrue(markdown.contains("# Export299\n\nrow 299\n"));
+
+        // Plain text, filtered by tag.
+        Uri tagged = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_TAGS, String.valueOf(tagId))
+                .build();
+        String text = export(tagged, MIME_TYPE_TEXT);
+        assertTrue(text.startsWith("Export0\n\n"));
+        assertTrue(text.contains("Export299\n\nrow 299\n"));
+        assertFalse(text.contains("Export1\n"));
+    }
+
+    /*
+     * Tests exporting a long note that is edited after its window was read. The note is written
+     * as its current version, not as the old beginning followed by the rest of the new body.
+     */
+    public void testExportNoteEditedAfterWindow() throws IOException {
+        // Notes ahead of the long one fill the pipe, so the provider has not reached the long
+        // note yet when it is edited.
+        StringBuilder filler = new StringBuilder();
+        while (filler.length() < NoteExporter.INLINE_CHARS / 2) {
+            filler.append('笔');
+        }
+        ContentValues[] rows = new ContentValues[101];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new ContentValues();
+            rows[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Filler" + i);
+            rows[i].put(NotePad.Notes.COLUMN_NAME_NOTE, filler.toString());
+        }
+        rows[rows.length - 1].put(NotePad.Notes.COLUMN_NAME_TITLE, "Long");
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, rows);
+
+        StringBuilder before = new StringBuilder();
+        StringBuilder after = new StringBuilder();
+        for (int i = 0; before.length() < 4 * NoteExporter.INLINE_CHARS; i++) {
+            before.append("old ").append(i).append('\n');
+            after.append("new ").append(i).append('\n');
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, before.toString());
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] {"Long"}));
+
+        // Opening the stream reads the first window.
+        AssetFileDescriptor descriptor = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.CONTENT_URI, MIME_TYPE_TEXT, null);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, after.toString());
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] {"Long"}));
+
+        String text = readFully(descriptor.createInputStream());
+        assertTrue(text.endsWith("Long\n\n" + after + "\n\n"));
+        assertFalse(text.contains("old 0\n"));
+    }
+
+    // Opens an export stream of the given type and reads it into a string.
+    private String export(Uri uri, String mimeType) throws IOException {
+        AssetFileDescriptor descriptor = mMockResolver.openTypedAssetFileDescriptor(uri, mimeType, null);
+        assertNotNull(descriptor);
+        return readFully(descriptor.createInputStream());
+    }
+
+    /*
+     * Tests updating a note larger than a cursor window. Recording the revision and reindexing
+     * the note read the stored body without a cursor, so the update succeeds.
+     */
+    public void testUpdateLargeNote() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int line = 0; text.length() < 3 * 1024 * 1024; line++) {
+            text.append("log line ").append(line).append('\n');
+        }
+        String original = text.toString();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Large log");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, original);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        text.insert(text.length() / 2, "edited in the middle\n");
+        String edited = text.toString();
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, edited);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+
+        // A title-only update reindexes the stored body.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed log");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        Uri searchUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "renamed middle")
+                .build();
+        Cursor cursor = mMockResolver.query(searchUri, new String[] {NotePad.Notes._ID},
+                null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // The edit is recorded as a small delta on top of the first revision.
+        Uri revisionsUri = Uri.withAppendedPath(noteUri, NotePad.Notes.PATH_SEGMENT_REVISIONS);
+        cursor = mMockResolver.query(revisionsUri, new String[] {
+                NotePad.Notes.COLUMN_NAME_REVISION,
+                NotePad.Notes.COLUMN_NAME_REVISION_SNAPSHOT
+        }, null, null, null);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(2, cursor.getLong(0));
+        assertEquals(0, cursor.getInt(1));
+        cursor.close();
+
+        cursor = mMockResolver.query(ContentUris.withAppendedId(revisionsUri, 1),
+                new String[] {NotePad.Notes.COLUMN_NAME_NOTE}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertTrue(original.equals(cursor.getString(0)));
+        cursor.close();
+
+        String stored = readFully(mMockResolver.openInputStream(
+                Uri.withAppendedPath(noteUri, NotePad.Notes.PATH_SEGMENT_BODY)));
+        assertTrue(edited.equals(stored));
+    }
+
+    // Returns the number of notes matched by a search query.
+    private int searchCount(String query) {
+        Uri searchUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, query)
+                .build();
+        Cursor cursor = mMockResolver.query(searchUri, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
     // A utility for converting note data to a ContentValues map.
     private static class NoteInfo {
         String title;
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.graphics.Color;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.widget.FrameLayout;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * Measures the allocations made while binding rows of the notes list.
+ */
+public class NotesAdapterBindTest extends AndroidTestCase {
+
+    private static final String TAG = "NotesAdapterBindTest";
+
+    private static final int ROWS = 100;
+    private static final int BINDS = 2000;
+
+    private NotesAdapter mAdapter;
+    private NotesAdapter.ViewHolder mHolder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        List<NoteItem> notes = new ArrayList<NoteItem>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < ROWS; i++) {
+            notes.add(new NoteItem(i + 1, "Note " + i, "Preview of note " + i, now - i * 60000L,
+                    i % 3, i % 3 == 0 ? null : "Tag " + (i % 3), 0xFF000000 | (i * 0x10101)));
+        }
+        mAdapter = new NotesAdapter(note -> { }, null);
+        // The first list is applied synchronously, no diff is computed.
+        mAdapter.submitList(notes, null);
+        mHolder = mAdapter.onCreateViewHolder(new FrameLayout(getContext()), 0);
+    }
+
+    /*
+     * Binds rows with the precomputed snapshots and, for comparison, with the previous
+     * per-bind formatting (a new SimpleDateFormat and Date, and a floating point luminance),
+     * and logs the allocations per bind of each.
+     */
+    public void testBindAllocations() {
+        // Warm up both paths so that one-time allocations are not counted.
+        bindRows(BINDS / 10);
+        legacyBindRows(BINDS / 10);
+
+        int current = countAllocations(new Runnable() {
+            @Override
+            public void run() {
+                bindRows(BINDS);
+            }
+        });
+        int legacy = countAllocations(new Runnable() {
+            @Override
+            public void run() {
+                legacyBindRows(BINDS);
+            }
+        });
+
+        Log.i(TAG, "allocations per bind: " + (float) current / BINDS
+                + " (previously " + (float) legacy / BINDS + ")");
+
+        // Allocation counting is unavailable on some runtimes, in which case both counts are 0.
+        if (legacy > 0) {
+            assertTrue("binding allocates " + current + " objects, previously " + legacy,
+                    current < legacy);
+        }
+    }
+
+    private void bindRows(int binds) {
+        for (int i = 0; i < binds; i++) {
+            mAdapter.onBindViewHolder(mHolder, i % ROWS);
+        }
+    }
+
+    // Binds the time and tag color the way the list did before snapshots carried them.
+    private void legacyBindRows(int binds) {
+        for (int i = 0; i < binds; i++) {
+            NoteItem note = mAdapter.getItem(i % ROWS);
+            mAdapter.onBindViewHolder(mHolder, i % ROWS);
+            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.getDefault());
+            mHolder.time.setText(sdf.format(new Date(note.modified)));
+            double luminance = (0.299 * Color.red(note.tagColor)
+                    + 0.587 * Color.green(note.tagColor)
+                    + 0.114 * Color.blue(note.tagColor)) / 255;
+            mHolder.tag.setTextColor(luminance > 0.5 ? Color.BLACK : Color.WHITE);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static int countAllocations(Runnable work) {
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            work.run();
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        return Debug.getThreadAllocCount();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.test.AndroidTestCase;
+
+import java.util.Random;
+
+/*
+ * Tests the piece table that backs the editor's large-document mode.
+ */
+public class PieceTableTest extends AndroidTestCase {
+
+    public void testUnmodifiedDocumentIsNotCopied() {
+        String original = "first line\nsecond line\n";
+        PieceTable table = new PieceTable(original);
+        assertEquals(original.length(), table.length());
+        assertSame(original, table.toString());
+        assertEquals("second", table.subSequence(11, 17));
+    }
+
+    public void testInsertDeleteAndReplace() {
+        PieceTable table = new PieceTable("hello world");
+        table.replace(5, 5, ", big", 0, 5);
+        assertEquals("hello, big world", table.toString());
+        table.replace(0, 5, "HELLO", 0, 5);
+        assertEquals("HELLO, big world", table.toString());
+        table.replace(5, 10, "", 0, 0);
+        assertEquals("HELLO world", table.toString());
+        table.replace(0, table.length(), "", 0, 0);
+        assertEquals(0, table.length());
+        assertEquals("", table.toString());
+        table.replace(0, 0, "again", 0, 5);
+        assertEquals("again", table.toString());
+    }
+
+    // Typing one character at a time after the previous one extends a single piece.
+    public void testTypingCoalesces() {
+        PieceTable table = new PieceTable("ab");
+        String typed = "typed text";
+        for (int i = 0; i < typed.length(); i++) {
+            table.replace(1 + i, 1 + i, typed, i, i + 1);
+        }
+        assertEquals("atyped textb", table.toString());
+        assertEquals(3, table.pieceCount());
+    }
+
+    public void testIndexOf() {
+        PieceTable table = new PieceTable("one\ntwo\nthree");
+        table.replace(4, 4, "\nnew", 0, 4);
+        // "one\n\nnewtwo\nthree"
+        assertEquals(3, table.indexOf('\n', 0));
+        assertEquals(4, table.indexOf('\n', 4));
+        assertEquals(11, table.indexOf('\n', 5));
+        assertEquals(-1, table.indexOf('\n', 12));
+        assertEquals(11, table.lastIndexOf('\n', table.length()));
+        assertEquals(4, table.lastIndexOf('\n', 10));
+        assertEquals(3, table.lastIndexOf('\n', 3));
+        assertEquals(-1, table.lastIndexOf('\n', 2));
+        assertEquals(-1, table.lastIndexOf('\n', -1));
+    }
+
+    // Applies random edits to the table and to a StringBuilder and compares them.
+    public void testRandomEdits() {
+        Random random = new Random(42);
+        StringBuilder original = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            original.append((char) ('a' + random.nextInt(26)));
+            if (random.nextInt(20) == 0) {
+                original.append('\n');
+            }
+        }
+        StringBuilder expected = new StringBuilder(original);
+        PieceTable table = new PieceTable(original.toString());
+        String source = "0123456789\nABCDEFGHIJ";
+
+        for (int i = 0; i < 1000; i++) {
+            int start = random.nextInt(expected.length() + 1);
+            int end = Math.min(expected.length(), start + random.nextInt(4));
+            int textStart = random.nextInt(source.length());
+            int textEnd = Math.min(source.length(), textStart + random.nextInt(4));
+            table.replace(start, end, source, textStart, textEnd);
+            expected.replace(start, end, source.substring(textStart, textEnd));
+            assertEquals(expected.length(), table.length());
+        }
+
+        assertEquals(expected.toString(), table.toString());
+        for (int i = 0; i < 100; i++) {
+            int start = random.nextInt(expected.length());
+            int end = start + random.nextInt(expected.length() - start + 1);
+            assertEquals(expected.substring(start, end), table.subSequence(start, end));
+            assertEquals(expected.charAt(start), table.charAt(start));
+            assertEquals(expected.indexOf("\n", start), table.indexOf('\n', start));
+            assertEquals(expected.lastIndexOf("\n", start), table.lastIndexOf('\n', start));
+        }
+    }
+
+    public void testRangeChecks() {
+        PieceTable table = new PieceTable("abc");
+        try {
+            table.replace(2, 4, "", 0, 0);
+            fail("replaced past the end");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        try {
+            table.subSequence(2, 1);
+            fail("reversed range");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * 合并提供程序发出的数据变更通知。
+ *
+ * 写操作不再立即调用 {@link ContentResolver#notifyChange}，而是把 URI 交给这里：
+ * 在 {@link #DEBOUNCE_MILLIS} 的窗口内收到的通知按 URI 去重后一次发出，
+ * 窗口内连续的保存、标签修改等只唤醒观察者一次。集合 URI 已在待发送列表中时，
+ * 其下的单行 URI 不再单独发送，因为通知集合 URI 时监听单行的观察者同样会收到。
+ */
+final class ChangeNotificationDispatcher {
+
+    /**
+     * 通知的合并窗口
+     */
+    static final long DEBOUNCE_MILLIS = 100;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // 以下字段由 this 保护，写操作可能来自多个 Binder 线程
+    private final LinkedHashSet<Uri> mPendingUris = new LinkedHashSet<Uri>();
+    private boolean mPendingWidgetUpdate;
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    ChangeNotificationDispatcher(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * 记录一个待发送的通知，在合并窗口结束时发出。
+     *
+     * @param updateWidgets 是否需要刷新显示最新笔记的Widget，同一窗口内只刷新一次
+     */
+    void dispatch(Uri uri, boolean updateWidgets) {
+        synchronized (this) {
+            mPendingUris.add(uri);
+            mPendingWidgetUpdate |= updateWidgets;
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        mHandler.postDelayed(mFlush, DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * 立即发出所有待发送的通知。
+     */
+    void flush() {
+        List<Uri> uris;
+        boolean updateWidgets;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlush);
+            mFlushScheduled = false;
+            uris = coalesce(mPendingUris);
+            mPendingUris.clear();
+            updateWidgets = mPendingWidgetUpdate;
+            mPendingWidgetUpdate = false;
+        }
+
+        ContentResolver resolver = mContext.getContentResolver();
+        for (Uri uri : uris) {
+            resolver.notifyChange(uri, null);
+        }
+        if (updateWidgets) {
+            NotePadAppWidget.updateAllWidgets(mContext);
+        }
+    }
+
+    /**
+     * 去掉被待发送的祖先 URI 覆盖的 URI，例如 notes 已在列表中时去掉 notes/5。
+     */
+    private static List<Uri> coalesce(LinkedHashSet<Uri> pending) {
+        List<Uri> result = new ArrayList<Uri>(pending.size());
+        for (Uri uri : pending) {
+            if (!hasPendingAncestor(pending, uri)) {
+                result.add(uri);
+            }
+        }
+        return result;
+    }
+
+    private static boolean hasPendingAncestor(LinkedHashSet<Uri> pending, Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        for (int length = segments.size() - 1; length > 0; length--) {
+            Uri.Builder ancestor = uri.buildUpon().path(null).query(null).fragment(null);
+            for (int i = 0; i < length; i++) {
+                ancestor.appendPath(segments.get(i));
+            }
+            if (pending.contains(ancestor.build())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,507 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 编辑器的编辑日志：把每次编辑按顺序追加到本地文件，进程在保存之前被杀死时，
+ * 下次打开笔记可以在数据库中的内容上重放日志，恢复未保存的修改。
+ *
+ * 日志按代分成多个文件。每一代以一个基准内容的哈希值开头，后面是依次应用在基准内容上的编辑
+ * （起点、删除的长度和插入的文本）。自动保存取快照时调用 {@link #rotate(String)} 开始新的一代，
+ * 以快照为基准；快照写入数据库之后调用 {@link #discardBefore(long)} 删除更早的代。
+ * 重放时从基准与数据库内容相同的那一代开始，依次应用之后的各代。
+ *
+ * 编辑先追加到内存缓冲区，至多每 {@link #SYNC_INTERVAL_MILLIS} 毫秒由后台线程写入
+ * {@link FileChannel} 并同步到存储一次；进程崩溃最多丢失这段时间内的编辑。
+ * 末尾不完整的记录在重放时忽略。
+ *
+ * 除 {@link #discardBefore(long)} 外的方法都应在主线程调用；{@link #replay(String)} 也可以在
+ * 读取笔记的后台线程调用，此时编辑器尚未记录任何编辑，结果交给主线程之后再使用这个日志。
+ */
+final class EditJournal {
+
+    private static final String TAG = "EditJournal";
+
+    /**
+     * 缓冲的编辑写入文件并同步的最短间隔
+     */
+    static final long SYNC_INTERVAL_MILLIS = 1000;
+
+    private static final String DIRECTORY = "journals";
+    private static final String SUFFIX = ".journal";
+    private static final int MAGIC = 0x4E4A524E;
+    private static final int HEADER_BYTES = 16;
+    private static final int RECORD_HEADER_BYTES = 12;
+
+    // 所有日志共用的写入线程，文件通道只在这个线程上访问
+    private static final ExecutorService IO = Executors.newSingleThreadExecutor();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final File mDirectory;
+    private final long mNoteId;
+
+    // 以下只在主线程访问
+    private ByteBuffer mPending = ByteBuffer.allocate(8192);
+    private boolean mSyncScheduled;
+    private int mGeneration;
+    private boolean mDeleted;
+    private boolean mReset;
+
+    // 以下只在写入线程访问
+    private FileChannel mChannel;
+
+    // 各代的基准哈希值，在主线程和写入线程访问，由 this 保护
+    private final TreeMap<Integer, Long> mBaseHashes = new TreeMap<>();
+
+    private final Runnable mSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mSyncScheduled = false;
+            flush();
+        }
+    };
+
+    private EditJournal(File directory, long noteId) {
+        mDirectory = directory;
+        mNoteId = noteId;
+    }
+
+    /**
+     * 打开笔记的日志，日志文件保存在应用私有目录中。
+     * 打开之后先调用 {@link #replay(String)}，再追加编辑。
+     */
+    static EditJournal open(Context context, long noteId) {
+        return new EditJournal(new File(context.getFilesDir(), DIRECTORY), noteId);
+    }
+
+    /**
+     * 在数据库中的内容上重放日志。返回恢复的内容，没有需要恢复的编辑或已经调用过
+     * {@link #reset(String)} 时返回 null。
+     * 之后的编辑记录在新的一代中，以返回的内容（没有需要恢复的编辑时为 content）为基准。
+     */
+    String replay(String content) {
+        if (mReset) {
+            return null;
+        }
+        File[] files = listGenerations();
+        long hash = NoteAutosaver.hash(content);
+        StringBuilder text = null;
+        int last = 0;
+        for (Map.Entry<Integer, File> entry : sortGenerations(files).entrySet()) {
+            int generation = entry.getKey();
+            File file = entry.getValue();
+            mGeneration = Math.max(mGeneration, generation);
+            ByteBuffer buffer = readFile(file);
+            if (buffer == null || buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC) {
+                deleteFile(file);
+                continue;
+            }
+            buffer.getInt();
+            long baseHash = buffer.getLong();
+            long currentHash = text == null ? hash : NoteAutosaver.hash(text.toString());
+            if (baseHash != currentHash) {
+                // 早于数据库内容的代，或者与之无关的旧日志
+                deleteFile(file);
+                continue;
+            }
+            if (text == null) {
+                text = new StringBuilder(content);
+            }
+            applyRecords(buffer, text);
+            last = generation;
+            synchronized (this) {
+                mBaseHashes.put(generation, baseHash);
+            }
+        }
+
+        if (last == 0) {
+            rotate(content);
+            return null;
+        }
+        // 最后一代的末尾可能是不完整的记录，之后的编辑不能追加在它后面，以恢复的内容为基准开始新的一代
+        mGeneration = last;
+        String recovered = text.toString();
+        rotate(recovered);
+        return recovered.equals(content) ? null : recovered;
+    }
+
+    /**
+     * 记录一次编辑：用 text 中 [textStart, textEnd) 之间的字符替换 [start, end) 之间的内容
+     */
+    void append(int start, int end, CharSequence text, int textStart, int textEnd) {
+        if (mDeleted) {
+            return;
+        }
+        int count = textEnd - textStart;
+        ensureCapacity(RECORD_HEADER_BYTES + count * 2);
+        mPending.putInt(start);
+        mPending.putInt(end - start);
+        mPending.putInt(count);
+        for (int i = textStart; i < textEnd; i++) {
+            mPending.putChar(text.charAt(i));
+        }
+        if (!mSyncScheduled) {
+            mSyncScheduled = true;
+            mHandler.postDelayed(mSyncRunnable, SYNC_INTERVAL_MILLIS);
+        }
+    }
+
+    /**
+     * 以 base 为基准开始新的一代。base 必须是此刻编辑器中的完整内容。
+     */
+    void rotate(final String base) {
+        if (mDeleted) {
+            return;
+        }
+        final byte[] tail = drain();
+        final int generation = ++mGeneration;
+        final File file = generationFile(generation);
+        IO.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(tail);
+                closeChannel();
+                long baseHash = NoteAutosaver.hash(base);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC);
+                header.putInt(generation);
+                header.putLong(baseHash);
+                header.flip();
+                try {
+                    mDirectory.mkdirs();
+                    mChannel = new FileOutputStream(file).getChannel();
+                    while (header.hasRemaining()) {
+                        mChannel.write(header);
+                    }
+                    mChannel.force(false);
+                } catch (IOException e) {
+                    Log.w(TAG, "Cannot create " + file, e);
+                    closeChannel();
+                }
+                synchronized (EditJournal.this) {
+                    mBaseHashes.put(generation, baseHash);
+                }
+            }
+        });
+    }
+
+    /**
+     * 基准哈希值为 savedHash 的内容已经写入数据库，删除比以它为基准的一代更早的代。
+     * 可以在任意线程调用。
+     */
+    void discardBefore(final long savedHash) {
+        IO.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (EditJournal.this) {
+                    Integer saved = null;
+                    for (Map.Entry<Integer, Long> entry : mBaseHashes.entrySet()) {
+                        if (entry.getValue() == savedHash) {
+                            saved = entry.getKey();
+                        }
+                    }
+                    if (saved == null) {
+                        return;
+                    }
+                    Map<Integer, Long> older = mBaseHashes.headMap(saved);
+                    for (int generation : older.keySet()) {
+                        deleteFile(generationFile(generation));
+                    }
+                    older.clear();
+                }
+            }
+        });
+    }
+
+    /**
+     * 立即把缓冲的编辑交给写入线程写入并同步，不等待完成
+     */
+    void flush() {
+        mHandler.removeCallbacks(mSyncRunnable);
+        mSyncScheduled = false;
+        final byte[] bytes = drain();
+        if (bytes == null) {
+            return;
+        }
+        IO.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(bytes);
+                if (mChannel != null) {
+                    try {
+                        mChannel.force(false);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Cannot sync journal of note " + mNoteId, e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 立即写入缓冲的编辑，并等待写入线程完成此前提交的所有操作，用于测试
+     */
+    void flushAndWait() throws InterruptedException, ExecutionException {
+        flush();
+        IO.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    /**
+     * 写入缓冲的编辑并关闭文件，日志保留在存储中
+     */
+    void close() {
+        flush();
+        IO.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeChannel();
+            }
+        });
+    }
+
+    /**
+     * 删除笔记的全部日志，用于删除笔记或放弃修改。删除之后不再记录编辑。
+     */
+    void delete() {
+        mDeleted = true;
+        mHandler.removeCallbacks(mSyncRunnable);
+        mPending.clear();
+        IO.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeChannel();
+                synchronized (EditJournal.this) {
+                    mBaseHashes.clear();
+                }
+                deleteFiles(listGenerations());
+            }
+        });
+    }
+
+    /**
+     * 丢弃笔记已有的全部日志，以 content 为基准开始新的一代，用于刚插入的笔记，代替重放。
+     * 笔记 ID 会被新笔记重新使用，已删除的笔记留下的日志不能重放到新笔记中。
+     * 旧的日志在写入线程上删除，之后的 {@link #replay(String)} 不再读取日志文件。
+     */
+    void reset(String content) {
+        mReset = true;
+        IO.execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteFiles(listGenerations());
+            }
+        });
+        rotate(content);
+    }
+
+    /**
+     * 在写入线程上删除已不存在的笔记留下的日志。笔记在编辑器之外被删除时日志仍然保留，
+     * 编辑器启动时调用此方法清理。
+     */
+    static void deleteStaleJournals(Context context) {
+        final File directory = new File(context.getFilesDir(), DIRECTORY);
+        final ContentResolver resolver = context.getContentResolver();
+        IO.execute(new Runnable() {
+            @Override
+            public void run() {
+                Set<Long> noteIds = listNoteIds(directory);
+                if (noteIds.isEmpty()) {
+                    return;
+                }
+                // 一次查询所有存有日志的笔记，剩下的就是已被删除的笔记
+                Cursor cursor = resolver.query(NotePad.Notes.CONTENT_URI,
+                        new String[] { NotePad.Notes._ID },
+                        NotePad.Notes._ID + " IN (" + TextUtils.join(",", noteIds) + ")",
+                        null, null);
+                if (cursor == null) {
+                    return;
+                }
+                try {
+                    while (cursor.moveToNext()) {
+                        noteIds.remove(cursor.getLong(0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                for (long noteId : noteIds) {
+                    deleteFiles(new EditJournal(directory, noteId).listGenerations());
+                }
+            }
+        });
+    }
+
+    /**
+     * 返回目录中存有日志的笔记 ID
+     */
+    private static Set<Long> listNoteIds(File directory) {
+        Set<Long> noteIds = new HashSet<>();
+        String[] names = directory.list();
+        if (names == null) {
+            return noteIds;
+        }
+        for (String name : names) {
+            int dot = name.indexOf('.');
+            if (name.startsWith("note-") && dot > 0 && name.endsWith(SUFFIX)) {
+                try {
+                    noteIds.add(Long.parseLong(name.substring("note-".length(), dot)));
+                } catch (NumberFormatException e) {
+                    // 不是日志文件
+                }
+            }
+        }
+        return noteIds;
+    }
+
+    // 依次应用缓冲区中的编辑记录，遇到不完整或越界的记录时停止
+    private static void applyRecords(ByteBuffer buffer, StringBuilder text) {
+        try {
+            while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+                int start = buffer.getInt();
+                int removed = buffer.getInt();
+                int count = buffer.getInt();
+                if (start < 0 || removed < 0 || count < 0 || start + removed > text.length()
+                        || buffer.remaining() < count * 2) {
+                    return;
+                }
+                char[] chars = new char[count];
+                buffer.asCharBuffer().get(chars);
+                buffer.position(buffer.position() + count * 2);
+                text.replace(start, start + removed, new String(chars));
+            }
+        } catch (BufferUnderflowException e) {
+            // 崩溃时只写了一半的记录
+        }
+    }
+
+    private byte[] drain() {
+        if (mPending.position() == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[mPending.position()];
+        mPending.flip();
+        mPending.get(bytes);
+        mPending.clear();
+        return bytes;
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (mPending.remaining() < bytes) {
+            int capacity = Math.max(mPending.capacity() * 2, mPending.position() + bytes);
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            mPending.flip();
+            grown.put(mPending);
+            mPending = grown;
+        }
+    }
+
+    // 以下在写入线程上调用
+
+    private void write(byte[] bytes) {
+        if (bytes == null || mChannel == null) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write journal of note " + mNoteId, e);
+        }
+    }
+
+    private void closeChannel() {
+        if (mChannel != null) {
+            try {
+                mChannel.force(false);
+                mChannel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot close journal of note " + mNoteId, e);
+            }
+            mChannel = null;
+        }
+    }
+
+    // 文件操作
+
+    private File generationFile(int generation) {
+        return new File(mDirectory, "note-" + mNoteId + "." + generation + SUFFIX);
+    }
+
+    private File[] listGenerations() {
+        final String prefix = "note-" + mNoteId + ".";
+        return mDirectory.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(SUFFIX));
+    }
+
+    private TreeMap<Integer, File> sortGenerations(File[] files) {
+        TreeMap<Integer, File> generations = new TreeMap<>();
+        if (files == null) {
+            return generations;
+        }
+        String prefix = "note-" + mNoteId + ".";
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                generations.put(Integer.parseInt(
+                        name.substring(prefix.length(), name.length() - SUFFIX.length())), file);
+            } catch (NumberFormatException e) {
+                deleteFile(file);
+            }
+        }
+        return generations;
+    }
+
+    private static ByteBuffer readFile(File file) {
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // 读到文件末尾
+            }
+            buffer.flip();
+            return buffer;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + file, e);
+            return null;
+        }
+    }
+
+    private static void deleteFiles(File[] files) {
+        if (files != null) {
+            for (File file : files) {
+                deleteFile(file);
+            }
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete() && file.exists()) {
+            Log.w(TAG, "Cannot delete " + file);
+        }
+    }
+}
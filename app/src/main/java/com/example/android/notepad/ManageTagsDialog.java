@@ -2,7 +2,6 @@ package com.example.android.notepad;
 
 import android.app.Dialog;
 import android.content.ContentUris;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.view.LayoutInflater;
@@ -28,6 +27,14 @@ public class ManageTagsDialog extends DialogFragment {
     private ArrayAdapter<Tag> adapter;
     private ListView tagListView;
 
+    // 标签的增删改由提供程序通知共享缓存，缓存重新加载后在这里刷新列表
+    private final TagRepository.Listener tagListener = repository -> {
+        loadTags();
+        if (adapter != null) {
+            adapter.notifyDataSetChanged();
+        }
+    };
+
     @NonNull
     @Override
     public Dialog onCreateDialog(Bundle savedInstanceState) {
@@ -39,6 +46,7 @@ public class ManageTagsDialog extends DialogFragment {
         Button btnAddTag = view.findViewById(R.id.btn_add_tag);
 
         loadTags();
+        TagRepository.getInstance(requireContext()).addListener(tagListener);
 
         adapter = new ArrayAdapter<Tag>(requireContext(),
                 android.R.layout.simple_list_item_1, tags) {
@@ -95,29 +103,14 @@ public class ManageTagsDialog extends DialogFragment {
     private void loadTags() {
         tags.clear();
 
-        // 加载所有标签，跳过"无标签"
-        Cursor cursor = requireContext().getContentResolver().query(
-                NotePad.Notes.TAGS_CONTENT_URI,
-                new String[]{"_id",
-                        NotePad.Notes.COLUMN_NAME_TAG_NAME,
-                        NotePad.Notes.COLUMN_NAME_TAG_COLOR,
-                        "created_date"},
-                null,
-                null,
-                "created_date ASC"
-        );
+        // 标签来自共享缓存，按创建时间排列
+        tags.addAll(TagRepository.getInstance(requireContext()).getTags());
+    }
 
-        if (cursor != null) {
-            while (cursor.moveToNext()) {
-                Tag tag = new Tag();
-                tag.setId(cursor.getLong(0));
-                tag.setName(cursor.getString(1));
-                tag.setColor(cursor.getInt(2));
-                tag.setCreatedDate(cursor.getLong(3));
-                tags.add(tag);
-            }
-            cursor.close();
-        }
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        TagRepository.getInstance(requireContext()).removeListener(tagListener);
     }
 
     private void showAddTagDialog() {
@@ -203,8 +196,6 @@ public class ManageTagsDialog extends DialogFragment {
         );
 
         if (newUri != null) {
-            loadTags();
-            adapter.notifyDataSetChanged();
             Toast.makeText(requireContext(), "标签添加成功", Toast.LENGTH_SHORT).show();
         } else {
             Toast.makeText(requireContext(), "标签添加失败", Toast.LENGTH_SHORT).show();
@@ -225,8 +216,6 @@ public class ManageTagsDialog extends DialogFragment {
         );
 
         if (count > 0) {
-            loadTags();
-            adapter.notifyDataSetChanged();
             Toast.makeText(requireContext(), "标签更新成功", Toast.LENGTH_SHORT).show();
         } else {
             Toast.makeText(requireContext(), "标签更新失败", Toast.LENGTH_SHORT).show();
@@ -245,19 +234,8 @@ public class ManageTagsDialog extends DialogFragment {
                             null
                     );
 
+                    // 提供程序在同一事务中把使用该标签的笔记改为无标签
                     if (deleted > 0) {
-                        // 更新所有使用该标签的笔记，将其标签设为0（无标签）
-                        android.content.ContentValues values = new android.content.ContentValues();
-                        values.put(NotePad.Notes.COLUMN_NAME_TAG_ID, 0);
-                        requireContext().getContentResolver().update(
-                                NotePad.Notes.CONTENT_URI,
-                                values,
-                                NotePad.Notes.COLUMN_NAME_TAG_ID + " = ?",
-                                new String[]{String.valueOf(tag.getId())}
-                        );
-
-                        loadTags();
-                        adapter.notifyDataSetChanged();
                         Toast.makeText(requireContext(), "标签已删除", Toast.LENGTH_SHORT).show();
                     } else {
                         Toast.makeText(requireContext(), "标签删除失败", Toast.LENGTH_SHORT).show();
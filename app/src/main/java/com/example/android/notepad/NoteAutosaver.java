@@ -0,0 +1,257 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 编辑器的自动保存。
+ *
+ * 编辑时调用 {@link #onContentChanged()} 标记内容已修改；在安静期内没有新的编辑时，在主线程取得
+ * 内容的快照，交给后台写入线程保存。所有笔记共用一个写入线程，写入按提交的顺序进行；
+ * 写入线程忙时新的快照替换尚未写入的旧快照，只写最新的内容。写入前比较内容的哈希值，
+ * 与上次保存的内容相同时跳过写入。新笔记第一次保存的标题也随快照交给写入线程，
+ * 同一笔记的所有写入都按顺序进行。
+ *
+ * 所有方法都应在主线程调用。
+ */
+final class NoteAutosaver {
+
+    private static final String TAG = "NoteAutosaver";
+
+    /**
+     * 在主线程取得要保存的完整内容
+     */
+    interface ContentSource {
+        String getContent();
+    }
+
+    /**
+     * 内容已经保存在数据库中时在写入线程上调用，参数为内容的哈希值
+     */
+    interface OnSavedListener {
+        void onSaved(long contentHash);
+    }
+
+    // 所有编辑器共用的写入线程
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final ContentSource mSource;
+    private final long mQuietPeriodMillis;
+    private volatile OnSavedListener mOnSavedListener;
+
+    // 是否有尚未取快照的修改，只在主线程访问
+    private boolean mDirty;
+
+    // 写入失败、需要随下一个快照写入的标题，只在主线程访问
+    private String mUnsavedTitle;
+
+    // 等待写入的最新快照，写入线程取走后置为 null
+    private final AtomicReference<Snapshot> mPending = new AtomicReference<>();
+    private volatile boolean mWriting;
+
+    // 上次保存的内容的哈希值，只在写入线程访问
+    private long mSavedHash;
+
+    private final Runnable mSaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final Runnable mRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onContentChanged();
+        }
+    };
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mWriting = true;
+            try {
+                Snapshot snapshot = mPending.getAndSet(null);
+                if (snapshot != null) {
+                    write(snapshot);
+                }
+            } finally {
+                mWriting = false;
+            }
+        }
+    };
+
+    /**
+     * @param quietPeriodMillis 最后一次编辑之后等待多久再保存
+     */
+    NoteAutosaver(ContentResolver resolver, Uri uri, ContentSource source, long quietPeriodMillis) {
+        mResolver = resolver;
+        mUri = uri;
+        mSource = source;
+        mQuietPeriodMillis = quietPeriodMillis;
+    }
+
+    void setOnSavedListener(OnSavedListener listener) {
+        mOnSavedListener = listener;
+    }
+
+    /**
+     * 记录已经保存在数据库中的内容，之后与它相同的快照不会写入。
+     * 哈希值在写入线程上计算，排在此前提交的写入之后。
+     */
+    void setSavedContent(final String content) {
+        WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                mSavedHash = hash(content);
+                notifySaved(mSavedHash);
+            }
+        });
+    }
+
+    /**
+     * 内容被编辑，安静期之后保存
+     */
+    void onContentChanged() {
+        mDirty = true;
+        mHandler.removeCallbacks(mSaveRunnable);
+        mHandler.postDelayed(mSaveRunnable, mQuietPeriodMillis);
+    }
+
+    /**
+     * 有未保存的修改时立即取快照并提交写入，不等待写入完成
+     */
+    void flush() {
+        mHandler.removeCallbacks(mSaveRunnable);
+        if (mDirty) {
+            mDirty = false;
+            String title = mUnsavedTitle;
+            mUnsavedTitle = null;
+            save(mSource.getContent(), title);
+        }
+    }
+
+    /**
+     * 提交给定的内容写入，与上次保存的内容相同时跳过
+     */
+    void save(String content) {
+        save(content, null);
+    }
+
+    /**
+     * 提交给定的内容和标题写入。title 为 null 时不修改标题；尚未写入的快照带有标题时，
+     * 标题随新的内容一起写入。
+     */
+    void save(String content, String title) {
+        Snapshot previous;
+        Snapshot snapshot;
+        do {
+            previous = mPending.get();
+            snapshot = new Snapshot(content,
+                    title == null && previous != null ? previous.title : title);
+        } while (!mPending.compareAndSet(previous, snapshot));
+        if (previous == null) {
+            WRITER.execute(mWriteRunnable);
+        }
+    }
+
+    /**
+     * 丢弃未保存的修改和尚未开始的写入，用于删除笔记或还原内容之前
+     */
+    void cancel() {
+        mHandler.removeCallbacks(mSaveRunnable);
+        mHandler.removeCallbacks(mRetryRunnable);
+        mDirty = false;
+        mUnsavedTitle = null;
+        mPending.set(null);
+    }
+
+    /**
+     * 是否没有未保存的修改，也没有等待或正在进行的写入
+     */
+    boolean isIdle() {
+        return !mDirty && mPending.get() == null && !mWriting;
+    }
+
+    private void write(final Snapshot snapshot) {
+        long hash = hash(snapshot.content);
+        if (hash == mSavedHash && snapshot.title == null) {
+            notifySaved(hash);
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, snapshot.content);
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+        if (snapshot.title != null) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, snapshot.title);
+        }
+        int rows;
+        try {
+            rows = mResolver.update(mUri, values, null, null);
+        } catch (SQLiteException e) {
+            // 写入失败时内容仍是未保存的修改，安静期之后在主线程重新取快照保存
+            Log.e(TAG, "Autosave failed for " + mUri, e);
+            if (snapshot.title == null) {
+                mHandler.post(mRetryRunnable);
+            } else {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mUnsavedTitle = snapshot.title;
+                        onContentChanged();
+                    }
+                });
+            }
+            return;
+        }
+        if (rows > 0) {
+            mSavedHash = hash;
+            notifySaved(hash);
+        } else {
+            // 笔记已被删除
+            Log.w(TAG, "Autosave found no note at " + mUri);
+        }
+    }
+
+    // 等待写入的内容，以及需要一起写入的标题
+    private static final class Snapshot {
+        final String content;
+        final String title;
+
+        Snapshot(String content, String title) {
+            this.content = content;
+            this.title = title;
+        }
+    }
+
+    private void notifySaved(long hash) {
+        OnSavedListener listener = mOnSavedListener;
+        if (listener != null) {
+            listener.onSaved(hash);
+        }
+    }
+
+    /**
+     * 64 位 FNV-1a 哈希，逐个字符计算，不分配对象
+     */
+    static long hash(String content) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0, length = content.length(); i < length; i++) {
+            hash ^= content.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
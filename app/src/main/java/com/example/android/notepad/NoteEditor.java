@@ -21,7 +21,11 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
 import android.text.Editable;
+import android.text.Layout;
 import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -36,6 +40,13 @@ import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 public class NoteEditor extends AppCompatActivity {
     private static final String TAG = "NoteEditor";
 
@@ -44,16 +55,41 @@ public class NoteEditor extends AppCompatActivity {
                     NotePad.Notes._ID,
                     NotePad.Notes.COLUMN_NAME_TITLE,
                     NotePad.Notes.COLUMN_NAME_NOTE,
-                    NotePad.Notes.COLUMN_NAME_TAG_ID  // 添加标签ID列
+                    NotePad.Notes.COLUMN_NAME_TAG_ID,  // 添加标签ID列
+                    NotePad.Notes.COLUMN_NAME_VERSION
+            };
+
+    // 加载笔记时查询的列。正文不在其中，通过正文流分段读取，超过游标窗口大小的笔记也能打开
+    private static final String[] LOAD_PROJECTION =
+            new String[] {
+                    NotePad.Notes.COLUMN_NAME_TITLE,
+                    NotePad.Notes.COLUMN_NAME_TAG_ID,
+                    NotePad.Notes.COLUMN_NAME_VERSION
             };
 
-    private static final String ORIGINAL_CONTENT = "origContent";
+    // 保存的实例状态中只记录编辑日志的键（笔记 ID），内容从数据库和日志恢复
+    private static final String JOURNAL_KEY = "journalKey";
+
+    // 超过这个字符数的笔记进入大文档模式：内容保存在片段表中，编辑框只显示其中一段
+    private static final int LARGE_NOTE_CHARS = 256 * 1024;
+    // 大文档模式下编辑框中一段窗口的大致字符数，窗口在行边界处截断
+    private static final int WINDOW_CHARS = 32 * 1024;
+    // 加载笔记时读到的正文与版本号不一致时最多读取的次数
+    private static final int LOAD_ATTEMPTS = 3;
+    // 从正文流每次读取的字符数
+    private static final int BODY_READ_CHARS = 64 * 1024;
     private static final int STATE_EDIT = 0;
     private static final int STATE_INSERT = 1;
 
     private int mState;
     private Uri mUri;
-    private Cursor mCursor;
+    // 笔记是否已经加载，并且没有被删除或还原；为 false 时离开编辑器不保存
+    private boolean mLoaded;
+    // 笔记是否由这个 Activity 刚刚插入，加载完成之前离开编辑器时删除这条空笔记
+    private boolean mInserted;
+    // 上次从数据库读到的版本号和主标签，尚未加载时版本号为 0
+    private long mVersion;
+    private long mSavedTagId;
     private EditText mText;
     private String mOriginalContent;
     private String mOriginalTitle;
@@ -63,11 +99,60 @@ public class NoteEditor extends AppCompatActivity {
     private String mTagName = "";
     private int mTagColor = 0;
     private Button mTagButton;
+
+    // 大文档模式下的完整内容，普通模式下为 null
+    private PieceTable mDocument;
+    // 编辑框中显示的窗口在文档中的起点和长度
+    private int mWindowStart;
+    private int mWindowLength;
+    // 正在把笔记或窗口的文本放入编辑框，文本变化不是用户的编辑
+    private boolean mLoadingText;
+
+    // 编辑停顿后在后台保存内容
+    private NoteAutosaver mAutosaver;
+    // 尚未保存的编辑的日志，进程被杀死后用于恢复
+    private EditJournal mJournal;
+
+    // 读取笔记的后台线程
+    private final ExecutorService mLoadExecutor = Executors.newSingleThreadExecutor();
+    // 当前正在执行的读取的取消信号，只在主线程访问
+    private CancellationSignal mLoadSignal;
+
+    /**
+     * 在后台线程读到的笔记
+     */
+    private static final class LoadedNote {
+        final String note;
+        final String title;
+        final long tagId;
+        final long version;
+
+        LoadedNote(String note, String title, long tagId, long version) {
+            this.note = note;
+            this.title = title;
+            this.tagId = tagId;
+            this.version = version;
+        }
+    }
+
+    // 标签被重命名、改色或删除后刷新标签按钮
+    private final TagRepository.Listener mTagListener = new TagRepository.Listener() {
+        @Override
+        public void onTagsChanged(TagRepository repository) {
+            if (mTagId > 0) {
+                loadTagInfo(mTagId);
+            }
+        }
+    };
     private static final int MENU_EDIT_TITLE=1001;
     private static final int REQUEST_EDIT_TITLE = 1002;
+    private static final int MENU_PREVIOUS_WINDOW = 1003;
+    private static final int MENU_NEXT_WINDOW = 1004;
 
     public static class LinedEditText extends androidx.appcompat.widget.AppCompatEditText {
         private Rect mRect;
+        // 绘制时复用的裁剪区域
+        private final Rect mClipRect = new Rect();
         private Paint mPaint;
         private Paint mMarginPaint;
         private Context mContext;
@@ -97,6 +182,9 @@ public class NoteEditor extends AppCompatActivity {
             setLineSpacing(4f, 1f);
         }
 
+        /**
+         * 重新读取主题的主色作为横线颜色。颜色在绘制时不再读取，主题改变后需要调用此方法。
+         */
         public void updateLineColor() {
             mPaint.setColor(ThemeManager.getThemeColor(mContext, 0));
             invalidate();
@@ -114,13 +202,7 @@ public class NoteEditor extends AppCompatActivity {
 
         @Override
         protected void onDraw(Canvas canvas) {
-            // 更新线条颜色，确保使用当前主题
-            mPaint.setColor(ThemeManager.getThemeColor(mContext, 0));
-
-            // 获取 View 中文本的行数。
-            int count = getLineCount();
             int height = getHeight();
-            int lineHeight = getLineHeight();
             int paddingTop = getPaddingTop();
             int paddingBottom = getPaddingBottom();
 
@@ -134,18 +216,25 @@ public class NoteEditor extends AppCompatActivity {
             canvas.drawLine(margin, paddingTop, margin, height - paddingBottom, marginPaint);
 
             /*
-             * 为 EditText 中的每一行文本在矩形中绘制一条线
+             * 只为与画布裁剪区域相交的文本行绘制横线。裁剪区域是视图坐标（包含滚动偏移），
+             * 减去文本的上边距后即为布局坐标。长笔记每次重绘的开销只与可见行数有关，与总行数无关。
              */
-            for (int i = 0; i < count; i++) {
-                // 获取当前文本行的基线坐标
-                int baseline = getLineBounds(i, r);
-
-                /*
-                 * 在背景中从矩形的左侧到右侧绘制一条线，
-                 * 在基线下方一个 dip 的垂直位置，使用 "paint" 对象
-                 * 获取详细信息。
-                 */
-                canvas.drawLine(r.left, baseline + 4, r.right, baseline + 4, paint);
+            Layout layout = getLayout();
+            if (layout != null && canvas.getClipBounds(mClipRect)) {
+                int offset = getExtendedPaddingTop();
+                int first = layout.getLineForVertical(mClipRect.top - offset);
+                int last = layout.getLineForVertical(mClipRect.bottom - offset);
+                for (int i = first; i <= last; i++) {
+                    // 获取当前文本行的基线坐标
+                    int baseline = getLineBounds(i, r);
+
+                    /*
+                     * 在背景中从矩形的左侧到右侧绘制一条线，
+                     * 在基线下方一个 dip 的垂直位置，使用 "paint" 对象
+                     * 获取详细信息。
+                     */
+                    canvas.drawLine(r.left, baseline + 4, r.right, baseline + 4, paint);
+                }
             }
 
             // 通过调用父方法完成
@@ -183,11 +272,18 @@ public class NoteEditor extends AppCompatActivity {
         } else if (Intent.ACTION_INSERT.equals(action) || Intent.ACTION_PASTE.equals(action)) {
             mState = STATE_INSERT;
 
-            ContentValues initialValues = new ContentValues();
-            initialValues.put(NotePad.Notes.COLUMN_NAME_TAG_ID, 0);
-            initialValues.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+            if (savedInstanceState != null && savedInstanceState.containsKey(JOURNAL_KEY)) {
+                // 进程被回收后重建：继续编辑之前插入的笔记，不再插入新的笔记
+                mUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                        savedInstanceState.getLong(JOURNAL_KEY));
+            } else {
+                ContentValues initialValues = new ContentValues();
+                initialValues.put(NotePad.Notes.COLUMN_NAME_TAG_ID, 0);
+                initialValues.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
 
-            mUri = getContentResolver().insert(intent.getData(), initialValues);
+                mUri = getContentResolver().insert(intent.getData(), initialValues);
+                mInserted = mUri != null;
+            }
 
             if (mUri == null) {
                 Log.e(TAG, "Failed to insert new note into " + getIntent().getData());
@@ -204,13 +300,40 @@ public class NoteEditor extends AppCompatActivity {
             return;
         }
 
+        mJournal = EditJournal.open(this, ContentUris.parseId(mUri));
+        if (mInserted) {
+            // 新笔记可能重新使用了已删除笔记的 ID，不重放那条笔记留下的日志
+            mJournal.reset("");
+        }
+        // 清理在编辑器之外被删除的笔记留下的日志
+        EditJournal.deleteStaleJournals(this);
+        // 自动保存取快照时开始新一代日志，快照写入之后删除更早的日志
+        mAutosaver = new NoteAutosaver(getContentResolver(), mUri, () -> {
+            String content = getNoteText();
+            mJournal.rotate(content);
+            return content;
+        }, getResources().getInteger(R.integer.autosave_quiet_period_ms));
+        mAutosaver.setOnSavedListener(mJournal::discardBefore);
+
         mText.addTextChangedListener(new TextWatcher() {
             @Override
             public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
 
             @Override
             public void onTextChanged(CharSequence s, int start, int before, int count) {
+                if (mLoadingText) {
+                    return;
+                }
                 mContentChanged = true;
+                mAutosaver.onContentChanged();
+                int offset = start;
+                if (mDocument != null) {
+                    // 把窗口中的编辑同步到片段表
+                    offset += mWindowStart;
+                    mDocument.replace(offset, offset + before, s, start, start + count);
+                    mWindowLength += count - before;
+                }
+                mJournal.append(offset, offset + before, s, start, start + count);
             }
 
             @Override
@@ -226,77 +349,239 @@ public class NoteEditor extends AppCompatActivity {
             });
         }
 
-        // 查询笔记数据，包括标签ID
-        mCursor = getContentResolver().query(
-                mUri,
-                PROJECTION,
-                null,
-                null,
-                null
-        );
+        TagRepository.getInstance(this).addListener(mTagListener);
 
-        if (mCursor != null && mCursor.moveToFirst()) {
-            int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-            int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-            int colTagIdIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TAG_ID);
+        // 笔记在后台读取，读完之前不能编辑
+        mText.setEnabled(false);
+        loadNote();
+    }
 
-            if (colNoteIndex != -1) {
-                String note = mCursor.getString(colNoteIndex);
-                mOriginalContent = note;
-                mText.setText(note);
-                mText.setSelection(mText.getText().length());
+    /**
+     * 在后台读取笔记，读完后在主线程调用 {@link #onNoteLoaded(LoadedNote, String)}。
+     * 已经加载过时按手中的版本号条件读取，笔记没有变化时提供程序只返回存根行。
+     * 第一次加载时还在后台重放编辑日志，读取和重放日志文件都不在主线程进行。
+     */
+    private void loadNote() {
+        if (mLoadSignal != null) {
+            mLoadSignal.cancel();
+        }
+        final CancellationSignal signal = new CancellationSignal();
+        mLoadSignal = signal;
+        final ContentResolver resolver = getContentResolver();
+        final long heldVersion = mVersion;
+        final EditJournal journal = heldVersion == 0 ? mJournal : null;
+        final Uri uri = heldVersion == 0 ? mUri : mUri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_IF_VERSION, String.valueOf(heldVersion))
+                .build();
+
+        mLoadExecutor.execute(() -> {
+            LoadedNote loaded;
+            try {
+                loaded = queryNote(resolver, uri, signal);
+            } catch (OperationCanceledException e) {
+                return;
             }
-
-            if (colTitleIndex != -1) {
-                mOriginalTitle = mCursor.getString(colTitleIndex);
+            if (loaded != null && loaded.version == heldVersion) {
+                // 存根行：笔记没有变化
+                return;
             }
 
-            // 加载标签信息
-            if (colTagIdIndex != -1) {
-                mTagId = mCursor.getLong(colTagIdIndex);
-                Log.d(TAG, "Loaded tag id: " + mTagId);
+            // 上次编辑时进程在保存之前被杀死，在数据库中的内容上重放日志
+            final String recovered = journal != null && loaded != null
+                    ? journal.replay(loaded.note) : null;
 
-                // 立即更新标签按钮
-                if (mTagId > 0) {
-                    loadTagInfo(mTagId);
-                } else {
-                    updateTagButton();
+            final LoadedNote result = loaded;
+            runOnUiThread(() -> {
+                // 在等待期间被新的读取取代，或 Activity 正在关闭，丢弃结果
+                if (signal != mLoadSignal || isFinishing() || isDestroyed()) {
+                    return;
                 }
+                mLoadSignal = null;
+                onNoteLoaded(result, recovered);
+            });
+        });
+    }
+
+    /**
+     * 读取整条笔记，笔记不存在时返回 null；uri 带有版本号条件并且笔记没有变化时只返回版本号。
+     * 正文通过 notes/#/body 流从数据库分段读取。读完正文后再确认版本号没有变化，
+     * 版本号只增不减，两次读到相同的版本号说明正文就是这个版本的内容；否则重新读取，
+     * 最多 {@link #LOAD_ATTEMPTS} 次，最后一次读到的正文直接使用，之后的加载会再读到新的内容。
+     */
+    private static LoadedNote queryNote(ContentResolver resolver, Uri uri, CancellationSignal signal) {
+        Uri noteUri = uri.buildUpon().clearQuery().build();
+        Uri bodyUri = Uri.withAppendedPath(noteUri, NotePad.Notes.PATH_SEGMENT_BODY);
+        Uri metaUri = uri;
+        for (int attempt = 1; ; attempt++) {
+            LoadedNote meta = queryNoteMeta(resolver, metaUri, null, signal);
+            if (meta == null) {
+                return null;
             }
-        } else {
-            Log.e(TAG, "Failed to query note data");
-            Toast.makeText(this, "加载笔记失败", Toast.LENGTH_SHORT).show();
-            finish();
+            String held = metaUri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_IF_VERSION);
+            if (held != null && meta.version == Long.parseLong(held)) {
+                // 存根行：笔记没有变化
+                return meta;
+            }
+
+            String note;
+            try {
+                note = readBody(resolver, bodyUri, signal);
+            } catch (FileNotFoundException e) {
+                // 笔记已被删除
+                return null;
+            } catch (IOException e) {
+                // 读取途中笔记被修改，正文流以错误结束
+                if (attempt >= LOAD_ATTEMPTS) {
+                    Log.e(TAG, "Failed to read note body", e);
+                    return null;
+                }
+                Log.w(TAG, "Note changed while loading, retrying", e);
+                metaUri = noteUri;
+                continue;
+            }
+
+            // 读取正文期间笔记没有变化时只返回存根行
+            Uri checkUri = noteUri.buildUpon().appendQueryParameter(
+                    NotePad.Notes.QUERY_PARAMETER_IF_VERSION, String.valueOf(meta.version)).build();
+            LoadedNote check = queryNoteMeta(resolver, checkUri, null, signal);
+            if (check == null) {
+                return null;
+            }
+            if (check.version == meta.version || attempt >= LOAD_ATTEMPTS) {
+                return new LoadedNote(note, meta.title, meta.tagId, meta.version);
+            }
+            metaUri = noteUri;
         }
     }
 
-    private void loadTagInfo(long tagId) {
+    /**
+     * 读取笔记的标题、主标签和版本号，正文为 note。笔记不存在时返回 null
+     */
+    private static LoadedNote queryNoteMeta(ContentResolver resolver, Uri uri, String note,
+                                            CancellationSignal signal) {
+        Cursor cursor = resolver.query(uri, LOAD_PROJECTION, null, null, null, signal);
+        if (cursor == null) {
+            return null;
+        }
         try {
-            Uri tagUri = ContentUris.withAppendedId(NotePad.Notes.TAG_ID_URI_BASE, tagId);
-            Cursor tagCursor = getContentResolver().query(
-                    tagUri,
-                    new String[]{
-                            NotePad.Notes.COLUMN_NAME_TAG_NAME,
-                            NotePad.Notes.COLUMN_NAME_TAG_COLOR
-                    },
-                    null, null, null
-            );
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return new LoadedNote(note,
+                    cursor.getString(cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_TITLE)),
+                    cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_TAG_ID)),
+                    cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_VERSION)));
+        } finally {
+            cursor.close();
+        }
+    }
 
-            if (tagCursor != null && tagCursor.moveToFirst()) {
-                mTagName = tagCursor.getString(0);
-                mTagColor = tagCursor.getInt(1);
-                tagCursor.close();
-                updateTagButton();
+    /**
+     * 从正文流读出笔记的完整正文，每读一段检查一次是否已取消。
+     * 正文流没有完整写出时抛出 IOException。
+     */
+    private static String readBody(ContentResolver resolver, Uri bodyUri, CancellationSignal signal)
+            throws IOException {
+        ParcelFileDescriptor pfd = resolver.openFileDescriptor(bodyUri, "r", signal);
+        if (pfd == null) {
+            throw new FileNotFoundException(bodyUri.toString());
+        }
+        Reader reader = new InputStreamReader(new ParcelFileDescriptor.AutoCloseInputStream(pfd),
+                "UTF-8");
+        try {
+            StringBuilder body = new StringBuilder();
+            char[] buffer = new char[BODY_READ_CHARS];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                signal.throwIfCanceled();
+                body.append(buffer, 0, count);
+            }
+            // 笔记在读取途中被修改或删除时，提供程序以错误关闭管道，读到的正文不完整
+            pfd.checkError();
+            return body.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * 在主线程显示读到的笔记。第一次加载时显示重放编辑日志恢复的内容 recovered（没有时为 null）；
+     * 之后只在没有未保存的修改、并且内容确实不同时替换编辑框中的文本。
+     */
+    private void onNoteLoaded(LoadedNote loaded, String recovered) {
+        if (loaded == null) {
+            if (!mLoaded) {
+                Log.e(TAG, "Failed to query note data");
+                Toast.makeText(this, "加载笔记失败", Toast.LENGTH_SHORT).show();
+                finish();
+            }
+            return;
+        }
+        boolean first = !mLoaded;
+        String note = loaded.note;
+        mVersion = loaded.version;
+        mOriginalTitle = loaded.title;
+        mSavedTagId = loaded.tagId;
+
+        if (first) {
+            mLoaded = true;
+            mInserted = false;
+            mOriginalContent = note;
+            loadNoteText(recovered != null ? recovered : note, false);
+            mAutosaver.setSavedContent(note);
+            if (recovered != null) {
+                mContentChanged = true;
+                mAutosaver.onContentChanged();
+                Toast.makeText(this, R.string.note_recovered, Toast.LENGTH_SHORT).show();
+            }
+            mText.setEnabled(true);
+        } else if (mAutosaver.isIdle()) {
+            // 自动保存尚未写完时编辑框中的内容比数据库中的新，不用读到的内容替换。
+            // 版本号的变化多半来自自己的保存，内容相同时保留编辑框的状态
+            if (!note.equals(getNoteText())) {
+                // 内容在别处被修改，之后的编辑以新内容为基准记录
+                mJournal.rotate(note);
+                loadNoteText(note, true);
+            }
+            mOriginalContent = note;
+            mAutosaver.setSavedContent(note);
+            mContentChanged = false;
+        }
+        mTitleChanged = false;
+
+        // 加载标签信息
+        if (first || loaded.tagId != mTagId) {
+            mTagId = loaded.tagId;
+            Log.d(TAG, "Loaded tag id: " + mTagId);
+            if (mTagId > 0) {
+                loadTagInfo(mTagId);
             } else {
-                // 如果标签不存在，重置为无标签
-                mTagId = 0;
                 updateTagButton();
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error loading tag info", e);
+        }
+
+        if (mState == STATE_EDIT) {
+            Resources res = getResources();
+            setTitle(String.format(res.getString(R.string.title_edit), loaded.title));
+        } else if (mState == STATE_INSERT) {
+            setTitle(getText(R.string.title_create));
+        }
+    }
+
+    private void loadTagInfo(long tagId) {
+        // 标签从共享缓存读取，不在主线程查询数据库
+        TagRepository repository = TagRepository.getInstance(this);
+        Tag tag = repository.getTag(tagId);
+        if (tag != null) {
+            mTagName = tag.getName();
+            mTagColor = tag.getColor();
+            updateTagButton();
+        } else if (repository.isLoaded()) {
+            // 如果标签不存在，重置为无标签
             mTagId = 0;
             updateTagButton();
         }
+        // 缓存尚未加载完成时保持按钮不变，加载完成后由 mTagListener 再次调用
     }
 
     private void updateTagButton() {
@@ -304,7 +589,7 @@ public class NoteEditor extends AppCompatActivity {
             if (mTagId > 0) {
                 mTagButton.setText(mTagName);
                 mTagButton.setBackgroundColor(mTagColor);
-                mTagButton.setTextColor(getContrastColor(mTagColor));
+                mTagButton.setTextColor(NoteItem.getContrastColor(mTagColor));
             } else {
                 mTagButton.setText(getString(R.string.tag_none));
                 mTagButton.setBackgroundColor(0xFFE0E0E0);
@@ -313,13 +598,6 @@ public class NoteEditor extends AppCompatActivity {
         }
     }
 
-    private int getContrastColor(int color) {
-        double luminance = 0.299 * Color.red(color) +
-                0.587 * Color.green(color) +
-                0.114 * Color.blue(color);
-        return luminance > 186 ? Color.BLACK : Color.WHITE;
-    }
-
     @Override
     protected void onResume() {
         super.onResume();
@@ -327,83 +605,71 @@ public class NoteEditor extends AppCompatActivity {
             ((LinedEditText) mText).updateLineColor();
         }
 
-        if (mCursor != null) {
-            mCursor.requery();
-            mCursor.moveToFirst();
-
-            int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-            int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-            int colTagIdIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TAG_ID);
-
-            String note = mCursor.getString(colNoteIndex);
-            mOriginalContent = note;
-            mOriginalTitle = mCursor.getString(colTitleIndex);
-
-            mText.setTextKeepState(note);
-            mContentChanged = false;
-            mTitleChanged = false;
-
-            // 重新加载标签信息
-            long currentTagId = mCursor.getLong(colTagIdIndex);
-            if (currentTagId != mTagId) {
-                mTagId = currentTagId;
-                if (mTagId > 0) {
-                    loadTagInfo(mTagId);
-                } else {
-                    updateTagButton();
-                }
-            }
-
-            if (mState == STATE_EDIT) {
-                String title = mCursor.getString(colTitleIndex);
-                Resources res = getResources();
-                String text = String.format(res.getString(R.string.title_edit), title);
-                setTitle(text);
-            } else if (mState == STATE_INSERT) {
-                setTitle(getText(R.string.title_create));
-            }
+        // 回到前台时按版本号条件读取，笔记没有变化时不传输内容
+        if (mLoaded) {
+            loadNote();
         }
     }
 
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putString(ORIGINAL_CONTENT, mOriginalContent);
+        if (mUri != null) {
+            outState.putLong(JOURNAL_KEY, ContentUris.parseId(mUri));
+        }
     }
 
     @Override
     protected void onPause() {
         super.onPause();
 
-        if (mCursor != null) {
-            String text = mText.getText().toString();
-            int length = text.length();
+        if (mLoaded) {
+            int length = mDocument != null ? mDocument.length() : mText.length();
 
             if (isFinishing() && (length == 0)) {
                 setResult(RESULT_CANCELED);
                 deleteNote();
             } else if (mState == STATE_EDIT) {
-                if (!text.equals(mOriginalContent)) {
-                    updateNote(text, null);
-                } else if (mTagId != getCurrentTagIdFromCursor()) {
-                    // 如果只是标签改变了，也更新笔记
-                    updateNote(text, null);
-                }
+                // 未保存的修改交给后台写入，主线程不等待；标签在选择时已经保存
+                mAutosaver.flush();
             } else if (mState == STATE_INSERT) {
-                updateNote(text, text);
+                // 新笔记第一次保存时还要写入标题，同样交给自动保存的写入线程，
+                // 排在已经取走的快照之后，不会被较旧的内容覆盖
+                mAutosaver.cancel();
+                String text = getNoteText();
+                mJournal.rotate(text);
+                mAutosaver.save(text, text);
+                mOriginalContent = text;
+                mOriginalTitle = text;
+                mContentChanged = false;
+                mTitleChanged = false;
                 mState = STATE_EDIT;
             }
+        } else if (isFinishing() && mInserted) {
+            // 加载完成之前就退出了新建的笔记，编辑框中不可能有内容，删除插入的空笔记
+            mInserted = false;
+            setResult(RESULT_CANCELED);
+            getContentResolver().delete(mUri, null, null);
+            mAutosaver.cancel();
+            mJournal.delete();
+        }
+        if (mJournal != null) {
+            mJournal.flush();
         }
     }
 
-    private long getCurrentTagIdFromCursor() {
-        if (mCursor != null && !mCursor.isClosed()) {
-            int colTagIdIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TAG_ID);
-            if (colTagIdIndex != -1) {
-                return mCursor.getLong(colTagIdIndex);
-            }
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mLoadSignal != null) {
+            mLoadSignal.cancel();
+            mLoadSignal = null;
+        }
+        mLoadExecutor.shutdown();
+        if (mJournal != null) {
+            mJournal.close();
         }
-        return 0;
+        TagRepository.getInstance(this).removeListener(mTagListener);
     }
 
     @Override
@@ -421,15 +687,28 @@ public class NoteEditor extends AppCompatActivity {
         tagItem.setIcon(android.R.drawable.ic_menu_agenda);
         tagItem.setShowAsAction(MenuItem.SHOW_AS_ACTION_ALWAYS);
 
+        if (mDocument != null) {
+            menu.add(Menu.NONE, MENU_PREVIOUS_WINDOW, Menu.NONE, R.string.menu_previous_window)
+                    .setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
+            menu.add(Menu.NONE, MENU_NEXT_WINDOW, Menu.NONE, R.string.menu_next_window)
+                    .setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
+        }
+
         return super.onCreateOptionsMenu(menu);
     }
 
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
-        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-        String savedNote = mCursor.getString(colNoteIndex);
+        if (mDocument != null) {
+            // 大文档按编辑标志判断是否可以还原，不读取和比较完整内容
+            menu.findItem(R.id.menu_revert).setVisible(mContentChanged);
+            menu.findItem(MENU_PREVIOUS_WINDOW).setEnabled(mWindowStart > 0);
+            menu.findItem(MENU_NEXT_WINDOW).setEnabled(
+                    mWindowStart + mWindowLength < mDocument.length());
+            return super.onPrepareOptionsMenu(menu);
+        }
         String currentNote = mText.getText().toString();
-        if (savedNote.equals(currentNote)) {
+        if (mOriginalContent == null || mOriginalContent.equals(currentNote)) {
             menu.findItem(R.id.menu_revert).setVisible(false);
         } else {
             menu.findItem(R.id.menu_revert).setVisible(true);
@@ -446,8 +725,7 @@ public class NoteEditor extends AppCompatActivity {
 
         int id = item.getItemId();
         if (id == R.id.menu_save) {
-            String text = mText.getText().toString();
-            updateNote(text, null);
+            // 内容在 onPause 中保存
             finish();
         } else if (id == R.id.menu_delete) {
             deleteNote();
@@ -458,10 +736,105 @@ public class NoteEditor extends AppCompatActivity {
             // 添加编辑标题的处理逻辑
             showTitleEditor();
             return true;
+        } else if (id == MENU_PREVIOUS_WINDOW) {
+            int end = mWindowStart;
+            showWindow(lineStart(Math.max(0, end - WINDOW_CHARS)), end);
+            return true;
+        } else if (id == MENU_NEXT_WINDOW) {
+            int start = mWindowStart + mWindowLength;
+            showWindow(start, windowEnd(start));
+            return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * 返回编辑中的完整笔记内容。大文档模式下由片段表拼出完整的字符串，只在保存时调用。
+     */
+    private String getNoteText() {
+        return mDocument != null ? mDocument.toString() : mText.getText().toString();
+    }
+
+    /**
+     * 把从数据库读到的笔记放入编辑框，不作为用户的编辑。keepState 为 true 时保留光标位置。
+     */
+    private void loadNoteText(String note, boolean keepState) {
+        if (showLargeNote(note)) {
+            return;
+        }
+        mLoadingText = true;
+        try {
+            if (keepState) {
+                mText.setTextKeepState(note);
+            } else {
+                mText.setText(note);
+                mText.setSelection(mText.getText().length());
+            }
+        } finally {
+            mLoadingText = false;
+        }
+    }
+
+    /**
+     * 笔记足够大时进入大文档模式，显示上次所在位置的窗口并返回 true；否则退出大文档模式并返回 false，
+     * 由调用方把整个笔记放入编辑框。
+     */
+    private boolean showLargeNote(String note) {
+        if (note == null || note.length() <= LARGE_NOTE_CHARS) {
+            if (mDocument != null) {
+                mDocument = null;
+                mWindowStart = 0;
+                mWindowLength = 0;
+                invalidateOptionsMenu();
+            }
+            return false;
+        }
+        boolean entering = mDocument == null;
+        mDocument = new PieceTable(note);
+        int start = lineStart(Math.min(mWindowStart, note.length()));
+        showWindow(start, windowEnd(start));
+        if (entering) {
+            Toast.makeText(this, R.string.large_note_windowed, Toast.LENGTH_SHORT).show();
+        }
+        return true;
+    }
+
+    /**
+     * 把文档中 [start, end) 之间的文本放入编辑框
+     */
+    private void showWindow(int start, int end) {
+        mWindowStart = start;
+        mWindowLength = end - start;
+        mLoadingText = true;
+        try {
+            mText.setText(mDocument.subSequence(start, end));
+        } finally {
+            mLoadingText = false;
+        }
+        mText.setSelection(0);
+        invalidateOptionsMenu();
+    }
+
+    /**
+     * 返回 offset 所在行的行首。行首离 offset 超过半个窗口（超长的行）时直接返回 offset。
+     */
+    private int lineStart(int offset) {
+        if (offset <= 0) {
+            return 0;
+        }
+        int lineStart = mDocument.lastIndexOf('\n', offset - 1) + 1;
+        return lineStart >= offset - WINDOW_CHARS / 2 ? lineStart : offset;
+    }
+
+    /**
+     * 返回从 start 开始的窗口的终点：在大约一个窗口之后的行边界处截断
+     */
+    private int windowEnd(int start) {
+        int length = mDocument.length();
+        int end = start + WINDOW_CHARS;
+        return end < length ? lineStart(end) : length;
+    }
+
     // 添加一个新的方法来显示标题编辑器
     private void showTitleEditor() {
         if (mUri != null) {
@@ -560,8 +933,8 @@ public class NoteEditor extends AppCompatActivity {
                 //（moveToFirst() 返回 true），则从中获取笔记数据。
                 if (orig != null) {
                     if (orig.moveToFirst()) {
-                        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-                        int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
+                        int colNoteIndex = orig.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+                        int colTitleIndex = orig.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
                         text = orig.getString(colNoteIndex);
                         title = orig.getString(colTitleIndex);
                     }
@@ -587,14 +960,14 @@ public class NoteEditor extends AppCompatActivity {
         boolean contentChanged = !text.equals(mOriginalContent);
         boolean titleChanged = (title != null) && !title.equals(mOriginalTitle);
 
-        if (mState == STATE_EDIT && !contentChanged && !titleChanged && mTagId == getCurrentTagIdFromCursor()) {
+        if (mState == STATE_EDIT && !contentChanged && !titleChanged && mTagId == mSavedTagId) {
             return;
         }
 
         ContentValues values = new ContentValues();
 
         // 如果内容、标题或标签有变化，更新时间
-        if (contentChanged || titleChanged || mState == STATE_INSERT || mTagId != getCurrentTagIdFromCursor()) {
+        if (contentChanged || titleChanged || mState == STATE_INSERT || mTagId != mSavedTagId) {
             values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
         }
 
@@ -631,6 +1004,8 @@ public class NoteEditor extends AppCompatActivity {
         if (rowsUpdated > 0) {
             // 更新原始内容
             mOriginalContent = text;
+            mAutosaver.setSavedContent(text);
+            mSavedTagId = mTagId;
             if (title != null) {
                 mOriginalTitle = title;
             }
@@ -640,13 +1015,15 @@ public class NoteEditor extends AppCompatActivity {
     }
 
     private final void cancelNote() {
-        if (mCursor != null) {
+        if (mLoaded) {
             if (mState == STATE_EDIT) {
-                mCursor.close();
-                mCursor = null;
-                ContentValues values = new ContentValues();
-                values.put(NotePad.Notes.COLUMN_NAME_NOTE, mOriginalContent);
-                getContentResolver().update(mUri, values, null, null);
+                mLoaded = false;
+                // 丢弃未保存的修改；还原的内容排在已经提交的自动保存之后写入
+                mAutosaver.cancel();
+                mJournal.delete();
+                if (mOriginalContent != null) {
+                    mAutosaver.save(mOriginalContent);
+                }
             } else if (mState == STATE_INSERT) {
                 deleteNote();
             }
@@ -656,11 +1033,13 @@ public class NoteEditor extends AppCompatActivity {
     }
 
     private final void deleteNote() {
-        if (mCursor != null) {
-            mCursor.close();
-            mCursor = null;
+        if (mLoaded) {
+            mLoaded = false;
             getContentResolver().delete(mUri, null, null);
             mText.setText("");
+            // 清空编辑框也会触发自动保存，一并取消
+            mAutosaver.cancel();
+            mJournal.delete();
         }
     }
 
@@ -680,8 +1059,8 @@ public class NoteEditor extends AppCompatActivity {
             Log.d(TAG, "updateNoteWithTag: rowsUpdated = " + rowsUpdated + ", tagId = " + mTagId);
 
             if (rowsUpdated > 0) {
-                // 通知数据已更改
-                getContentResolver().notifyChange(mUri, null);
+                mSavedTagId = mTagId;
+                // 提供程序在更新后已经通知了该笔记的 URI
                 Toast.makeText(this, "标签已更新", Toast.LENGTH_SHORT).show();
             } else {
                 Toast.makeText(this, "标签更新失败", Toast.LENGTH_SHORT).show();
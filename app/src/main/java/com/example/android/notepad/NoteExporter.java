@@ -0,0 +1,375 @@
+package com.example.android.notepad;
+
+import android.content.ClipDescription;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/**
+ * 把笔记写成数据流，供 {@link NotePadProvider} 的笔记数据流和笔记列表导出使用。
+ *
+ * 正文按 {@link #BODY_CHUNK_CHARS} 个字符一段从数据库读取，不经过游标窗口。
+ * 导出笔记列表时按 ID 分窗口读取：每个窗口是一次 _id 大于上一窗口最后一行 ID 的主键范围查询，
+ * 最多 {@link #WINDOW_ROWS} 行，行中只带正文的前 {@link #INLINE_CHARS} 个字符，
+ * 总能放进一个游标窗口，写完即关闭；更长的正文再分段读取。内存占用与笔记数量和正文长度都无关。
+ * 按 ID 而不是修改时间分窗口，导出期间被编辑的笔记不会因为排序位置改变而被漏掉或重复导出。
+ * 正文需要分段读取的笔记在写出之前确认版本号，窗口读出之后被修改的笔记重新读取这一行，
+ * 写出的各列和正文总是同一个版本的内容。
+ */
+final class NoteExporter {
+
+    private static final String TAG = "NoteExporter";
+
+    // 数据流格式
+    static final int FORMAT_TEXT = 0;
+    static final int FORMAT_JSON_LINES = 1;
+    static final int FORMAT_MARKDOWN = 2;
+
+    /**
+     * 笔记列表支持导出的 MIME 类型，第一个为默认格式
+     */
+    static final ClipDescription EXPORT_STREAM_TYPES = new ClipDescription(null, new String[] {
+            ClipDescription.MIMETYPE_TEXT_PLAIN,
+            NotePad.Notes.EXPORT_TYPE_JSON_LINES,
+            NotePad.Notes.EXPORT_TYPE_MARKDOWN
+    });
+
+    /**
+     * 每次从数据库读取的正文字符数。SQLite 的 substr 对文本按字符计数，分段不会拆开代理对。
+     */
+    static final int BODY_CHUNK_CHARS = 256 * 1024;
+
+    /**
+     * 导出时每个窗口的最大行数
+     */
+    static final int WINDOW_ROWS = 128;
+
+    /**
+     * 导出窗口中每行附带的正文字符数，大多数笔记不需要再单独读取正文
+     */
+    static final int INLINE_CHARS = 2048;
+
+    /**
+     * 读取笔记正文一段的语句。带上版本号条件，笔记在读取途中被修改或删除时不再返回行。
+     */
+    private static final String SQL_READ_BODY_CHUNK = "SELECT substr("
+            + NotePad.Notes.COLUMN_NAME_NOTE + ", ?, " + BODY_CHUNK_CHARS + ") FROM "
+            + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ? AND "
+            + NotePad.Notes.COLUMN_NAME_VERSION + " = ?";
+
+    /**
+     * 读取笔记当前版本号的语句
+     */
+    private static final String SQL_READ_VERSION = "SELECT " + NotePad.Notes.COLUMN_NAME_VERSION
+            + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ?";
+
+    /**
+     * 导出窗口查询的列
+     */
+    private static final String[] WINDOW_COLUMNS = new String[] {
+            NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_TAG_ID,
+            NotePad.Notes.COLUMN_NAME_VERSION,
+            "substr(" + NotePad.Notes.COLUMN_NAME_NOTE + ", 1, " + INLINE_CHARS + ")"
+    };
+    private static final int WINDOW_ID_INDEX = 0;
+    private static final int WINDOW_TITLE_INDEX = 1;
+    private static final int WINDOW_MODIFIED_INDEX = 2;
+    private static final int WINDOW_TAG_ID_INDEX = 3;
+    private static final int WINDOW_VERSION_INDEX = 4;
+    private static final int WINDOW_NOTE_INDEX = 5;
+
+    private static final String WINDOW_SELECTION =
+            NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " > ?";
+    private static final String NOTE_SELECTION =
+            NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " = ?";
+    private static final String WINDOW_ORDER =
+            NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " ASC";
+
+    private NoteExporter() {
+    }
+
+    /**
+     * 返回 MIME 类型对应的数据流格式
+     */
+    static int formatOf(String mimeType) {
+        if (NotePad.Notes.EXPORT_TYPE_JSON_LINES.equals(mimeType)) {
+            return FORMAT_JSON_LINES;
+        } else if (NotePad.Notes.EXPORT_TYPE_MARKDOWN.equals(mimeType)) {
+            return FORMAT_MARKDOWN;
+        }
+        return FORMAT_TEXT;
+    }
+
+    /**
+     * 查询 ID 大于 afterId 的一个导出窗口。qb 已设置笔记表和筛选条件。
+     */
+    static Cursor queryWindow(SQLiteDatabase db, SQLiteQueryBuilder qb, long afterId) {
+        return qb.query(db, WINDOW_COLUMNS, WINDOW_SELECTION,
+                new String[] { String.valueOf(afterId) }, null, null, WINDOW_ORDER,
+                String.valueOf(WINDOW_ROWS));
+    }
+
+    /**
+     * 导出 qb 选出的笔记。first 是已查询的第一个窗口，由调用方关闭；之后的窗口在此查询和关闭。
+     * 读取方关闭管道后在当前窗口写完时停止。笔记在分段读取正文的途中被修改或删除时停止并返回
+     * false，已写出的部分不完整，由调用方报告给读取方；否则返回 true。
+     */
+    static boolean writeNotes(SQLiteDatabase db, SQLiteQueryBuilder qb, Cursor first,
+                              PrintWriter pw, int format) {
+        SQLiteStatement bodyStatement = compileBodyStatement(db);
+        SQLiteStatement versionStatement = db.compileStatement(SQL_READ_VERSION);
+        try {
+            Cursor window = first;
+            while (true) {
+                long lastId = -1;
+                int rows = 0;
+                try {
+                    while (window.moveToNext()) {
+                        lastId = window.getLong(WINDOW_ID_INDEX);
+                        rows++;
+                        if (!writeCurrentNote(db, qb, bodyStatement, versionStatement, window,
+                                pw, format)) {
+                            return false;
+                        }
+                    }
+                } finally {
+                    if (window != first) {
+                        window.close();
+                    }
+                }
+
+                // 最后一个窗口，或读取方已关闭管道
+                if (rows < WINDOW_ROWS || pw.checkError()) {
+                    return true;
+                }
+                window = queryWindow(db, qb, lastId);
+            }
+        } finally {
+            bodyStatement.close();
+            versionStatement.close();
+        }
+    }
+
+    /**
+     * 写出窗口的当前行。正文需要分段读取并且笔记在窗口读出之后已被修改时，重新读取这一行再写出；
+     * 笔记已被删除或不再符合筛选条件时跳过。
+     */
+    private static boolean writeCurrentNote(SQLiteDatabase db, SQLiteQueryBuilder qb,
+                                            SQLiteStatement bodyStatement,
+                                            SQLiteStatement versionStatement, Cursor window,
+                                            PrintWriter pw, int format) {
+        String inline = window.getString(WINDOW_NOTE_INDEX);
+        if (inline == null || !isTruncated(inline)) {
+            // 整条笔记都在窗口的这一行中
+            return writeNote(bodyStatement, window, pw, format);
+        }
+        long noteId = window.getLong(WINDOW_ID_INDEX);
+        long version;
+        versionStatement.bindLong(1, noteId);
+        try {
+            version = versionStatement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            // 已被删除
+            return true;
+        }
+        if (version == window.getLong(WINDOW_VERSION_INDEX)) {
+            return writeNote(bodyStatement, window, pw, format);
+        }
+
+        Cursor current = qb.query(db, WINDOW_COLUMNS, NOTE_SELECTION,
+                new String[] { String.valueOf(noteId) }, null, null, null);
+        try {
+            return !current.moveToFirst() || writeNote(bodyStatement, current, pw, format);
+        } finally {
+            current.close();
+        }
+    }
+
+    /**
+     * 写出一行笔记，正文被截断时分段读取其余部分。笔记在读取途中被修改或删除时返回 false。
+     */
+    private static boolean writeNote(SQLiteStatement bodyStatement, Cursor window, PrintWriter pw,
+                                     int format) {
+        long noteId = window.getLong(WINDOW_ID_INDEX);
+        String title = window.getString(WINDOW_TITLE_INDEX);
+        String inline = window.getString(WINDOW_NOTE_INDEX);
+
+        switch (format) {
+            case FORMAT_JSON_LINES:
+                pw.write("{\"" + NotePad.Notes._ID + "\":" + noteId);
+                pw.write(",\"" + NotePad.Notes.COLUMN_NAME_TITLE + "\":");
+                writeJsonString(pw, title);
+                pw.write(",\"" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + "\":"
+                        + window.getLong(WINDOW_MODIFIED_INDEX));
+                pw.write(",\"" + NotePad.Notes.COLUMN_NAME_TAG_ID + "\":"
+                        + window.getLong(WINDOW_TAG_ID_INDEX));
+                pw.write(",\"" + NotePad.Notes.COLUMN_NAME_VERSION + "\":"
+                        + window.getLong(WINDOW_VERSION_INDEX));
+                pw.write(",\"" + NotePad.Notes.COLUMN_NAME_NOTE + "\":");
+                if (inline == null) {
+                    pw.write("null");
+                } else {
+                    pw.write('"');
+                    writeText(pw, inline, format);
+                    if (!writeRemainingBody(bodyStatement, window, inline, pw, format)) {
+                        return false;
+                    }
+                    pw.write('"');
+                }
+                pw.write("}\n");
+                break;
+
+            case FORMAT_MARKDOWN:
+                // 标题是一行标题文本，换行会结束标题
+                pw.write("# ");
+                pw.write(title != null ? title.replace('\n', ' ').replace('\r', ' ') : "");
+                pw.write("\n\n");
+                if (inline != null) {
+                    pw.write(inline);
+                    if (!writeRemainingBody(bodyStatement, window, inline, pw, format)) {
+                        return false;
+                    }
+                }
+                pw.write("\n\n");
+                break;
+
+            default:
+                // 与单个笔记的文本流相同：标题、空行和正文，笔记之间再空一行
+                pw.write(title != null ? title : "");
+                pw.write("\n\n");
+                if (inline != null) {
+                    pw.write(inline);
+                    if (!writeRemainingBody(bodyStatement, window, inline, pw, format)) {
+                        return false;
+                    }
+                }
+                pw.write("\n\n");
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * 窗口中的正文被截断时，从数据库读取与窗口中这一行同一版本的其余部分。
+     * 笔记在读取途中被修改或删除时返回 false。
+     */
+    private static boolean writeRemainingBody(SQLiteStatement bodyStatement, Cursor window,
+                                              String inline, PrintWriter pw, int format) {
+        if (!isTruncated(inline)) {
+            return true;
+        }
+        return writeBody(bodyStatement, window.getLong(WINDOW_ID_INDEX),
+                window.getLong(WINDOW_VERSION_INDEX), INLINE_CHARS + 1, pw, format);
+    }
+
+    /**
+     * 窗口中的正文是否可能被截断
+     */
+    private static boolean isTruncated(String inline) {
+        return inline.codePointCount(0, inline.length()) >= INLINE_CHARS;
+    }
+
+    /**
+     * 编译读取正文一段的语句，用于 {@link #writeBody}，由调用方关闭
+     */
+    static SQLiteStatement compileBodyStatement(SQLiteDatabase db) {
+        return db.compileStatement(SQL_READ_BODY_CHUNK);
+    }
+
+    /**
+     * 从第 start 个字符（从 1 开始计数）起分段读取笔记正文并写出，内存占用与正文长度无关。
+     * 笔记在读取途中被修改或删除时停止并返回 false，已写出的部分不完整，由调用方报告给读取方；
+     * 写完或读取方已关闭管道时返回 true。
+     */
+    static boolean writeBody(SQLiteStatement bodyStatement, long noteId, long version, long start,
+                             PrintWriter pw, int format) {
+        bodyStatement.bindLong(2, noteId);
+        bodyStatement.bindLong(3, version);
+        try {
+            for (; ; start += BODY_CHUNK_CHARS) {
+                bodyStatement.bindLong(1, start);
+                String chunk = bodyStatement.simpleQueryForString();
+                if (chunk == null || chunk.isEmpty()) {
+                    return true;
+                }
+                writeText(pw, chunk, format);
+                if (pw.checkError()) {
+                    // 读取方已关闭管道
+                    return true;
+                }
+                if (chunk.codePointCount(0, chunk.length()) < BODY_CHUNK_CHARS) {
+                    return true;
+                }
+            }
+        } catch (SQLiteDoneException e) {
+            Log.w(TAG, "笔记 " + noteId + " 在读取正文时已被修改或删除");
+            return false;
+        }
+    }
+
+    private static void writeText(PrintWriter pw, String text, int format) {
+        if (format == FORMAT_JSON_LINES) {
+            writeJsonEscaped(pw, text);
+        } else {
+            pw.write(text);
+        }
+    }
+
+    private static void writeJsonString(PrintWriter pw, String value) {
+        if (value == null) {
+            pw.write("null");
+            return;
+        }
+        pw.write('"');
+        writeJsonEscaped(pw, value);
+        pw.write('"');
+    }
+
+    /**
+     * 按 JSON 字符串的规则转义后写出，不含两端的引号。连续不需转义的字符整段写出。
+     */
+    private static void writeJsonEscaped(PrintWriter pw, String text) {
+        int length = text.length();
+        int run = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            String escape;
+            switch (c) {
+                case '"':
+                    escape = "\\\"";
+                    break;
+                case '\\':
+                    escape = "\\\\";
+                    break;
+                case '\n':
+                    escape = "\\n";
+                    break;
+                case '\r':
+                    escape = "\\r";
+                    break;
+                case '\t':
+                    escape = "\\t";
+                    break;
+                default:
+                    // JSON 不允许未转义的控制字符；行分隔符在 JSON Lines 里也可能被当作换行
+                    if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        escape = String.format("\\u%04x", (int) c);
+                    } else {
+                        continue;
+                    }
+            }
+            pw.write(text, run, i - run);
+            pw.write(escape);
+            run = i + 1;
+        }
+        pw.write(text, run, length - run);
+    }
+}
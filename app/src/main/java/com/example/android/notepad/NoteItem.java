@@ -0,0 +1,137 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.graphics.Color;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 笔记列表中一行的不可变快照。
+ *
+ * 查询结果在后台线程一次性读成快照，游标随即关闭；列表差异按ID比较行是否相同、
+ * 按全部字段比较内容是否变化，因此一条笔记的修改只会重新绑定这一行。
+ * 行上显示的时间文本和标签文字颜色在创建快照时算好，绑定行时只设置现成的值，不再分配对象。
+ */
+final class NoteItem {
+
+    /**
+     * 列表查询的投影，列的顺序与 {@link #fromCursor(Cursor)} 读取的顺序一致
+     */
+    static final String[] PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_PREVIEW, // 预览，不读取完整的笔记内容
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_TAG_ID,
+            NotePad.Notes.COLUMN_NAME_JOINED_TAG_NAME, // 标签名称，来自联接查询
+            NotePad.Notes.COLUMN_NAME_JOINED_TAG_COLOR // 标签颜色，来自联接查询
+    };
+
+    /**
+     * 每个线程复用一个格式化器，SimpleDateFormat 不是线程安全的
+     */
+    private static final ThreadLocal<SimpleDateFormat> TIME_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.getDefault());
+        }
+    };
+
+    final long id;
+    final String title;
+    final String preview;
+    final long modified;
+    final long tagId;
+    // 没有标签或标签已删除时为 null
+    final String tagName;
+    final int tagColor;
+    // 以下由上面的字段算出，不参与比较
+    final String modifiedText;
+    final int tagTextColor;
+
+    NoteItem(long id, String title, String preview, long modified, long tagId, String tagName,
+             int tagColor) {
+        this.id = id;
+        this.title = title;
+        this.preview = preview;
+        this.modified = modified;
+        this.tagId = tagId;
+        this.tagName = tagName;
+        this.tagColor = tagColor;
+        this.modifiedText = formatTimestamp(modified);
+        this.tagTextColor = getContrastColor(tagColor);
+    }
+
+    /**
+     * 是否显示标签
+     */
+    boolean hasTag() {
+        return tagId > 0 && tagName != null;
+    }
+
+    /**
+     * 格式化时间戳为易读的字符串
+     */
+    static String formatTimestamp(long timestamp) {
+        return TIME_FORMAT.get().format(new Date(timestamp));
+    }
+
+    /**
+     * 返回在给定背景色上可读的文字颜色：亮度大于一半时用黑色，否则用白色。
+     * 按 0.299/0.587/0.114 的权重用整数计算亮度。
+     */
+    static int getContrastColor(int color) {
+        int luminance = 299 * Color.red(color) + 587 * Color.green(color) + 114 * Color.blue(color);
+        return luminance > 1000 * 255 / 2 ? Color.BLACK : Color.WHITE;
+    }
+
+    /**
+     * 把按 {@link #PROJECTION} 查询得到的游标的所有行读成快照，不关闭游标。
+     */
+    static List<NoteItem> fromCursor(Cursor cursor) {
+        List<NoteItem> items = new ArrayList<>(cursor.getCount());
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            items.add(new NoteItem(
+                    cursor.getLong(0),
+                    cursor.getString(1),
+                    cursor.getString(2),
+                    cursor.getLong(3),
+                    cursor.getLong(4),
+                    cursor.isNull(5) ? null : cursor.getString(5),
+                    cursor.getInt(6)));
+        }
+        return items;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof NoteItem)) {
+            return false;
+        }
+        NoteItem other = (NoteItem) o;
+        return id == other.id
+                && modified == other.modified
+                && tagId == other.tagId
+                && tagColor == other.tagColor
+                && equal(title, other.title)
+                && equal(preview, other.preview)
+                && equal(tagName, other.tagName);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (id ^ (id >>> 32));
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -103,6 +103,112 @@ public final class NotePad {
         public static final Uri LIVE_FOLDER_URI
                 = Uri.parse(SCHEME + AUTHORITY + PATH_LIVE_FOLDER);
 
+        /**
+         * 全文搜索URI的路径部分
+         */
+        private static final String PATH_SEARCH = "/notes/search";
+
+        /**
+         * 全文搜索的内容URI。搜索词通过 {@link #QUERY_PARAMETER_SEARCH} 查询参数传入，
+         * 返回按相关度排序的笔记，列与 {@link #NOTES_WITH_TAGS_URI} 相同。
+         */
+        public static final Uri SEARCH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+
+        /**
+         * 搜索URI中携带搜索词的查询参数名
+         */
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        /**
+         * 键集分页：只返回排在该修改时间之后（更早）的笔记，与 {@link #QUERY_PARAMETER_AFTER_ID} 一起
+         * 传入上一页最后一行的修改时间和ID。适用于 {@link #CONTENT_URI} 和 {@link #NOTES_WITH_TAGS_URI}，
+         * 带有分页参数时结果总是按 modified DESC, _id DESC 排序，调用方传入的排序被忽略。
+         */
+        public static final String QUERY_PARAMETER_AFTER_MODIFIED = "after_modified";
+
+        /**
+         * 键集分页：上一页最后一行的笔记ID，用于区分修改时间相同的笔记
+         */
+        public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
+        /**
+         * 键集分页：每页返回的最大行数
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * 按标签筛选笔记：逗号分隔的标签ID列表，例如 "1,3"。适用于 {@link #CONTENT_URI}、
+         * {@link #NOTES_WITH_TAGS_URI} 和 {@link #SEARCH_URI}，按笔记与标签的多对多关系匹配，
+         * 而不只是 {@link #COLUMN_NAME_TAG_ID} 指定的主标签。
+         */
+        public static final String QUERY_PARAMETER_TAGS = "tags";
+
+        /**
+         * 与 {@link #QUERY_PARAMETER_TAGS} 一起使用，取值为 {@link #TAG_MATCH_ANY}（默认）
+         * 或 {@link #TAG_MATCH_ALL}
+         */
+        public static final String QUERY_PARAMETER_TAG_MATCH = "tag_match";
+
+        /**
+         * 笔记带有所列标签中的任意一个即匹配
+         */
+        public static final String TAG_MATCH_ANY = "any";
+
+        /**
+         * 笔记带有所列的全部标签才匹配
+         */
+        public static final String TAG_MATCH_ALL = "all";
+
+        /**
+         * 条件读取：修改时间（毫秒）晚于该值的笔记返回完整的行，其他笔记返回存根行，
+         * 只有 {@link #_ID}、{@link #COLUMN_NAME_VERSION} 和 {@link #COLUMN_NAME_MODIFICATION_DATE}
+         * 有值，其余列为 null。客户端按修改时间识别存根行，沿用手中已有的内容。
+         * 适用于 {@link #CONTENT_URI} 和笔记ID URI。
+         */
+        public static final String QUERY_PARAMETER_IF_CHANGED_SINCE = "if_changed_since";
+
+        /**
+         * 条件读取：笔记的版本号等于该值时返回存根行（见 {@link #QUERY_PARAMETER_IF_CHANGED_SINCE}），
+         * 客户端按版本号识别。适用于笔记ID URI；与 if_changed_since 同时给出时任一条件表明有变化即返回完整的行。
+         */
+        public static final String QUERY_PARAMETER_IF_VERSION = "if_version";
+
+        /**
+         * 单个笔记的标签集合URI的路径段，附加在笔记ID URI之后：notes/#/tags。
+         * 查询返回该笔记的所有标签；插入时在值中给出 {@link #COLUMN_NAME_TAG_ID}；
+         * 删除 notes/#/tags/# 移除该笔记的一个标签。
+         */
+        public static final String PATH_SEGMENT_NOTE_TAGS = "tags";
+
+        /**
+         * 单个笔记的历史版本URI的路径段，附加在笔记ID URI之后：notes/#/revisions。
+         * 查询返回版本列表（不含内容），按版本号倒序；notes/#/revisions/# 返回按版本号重建的
+         * 该版本内容。版本由提供程序在写入笔记内容时记录，只读。
+         */
+        public static final String PATH_SEGMENT_REVISIONS = "revisions";
+
+        /**
+         * 单个笔记正文流URI的路径段，附加在笔记ID URI之后：notes/#/body。
+         * 通过 {@link android.content.ContentResolver#openInputStream} 读取，内容为 UTF-8 编码的
+         * 纯文本正文（不含标题）。正文分段从数据库读出，不受游标窗口大小的限制。
+         * 笔记在读取途中被修改或删除时数据流不完整，读到末尾后
+         * {@link android.os.ParcelFileDescriptor#checkError()} 抛出 IOException。
+         */
+        public static final String PATH_SEGMENT_BODY = "body";
+
+        /**
+         * 笔记与标签联接URI的路径部分
+         */
+        private static final String PATH_NOTES_WITH_TAGS = "/notes_with_tags";
+
+        /**
+         * 笔记列表联接其标签的内容URI。除笔记列外，每行还包含
+         * {@link #COLUMN_NAME_JOINED_TAG_NAME} 和 {@link #COLUMN_NAME_JOINED_TAG_COLOR}，
+         * 没有标签的笔记这两列为 null。
+         */
+        public static final Uri NOTES_WITH_TAGS_URI
+                = Uri.parse(SCHEME + AUTHORITY + PATH_NOTES_WITH_TAGS);
+
         /*
          * MIME类型定义
          */
@@ -117,6 +223,19 @@ public final class NotePad {
          */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note";
 
+        /**
+         * 导出笔记列表的数据流类型：每行一条笔记的 JSON 对象（JSON Lines）。
+         * 通过 {@link android.content.ContentResolver#openTypedAssetFileDescriptor} 打开
+         * {@link #CONTENT_URI}，可带 {@link #QUERY_PARAMETER_TAGS} 只导出带有指定标签的笔记。
+         * 同样支持 text/plain 和 {@link #EXPORT_TYPE_MARKDOWN}，笔记按 ID 顺序导出。
+         */
+        public static final String EXPORT_TYPE_JSON_LINES = "application/x-ndjson";
+
+        /**
+         * 导出笔记列表的数据流类型：每条笔记一个以标题为一级标题的 Markdown 段落
+         */
+        public static final String EXPORT_TYPE_MARKDOWN = "text/markdown";
+
         /**
          * 此表的默认排序顺序
          */
@@ -137,6 +256,12 @@ public final class NotePad {
          * <P>类型: TEXT</P>
          */
         public static final String COLUMN_NAME_NOTE = "note";
+
+        /**
+         * 笔记内容预览的列名，由提供程序在写入笔记内容时生成，列表只需读取这一列
+         * <P>类型: TEXT（笔记内容的前 100 个字符，超出部分以 "..." 结尾）</P>
+         */
+        public static final String COLUMN_NAME_PREVIEW = "preview";
 //        /**
 //         * 创建时间戳的列名
 //         * <P>类型: INTEGER (来自 System.curentTimeMillis() 的长整型)</P>
@@ -151,11 +276,19 @@ public final class NotePad {
 
 
         /**
-         * 标签ID的列名
+         * 主标签ID的列名。笔记的全部标签保存在 {@link #TABLE_NAME_NOTE_TAGS} 中，
+         * 该列是其中之一（没有标签时为 0），供只显示一个标签的界面使用
          * <P>类型: INTEGER</P>
          */
         public static final String COLUMN_NAME_TAG_ID = "tag_id";
 
+        /**
+         * 笔记的版本号，由提供程序在每次修改笔记时加 1，客户端写入的值被忽略。
+         * 客户端可以只读取这一列来判断手中的笔记是否仍是最新的
+         * <P>类型: INTEGER（新笔记为 1）</P>
+         */
+        public static final String COLUMN_NAME_VERSION = "version";
+
         /**
          * 标签表的表名
          */
@@ -171,6 +304,52 @@ public final class NotePad {
          */
         public static final String COLUMN_NAME_TAG_COLOR = "color";
 
+        /**
+         * 使用该标签的笔记数量的列名，由数据库触发器随笔记与标签关系的变化增量维护
+         * <P>类型: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_TAG_NOTE_COUNT = "note_count";
+
+        /**
+         * 笔记与标签多对多关系表的表名，每行是一对 (note_id, tag_id)
+         */
+        public static final String TABLE_NAME_NOTE_TAGS = "note_tags";
+
+        /**
+         * 笔记与标签关系表中笔记ID的列名
+         * <P>类型: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_ID = "note_id";
+
+        /**
+         * 笔记历史版本表的表名
+         */
+        public static final String TABLE_NAME_REVISIONS = "note_revisions";
+
+        /**
+         * 历史版本的版本号，每条笔记从 1 开始递增
+         * <P>类型: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_REVISION = "revision";
+
+        /**
+         * 版本列表中该版本是否保存了完整快照（否则只保存了相对上一版本的增量）
+         * <P>类型: INTEGER（0 或 1）</P>
+         */
+        public static final String COLUMN_NAME_REVISION_SNAPSHOT = "snapshot";
+
+        /**
+         * 联接查询中笔记所属标签名称的列名
+         * <P>类型: TEXT</P>
+         */
+        public static final String COLUMN_NAME_JOINED_TAG_NAME = "tag_name";
+
+        /**
+         * 联接查询中笔记所属标签颜色的列名
+         * <P>类型: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_JOINED_TAG_COLOR = "tag_color";
+
         // 标签URI定义
         private static final String PATH_TAGS = "/tags";
 
@@ -186,6 +365,10 @@ public final class NotePad {
         public static final Uri TAG_ID_URI_PATTERN = Uri.parse(
                 "content://" + AUTHORITY + "/tags/#");
 
+        // 历史版本 MIME 类型
+        public static final String REVISIONS_CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note.revision";
+        public static final String REVISION_CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note.revision";
+
         // 标签 MIME 类型
         public static final String CONTENT_TAG_TYPE = "vnd.android.cursor.dir/vnd.google.note.tag";
         public static final String CONTENT_TAG_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note.tag";
@@ -17,6 +17,11 @@ import java.util.Locale;
 
 public class NotePadAppWidget extends AppWidgetProvider {
 
+    // 上次显示的最新笔记，再次更新时按它的修改时间条件读取，没有变化则沿用显示的文本
+    private static long sLatestNoteId = -1;
+    private static long sLatestModified;
+    private static String sLatestNoteContent;
+
     @Override
     public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
         for (int appWidgetId : appWidgetIds) {
@@ -94,16 +99,23 @@ public class NotePadAppWidget extends AppWidgetProvider {
         return count;
     }
 
-    private static String getLatestNoteContent(Context context) {
+    private static synchronized String getLatestNoteContent(Context context) {
         String latestNoteContent = "[暂无内容]"; // 默认文本
+        Uri uri = NotePad.Notes.CONTENT_URI;
+        if (sLatestNoteId != -1) {
+            uri = uri.buildUpon().appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_IF_CHANGED_SINCE,
+                    String.valueOf(sLatestModified)).build();
+        }
         Cursor cursor = null;
         try {
             // 查询最新的一条笔记，按修改时间降序排列
             cursor = context.getContentResolver().query(
-                    NotePad.Notes.CONTENT_URI,
+                    uri,
                     new String[]{
-                            NotePad.Notes.COLUMN_NAME_NOTE, // 重点：查询笔记内容列
-                            NotePad.Notes.COLUMN_NAME_TITLE
+                            NotePad.Notes.COLUMN_NAME_PREVIEW, // 重点：查询笔记内容预览列，无需读取完整内容
+                            NotePad.Notes.COLUMN_NAME_TITLE,
+                            NotePad.Notes._ID,
+                            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
                     },
                     null,
                     null,
@@ -111,6 +123,20 @@ public class NotePadAppWidget extends AppWidgetProvider {
             );
 
             if (cursor != null && cursor.moveToFirst()) {
+                long id = cursor.getLong(2);
+                long modified = cursor.getLong(3);
+                if (id == sLatestNoteId && modified == sLatestModified) {
+                    // 存根行：最新的笔记没有变化
+                    return sLatestNoteContent;
+                }
+                if (modified <= sLatestModified && sLatestNoteId != -1) {
+                    // 最新的笔记换成了一条修改时间更早的笔记（上次显示的被删除），返回的是存根行，重新完整读取
+                    cursor.close();
+                    cursor = null;
+                    sLatestNoteId = -1;
+                    return getLatestNoteContent(context);
+                }
+
                 // 获取笔记内容
                 String content = cursor.getString(0);
                 String title = cursor.getString(1);
@@ -127,6 +153,11 @@ public class NotePadAppWidget extends AppWidgetProvider {
                 if (latestNoteContent.length() > maxLength) {
                     latestNoteContent = latestNoteContent.substring(0, maxLength) + "...";
                 }
+                sLatestNoteId = id;
+                sLatestModified = modified;
+                sLatestNoteContent = latestNoteContent;
+            } else {
+                sLatestNoteId = -1;
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -138,6 +169,7 @@ public class NotePadAppWidget extends AppWidgetProvider {
         }
         return latestNoteContent;
     }
+
     // 提供静态方法供其他组件手动更新Widget
     public static void updateAllWidgets(Context context) {
         AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
@@ -21,32 +21,49 @@ import com.example.android.notepad.NotePad;
 
 import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.ParcelFileDescriptor;
 import android.provider.LiveFolders;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.BufferedOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 提供对笔记数据库的访问。每个笔记有一个标题、笔记内容、创建日期和修改日期。
@@ -63,7 +80,38 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     /**
      * 数据库版本
      */
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 10;
+
+    /**
+     * WAL 自动检查点的阈值（页数），正常情况下由后台的被动检查点提前清理
+     */
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+
+    /**
+     * 每累计这么多次写操作，在后台执行一次被动检查点
+     */
+    private static final int CHECKPOINT_INTERVAL_WRITES = 100;
+
+    /**
+     * 预览列保留的笔记内容字符数
+     */
+    private static final int PREVIEW_LENGTH = 100;
+
+    /**
+     * 按ID读取的笔记行缓存的大小上限（估算的字节数）
+     */
+    private static final int NOTE_CACHE_BYTES = 1024 * 1024;
+
+    /**
+     * {@link #call(String, String, Bundle)} 的方法名，返回笔记行缓存的命中统计，
+     * 键见 {@link NoteRowCache#getStats()}
+     */
+    static final String METHOD_CACHE_STATS = "cache_stats";
+
+    /**
+     * 影子全文索引表，docid 与 notes 表的 _id 一一对应
+     */
+    private static final String TABLE_NAME_FTS = "notes_fts";
 
     /**
      * 用于从数据库中选择列的投影映射
@@ -76,15 +124,53 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     private static HashMap<String, String> sLiveFolderProjectionMap;
 
     /**
-     * 标准投影，用于普通笔记的相关列。
+     * 全文搜索使用的投影映射，列名与 sNotesWithTagsProjectionMap 相同
+     */
+    private static HashMap<String, String> sSearchProjectionMap;
+
+    /**
+     * 笔记联接标签时使用的投影映射，在笔记列之外提供标签名称和颜色
+     */
+    private static HashMap<String, String> sNotesWithTagsProjectionMap;
+
+    /**
+     * notes 左联接 tags 的表表达式，没有标签或标签已删除的笔记也会返回
+     */
+    private static final String NOTES_JOIN_TAGS = NotePad.Notes.TABLE_NAME
+            + " LEFT OUTER JOIN " + NotePad.Notes.TABLE_NAME_TAGS
+            + " ON " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_TAG_ID
+            + " = " + NotePad.Notes.TABLE_NAME_TAGS + "._id";
+
+    /**
+     * tags 联接 note_tags 的表表达式，用于查询单个笔记的所有标签
+     */
+    private static final String TAGS_JOIN_NOTE_TAGS = NotePad.Notes.TABLE_NAME_TAGS
+            + " JOIN " + NotePad.Notes.TABLE_NAME_NOTE_TAGS
+            + " ON " + NotePad.Notes.TABLE_NAME_NOTE_TAGS + "." + NotePad.Notes.COLUMN_NAME_TAG_ID
+            + " = " + NotePad.Notes.TABLE_NAME_TAGS + "._id";
+
+    /**
+     * 修改笔记行的 UPDATE 语句中递增版本号的赋值
+     */
+    private static final String VERSION_INCREMENT = NotePad.Notes.COLUMN_NAME_VERSION + " = "
+            + NotePad.Notes.COLUMN_NAME_VERSION + " + 1";
+
+    /**
+     * 打开笔记数据流时读取的列。正文不在其中，由 {@link NoteExporter#writeBody} 分段读取。
      */
     private static final String[] READ_NOTE_PROJECTION = new String[] {
-            NotePad.Notes._ID,               // 投影位置 0，笔记的 id
-            NotePad.Notes.COLUMN_NAME_NOTE,  // 投影位置 1，笔记的内容
-            NotePad.Notes.COLUMN_NAME_TITLE, // 投影位置 2，笔记的标题
+            NotePad.Notes._ID,                 // 投影位置 0，笔记的 id
+            NotePad.Notes.COLUMN_NAME_TITLE,   // 投影位置 1，笔记的标题
+            NotePad.Notes.COLUMN_NAME_VERSION, // 投影位置 2，笔记的版本号
     };
-    private static final int READ_NOTE_NOTE_INDEX = 1;
-    private static final int READ_NOTE_TITLE_INDEX = 2;
+    private static final int READ_NOTE_ID_INDEX = 0;
+    private static final int READ_NOTE_TITLE_INDEX = 1;
+    private static final int READ_NOTE_VERSION_INDEX = 2;
+
+    /**
+     * 数据流写入管道前的缓冲字节数
+     */
+    private static final int STREAM_BUFFER_BYTES = 64 * 1024;
 
     /*
      * Uri 匹配器使用的常量，用于根据传入 URI 的模式选择操作
@@ -98,6 +184,27 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // 传入的 URI 匹配 Live Folder URI 模式
     private static final int LIVE_FOLDER_NOTES = 3;
 
+    // 传入的 URI 匹配全文搜索 URI 模式
+    private static final int NOTES_SEARCH = 4;
+
+    // 传入的 URI 匹配笔记联接标签 URI 模式
+    private static final int NOTES_WITH_TAGS = 5;
+
+    // 传入的 URI 匹配单个笔记的标签集合 URI 模式
+    private static final int NOTE_TAGS = 6;
+
+    // 传入的 URI 匹配单个笔记的单个标签 URI 模式
+    private static final int NOTE_TAG_ID = 7;
+
+    // 传入的 URI 匹配单个笔记的历史版本列表 URI 模式
+    private static final int NOTE_REVISIONS = 8;
+
+    // 传入的 URI 匹配单个笔记的单个历史版本 URI 模式
+    private static final int NOTE_REVISION_ID = 9;
+
+    // 传入的 URI 匹配单个笔记的正文流 URI 模式
+    private static final int NOTE_BODY = 12;
+
     /**
      * UriMatcher 实例
      */
@@ -106,8 +213,42 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // 新 DatabaseHelper 的句柄。
     private DatabaseHelper mOpenHelper;
 
+    // 合并并延迟发送数据变更通知
+    private ChangeNotificationDispatcher mNotificationDispatcher;
+
+    // 最近按ID读取的笔记行
+    private final NoteRowCache mNoteCache = new NoteRowCache(NOTE_CACHE_BYTES);
+
+    // 上次检查点之后提交的写操作次数
+    private final AtomicInteger mWritesSinceCheckpoint = new AtomicInteger();
+
+    // 执行检查点的后台线程
+    private final ExecutorService mCheckpointExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * 写操作影响的笔记不超过此数量时逐条通知 notes/#，否则通知整个 notes 集合
+     */
+    private static final int SCOPED_NOTIFICATION_LIMIT = 16;
+
+    /**
+     * 当前线程正在执行的批量操作所积累的通知。批量操作期间单行操作不立即通知，
+     * 而是记在这里，事务提交后合并发送一次。
+     */
+    private final ThreadLocal<BatchNotifications> mBatchNotifications =
+            new ThreadLocal<BatchNotifications>();
+
     private static HashMap<String,String> sTagsProjectionMap;
 
+    /**
+     * 查询单个笔记的标签时使用的投影映射，列名与 sTagsProjectionMap 相同，按 tags 表限定
+     */
+    private static HashMap<String, String> sNoteTagsProjectionMap;
+
+    /**
+     * 历史版本列表的投影映射，不包含版本的内容
+     */
+    private static HashMap<String, String> sRevisionsProjectionMap;
+
 
     /**
      * 实例化并设置静态对象的代码块
@@ -127,12 +268,32 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // 路由到笔记 ID 操作
         sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#", NOTE_ID);
 
+        // 添加一个模式，将以 "notes/search" 结尾的 URI 路由到全文搜索操作
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", NOTES_SEARCH);
+
+        // 添加一个模式，将以 "notes_with_tags" 结尾的 URI 路由到联接查询操作
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes_with_tags", NOTES_WITH_TAGS);
+
         // 添加一个模式，将以 live_folders/notes 结尾的 URI 路由到
         // live folder 操作
         sUriMatcher.addURI(NotePad.AUTHORITY, "live_folders/notes", LIVE_FOLDER_NOTES);
 
         sUriMatcher.addURI(NotePad.AUTHORITY, "tags", 10); // 标签列表
         sUriMatcher.addURI(NotePad.AUTHORITY, "tags/#", 11); // 单个标签
+
+        // 添加模式，将 "notes/#/tags" 和 "notes/#/tags/#" 路由到笔记标签操作
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Notes.PATH_SEGMENT_NOTE_TAGS, NOTE_TAGS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Notes.PATH_SEGMENT_NOTE_TAGS + "/#",
+                NOTE_TAG_ID);
+
+        // 添加模式，将 "notes/#/revisions" 和 "notes/#/revisions/#" 路由到历史版本操作
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Notes.PATH_SEGMENT_REVISIONS,
+                NOTE_REVISIONS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Notes.PATH_SEGMENT_REVISIONS + "/#",
+                NOTE_REVISION_ID);
+
+        // 添加模式，将 "notes/#/body" 路由到笔记正文流
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Notes.PATH_SEGMENT_BODY, NOTE_BODY);
         /*
          * 创建并初始化一个返回所有列的投影映射
          */
@@ -150,6 +311,9 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // 将 "note" 映射到 "note"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_NOTE);
 
+        // 将 "preview" 映射到 "preview"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_PREVIEW, NotePad.Notes.COLUMN_NAME_PREVIEW);
+
 //        // 将 "created" 映射到 "created"
 //        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE,
 //                NotePad.Notes.COLUMN_NAME_CREATE_DATE);
@@ -174,6 +338,23 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 LiveFolders.NAME);
 
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_TAG_ID, NotePad.Notes.COLUMN_NAME_TAG_ID);
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_VERSION, NotePad.Notes.COLUMN_NAME_VERSION);
+
+        // 搜索时 notes 与 notes_fts 联接，title/note 列名在两表中重复，需要显式限定
+        sNotesWithTagsProjectionMap = new HashMap<String, String>();
+        for (String column : sNotesProjectionMap.keySet()) {
+            sNotesWithTagsProjectionMap.put(column,
+                    NotePad.Notes.TABLE_NAME + "." + column + " AS " + column);
+        }
+        sNotesWithTagsProjectionMap.put(NotePad.Notes.COLUMN_NAME_JOINED_TAG_NAME,
+                NotePad.Notes.TABLE_NAME_TAGS + "." + NotePad.Notes.COLUMN_NAME_TAG_NAME
+                        + " AS " + NotePad.Notes.COLUMN_NAME_JOINED_TAG_NAME);
+        sNotesWithTagsProjectionMap.put(NotePad.Notes.COLUMN_NAME_JOINED_TAG_COLOR,
+                NotePad.Notes.TABLE_NAME_TAGS + "." + NotePad.Notes.COLUMN_NAME_TAG_COLOR
+                        + " AS " + NotePad.Notes.COLUMN_NAME_JOINED_TAG_COLOR);
+
+        // 搜索结果同样联接标签，列表可以直接显示
+        sSearchProjectionMap = new HashMap<String, String>(sNotesWithTagsProjectionMap);
 
         // 添加标签投影映射
         sTagsProjectionMap = new HashMap<String, String>();
@@ -181,6 +362,22 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         sTagsProjectionMap.put(NotePad.Notes.COLUMN_NAME_TAG_NAME, NotePad.Notes.COLUMN_NAME_TAG_NAME);
         sTagsProjectionMap.put(NotePad.Notes.COLUMN_NAME_TAG_COLOR, NotePad.Notes.COLUMN_NAME_TAG_COLOR);
         sTagsProjectionMap.put("created_date", "created_date");
+        sTagsProjectionMap.put(NotePad.Notes.COLUMN_NAME_TAG_NOTE_COUNT, NotePad.Notes.COLUMN_NAME_TAG_NOTE_COUNT);
+
+        sNoteTagsProjectionMap = new HashMap<String, String>();
+        for (String column : sTagsProjectionMap.keySet()) {
+            sNoteTagsProjectionMap.put(column,
+                    NotePad.Notes.TABLE_NAME_TAGS + "." + column + " AS " + column);
+        }
+
+        sRevisionsProjectionMap = new HashMap<String, String>();
+        sRevisionsProjectionMap.put(NotePad.Notes._ID, NotePad.Notes._ID);
+        sRevisionsProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE_ID, NotePad.Notes.COLUMN_NAME_NOTE_ID);
+        sRevisionsProjectionMap.put(NotePad.Notes.COLUMN_NAME_REVISION, NotePad.Notes.COLUMN_NAME_REVISION);
+        sRevisionsProjectionMap.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+        sRevisionsProjectionMap.put(NotePad.Notes.COLUMN_NAME_REVISION_SNAPSHOT,
+                NoteRevisions.SNAPSHOT_EXPRESSION + " AS " + NotePad.Notes.COLUMN_NAME_REVISION_SNAPSHOT);
     }
 
     /**
@@ -193,6 +390,41 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
             // 调用超类构造函数，请求默认的游标工厂。
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+            // 使用预写日志：写事务只追加到 WAL 文件，列表、Widget 和标签对话框的读取
+            // 在其他连接上读取提交前的快照，不再等待保存大笔记的写事务结束。
+            // 读连接池的大小由系统按设备配置决定。
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        /**
+         * 每次打开连接时调用。提高自动检查点的阈值：提交时超过阈值才会在写线程上同步执行检查点，
+         * 平时由 {@link NotePadProvider} 在后台定期执行被动检查点，使写操作（例如主线程上的保存）
+         * 不必承担检查点的开销，同时 WAL 文件也不会无限增长。
+         */
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            super.onConfigure(db);
+            // PRAGMA 会返回结果行，需要用 rawQuery 执行；游标是惰性的，移动游标才会真正执行语句
+            Cursor cursor = db.rawQuery("PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES, null);
+            try {
+                cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * 执行一次被动检查点，把 WAL 中已提交的页写回数据库文件。
+         * 被动检查点不等待读者或写者，无法完成的部分留到下一次。
+         */
+        void checkpoint() {
+            Cursor cursor = getWritableDatabase().rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+            try {
+                cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
         }
 
         /**
@@ -207,7 +439,9 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
                     + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
                     + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
-                    + NotePad.Notes.COLUMN_NAME_TAG_ID + " INTEGER DEFAULT 0"
+                    + NotePad.Notes.COLUMN_NAME_TAG_ID + " INTEGER DEFAULT 0,"
+                    + NotePad.Notes.COLUMN_NAME_PREVIEW + " TEXT,"
+                    + NotePad.Notes.COLUMN_NAME_VERSION + " INTEGER NOT NULL DEFAULT 1"
                     + ");");
 
             // 创建 tags 表
@@ -215,9 +449,23 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     + "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
                     + NotePad.Notes.COLUMN_NAME_TAG_NAME + " TEXT NOT NULL,"  // 使用常量
                     + NotePad.Notes.COLUMN_NAME_TAG_COLOR + " INTEGER DEFAULT " + DEFAULT_TAG_COLOR + ","  // 使用常量
-                    + "created_date INTEGER"
+                    + "created_date INTEGER,"
+                    + NotePad.Notes.COLUMN_NAME_TAG_NOTE_COUNT + " INTEGER NOT NULL DEFAULT 0"
                     + ");");
 
+            // 创建列表排序和标签筛选使用的索引
+            createNotesIndexes(db);
+
+            // 创建笔记与标签的多对多关系表及维护它的触发器
+            createNoteTagsTable(db);
+            createNoteTagsTriggers(db);
+
+            // 创建笔记的历史版本表
+            NoteRevisions.createTable(db);
+
+            // 创建全文搜索索引
+            createSearchIndex(db);
+
             // 插入默认标签
             ContentValues values = new ContentValues();
             long now = System.currentTimeMillis();
@@ -309,6 +557,284 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     db.insert(NotePad.Notes.TABLE_NAME_TAGS, null, values);
                 }
             }
+
+            if (oldVersion < 4) {
+                // 创建全文索引表，索引内容在版本 5 的迁移中统一重建
+                createSearchIndex(db);
+            }
+
+            if (oldVersion < 5) {
+                // 索引改为写入经过中日韩二元组切分的文本，由提供程序维护，不再使用触发器复制原文
+                db.execSQL("DROP TRIGGER IF EXISTS notes_fts_ai");
+                db.execSQL("DROP TRIGGER IF EXISTS notes_fts_au");
+                rebuildSearchIndex(db);
+            }
+
+            if (oldVersion < 6) {
+                // 添加预览列，并用 makePreview() 为已有笔记生成预览，与之后写入的预览一致
+                db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME
+                        + " ADD COLUMN " + NotePad.Notes.COLUMN_NAME_PREVIEW + " TEXT");
+                backfillPreviews(db);
+            }
+
+            if (oldVersion < 7) {
+                createNotesIndexes(db);
+            }
+
+            if (oldVersion < 8) {
+                // 笔记改为可以有多个标签：已有笔记的 tag_id 作为它的第一个关联（指向已删除标签的除外），
+                // 再按关联表一次算出每个标签的笔记数，之后由触发器增量维护
+                db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME_TAGS + " ADD COLUMN "
+                        + NotePad.Notes.COLUMN_NAME_TAG_NOTE_COUNT + " INTEGER NOT NULL DEFAULT 0");
+                createNoteTagsTable(db);
+                db.execSQL("INSERT INTO " + NotePad.Notes.TABLE_NAME_NOTE_TAGS + " ("
+                        + NotePad.Notes.COLUMN_NAME_NOTE_ID + ", " + NotePad.Notes.COLUMN_NAME_TAG_ID + ")"
+                        + " SELECT " + NotePad.Notes._ID + ", " + NotePad.Notes.COLUMN_NAME_TAG_ID
+                        + " FROM " + NotePad.Notes.TABLE_NAME
+                        + " WHERE " + NotePad.Notes.COLUMN_NAME_TAG_ID + " IN (SELECT _id FROM "
+                        + NotePad.Notes.TABLE_NAME_TAGS + ")");
+                db.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME_TAGS + " SET "
+                        + NotePad.Notes.COLUMN_NAME_TAG_NOTE_COUNT + " = (SELECT COUNT(*) FROM "
+                        + NotePad.Notes.TABLE_NAME_NOTE_TAGS + " WHERE "
+                        + NotePad.Notes.TABLE_NAME_NOTE_TAGS + "." + NotePad.Notes.COLUMN_NAME_TAG_ID
+                        + " = " + NotePad.Notes.TABLE_NAME_TAGS + "._id)");
+                createNoteTagsTriggers(db);
+            }
+
+            if (oldVersion < 9) {
+                // 已有笔记的第一个版本在下次修改内容时记录
+                NoteRevisions.createTable(db);
+            }
+
+            if (oldVersion < 10) {
+                db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                        + NotePad.Notes.COLUMN_NAME_VERSION + " INTEGER NOT NULL DEFAULT 1");
+            }
+        }
+
+        /**
+         * 创建 notes 表的二级索引，使热点查询按索引顺序读取而不是全表扫描后临时排序：
+         * 列表按 modified 倒序（包括小组件的 LIMIT 1）使用 (modified)，
+         * 按标签筛选再按 modified 倒序使用 (tag_id, modified)。
+         */
+        private static void createNotesIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS notes_modified_idx ON " + NotePad.Notes.TABLE_NAME
+                    + " (" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS notes_tag_modified_idx ON " + NotePad.Notes.TABLE_NAME
+                    + " (" + NotePad.Notes.COLUMN_NAME_TAG_ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+        }
+
+        /**
+         * 创建笔记与标签的关系表。主键 (note_id, tag_id) 即按笔记查标签的索引，
+         * WITHOUT ROWID 使关系行直接存放在主键 B 树中；(tag_id, note_id) 索引用于按标签筛选笔记，
+         * 筛选子查询只读这个索引即可得到笔记 ID。
+         */
+        private static void createNoteTagsTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + NotePad.Notes.TABLE_NAME_NOTE_TAGS + " ("
+                    + NotePad.Notes.COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                    + NotePad.Notes.COLUMN_NAME_TAG_ID + " INTEGER NOT NULL,"
+                    + "PRIMARY KEY (" + NotePad.Notes.COLUMN_NAME_NOTE_ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_TAG_ID + ")"
+                    + ") WITHOUT ROWID;");
+            db.execSQL("CREATE INDEX note_tags_tag_idx ON " + NotePad.Notes.TABLE_NAME_NOTE_TAGS
+                    + " (" + NotePad.Notes.COLUMN_NAME_TAG_ID + ", " + NotePad.Notes.COLUMN_NAME_NOTE_ID + ");");
+        }
+
+        /**
+         * 创建维护关系表和标签计数的触发器：
+         * 关系行增删时增减对应标签的 note_count，读取计数不再需要 COUNT(*)；
+         * 笔记的主标签 tag_id 被设置或替换时同步关系表（旧的主标签关联被替换，其他标签保留）；
+         * 删除笔记时删除它的所有关联。
+         */
+        private static void createNoteTagsTriggers(SQLiteDatabase db) {
+            String noteTags = NotePad.Notes.TABLE_NAME_NOTE_TAGS;
+            String tags = NotePad.Notes.TABLE_NAME_TAGS;
+            String notes = NotePad.Notes.TABLE_NAME;
+            String count = NotePad.Notes.COLUMN_NAME_TAG_NOTE_COUNT;
+            String noteId = NotePad.Notes.COLUMN_NAME_NOTE_ID;
+            String tagId = NotePad.Notes.COLUMN_NAME_TAG_ID;
+
+            db.execSQL("CREATE TRIGGER note_tags_ai AFTER INSERT ON " + noteTags
+                    + " BEGIN UPDATE " + tags + " SET " + count + " = " + count + " + 1"
+                    + " WHERE _id = new." + tagId + "; END;");
+            db.execSQL("CREATE TRIGGER note_tags_ad AFTER DELETE ON " + noteTags
+                    + " BEGIN UPDATE " + tags + " SET " + count + " = " + count + " - 1"
+                    + " WHERE _id = old." + tagId + "; END;");
+
+            db.execSQL("CREATE TRIGGER notes_tag_ai AFTER INSERT ON " + notes
+                    + " WHEN new." + tagId + " IN (SELECT _id FROM " + tags + ")"
+                    + " BEGIN INSERT OR IGNORE INTO " + noteTags + " (" + noteId + ", " + tagId + ")"
+                    + " VALUES (new." + NotePad.Notes._ID + ", new." + tagId + "); END;");
+            db.execSQL("CREATE TRIGGER notes_tag_au AFTER UPDATE OF " + tagId + " ON " + notes
+                    + " WHEN new." + tagId + " IS NOT old." + tagId
+                    + " BEGIN DELETE FROM " + noteTags + " WHERE " + noteId + " = old." + NotePad.Notes._ID
+                    + " AND " + tagId + " = old." + tagId + ";"
+                    + " INSERT OR IGNORE INTO " + noteTags + " (" + noteId + ", " + tagId + ")"
+                    + " SELECT new." + NotePad.Notes._ID + ", new." + tagId
+                    + " WHERE new." + tagId + " IN (SELECT _id FROM " + tags + "); END;");
+            db.execSQL("CREATE TRIGGER notes_tag_bd BEFORE DELETE ON " + notes
+                    + " BEGIN DELETE FROM " + noteTags + " WHERE " + noteId + " = old." + NotePad.Notes._ID
+                    + "; END;");
+        }
+
+        /**
+         * 创建 notes 表的 FTS4 影子表。写入的是 {@link SearchTokenizer#normalizeForIndex(String)}
+         * 处理后的文本，新增和修改由提供程序在同一事务中同步，删除由触发器同步。
+         * 搜索只读取倒排索引，不再逐行扫描笔记正文。
+         */
+        private static void createSearchIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE VIRTUAL TABLE " + TABLE_NAME_FTS + " USING fts4("
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                    + NotePad.Notes.COLUMN_NAME_NOTE
+                    + ");");
+
+            // 删除笔记时移除索引
+            db.execSQL("CREATE TRIGGER notes_fts_bd BEFORE DELETE ON " + NotePad.Notes.TABLE_NAME
+                    + " BEGIN DELETE FROM " + TABLE_NAME_FTS + " WHERE docid = old." + NotePad.Notes._ID
+                    + "; END;");
+        }
+
+        /**
+         * 为已有笔记生成预览。只读取内容的前 PREVIEW_LENGTH + 1 个字符：SQLite 按码点计数，
+         * 读到的 UTF-16 单元不少于这个数，足以让 makePreview() 得出与完整内容相同的结果，
+         * 长笔记也不会超出游标窗口。
+         */
+        private static void backfillPreviews(SQLiteDatabase db) {
+            Cursor cursor = db.query(NotePad.Notes.TABLE_NAME,
+                    new String[] {
+                            NotePad.Notes._ID,
+                            "substr(" + NotePad.Notes.COLUMN_NAME_NOTE + ", 1, " + (PREVIEW_LENGTH + 1) + ")"
+                    },
+                    NotePad.Notes.COLUMN_NAME_NOTE + " IS NOT NULL", null, null, null, null);
+            SQLiteStatement update = db.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                    + " SET " + NotePad.Notes.COLUMN_NAME_PREVIEW + " = ? WHERE "
+                    + NotePad.Notes._ID + " = ?");
+            try {
+                while (cursor.moveToNext()) {
+                    update.bindString(1, makePreview(cursor.getString(1)));
+                    update.bindLong(2, cursor.getLong(0));
+                    update.executeUpdateDelete();
+                }
+            } finally {
+                update.close();
+                cursor.close();
+            }
+        }
+
+        /**
+         * 清空并按 notes 表的当前内容重建全文索引。
+         */
+        private static void rebuildSearchIndex(SQLiteDatabase db) {
+            db.execSQL("DELETE FROM " + TABLE_NAME_FTS);
+            Cursor cursor = db.query(NotePad.Notes.TABLE_NAME,
+                    new String[] {
+                            NotePad.Notes._ID,
+                            NotePad.Notes.COLUMN_NAME_TITLE,
+                            NotePad.Notes.COLUMN_NAME_NOTE
+                    },
+                    null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    indexNote(db, cursor.getLong(0), cursor.getString(1), cursor.getString(2));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * 生成笔记内容的预览：前 {@link #PREVIEW_LENGTH} 个字符，超出时以 "..." 结尾。
+     * 截断位置不会拆开代理对。
+     */
+    static String makePreview(String note) {
+        if (note == null || note.length() <= PREVIEW_LENGTH) {
+            return note;
+        }
+        int end = PREVIEW_LENGTH;
+        if (Character.isHighSurrogate(note.charAt(end - 1))) {
+            end--;
+        }
+        return note.substring(0, end) + "...";
+    }
+
+    /**
+     * 将一条笔记写入全文索引，替换该笔记已有的索引行。调用方负责事务。
+     */
+    private static void indexNote(SQLiteDatabase db, long noteId, String title, String note) {
+        String[] docId = new String[] { String.valueOf(noteId) };
+        db.delete(TABLE_NAME_FTS, "docid = ?", docId);
+        ContentValues values = new ContentValues();
+        values.put("docid", noteId);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, SearchTokenizer.normalizeForIndex(title));
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, SearchTokenizer.normalizeForIndex(note));
+        db.insert(TABLE_NAME_FTS, null, values);
+    }
+
+    /**
+     * 返回 notes 表中满足条件的笔记 ID。在更新之前调用，以便更新后重建这些笔记的索引。
+     */
+    private static long[] queryNoteIds(SQLiteDatabase db, String where, String[] whereArgs) {
+        return queryNoteIds(db, where, whereArgs, null);
+    }
+
+    /**
+     * 返回 notes 表中满足条件的笔记 ID，最多 limit 个，limit 为 null 时不限制。
+     */
+    private static long[] queryNoteIds(SQLiteDatabase db, String where, String[] whereArgs,
+                                       String limit) {
+        Cursor cursor = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                where, whereArgs, null, null, null, limit);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 按更新后的标题和内容重建给定笔记的索引。新值取自更新的值映射，值映射中没有的那一列
+     * 用编译的语句逐条读出，不经过游标窗口，超过游标窗口大小的正文也能读取。调用方负责事务。
+     */
+    private static void reindexNotes(SQLiteDatabase db, long[] noteIds, ContentValues values) {
+        boolean hasTitle = values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE);
+        boolean hasNote = values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE);
+        String title = values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE);
+        String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+
+        SQLiteStatement statement = null;
+        if (!hasTitle || !hasNote) {
+            statement = db.compileStatement("SELECT "
+                    + (hasTitle ? NotePad.Notes.COLUMN_NAME_NOTE : NotePad.Notes.COLUMN_NAME_TITLE)
+                    + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ?");
+        }
+        try {
+            for (long noteId : noteIds) {
+                if (statement != null) {
+                    statement.bindLong(1, noteId);
+                    String stored;
+                    try {
+                        stored = statement.simpleQueryForString();
+                    } catch (SQLiteDoneException e) {
+                        continue;
+                    }
+                    if (hasTitle) {
+                        note = stored;
+                    } else {
+                        title = stored;
+                    }
+                }
+                indexNote(db, noteId, title, note);
+            }
+        } finally {
+            if (statement != null) {
+                statement.close();
+            }
         }
     }
 
@@ -322,6 +848,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // 创建一个新的辅助对象。请注意，数据库本身直到有东西尝试访问它时才会打开，
         // 并且仅当它尚不存在时才会创建。
         mOpenHelper = new DatabaseHelper(getContext());
+        mNotificationDispatcher = new ChangeNotificationDispatcher(getContext());
 
         // 假设任何失败都会通过抛出的异常报告。
         return true;
@@ -338,7 +865,117 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * 支持取消的查询。客户端取消 {@link CancellationSignal} 后，正在 SQLite 中执行的查询
+     * （包括填充游标窗口）会被中止并抛出 {@link android.os.OperationCanceledException}。
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
+
+        int uriMatch = sUriMatcher.match(uri);
+
+        // 按ID读取整条笔记的查询优先从缓存返回。批量操作中读到的可能是尚未提交的内容，不经过缓存
+        if (uriMatch == NOTE_ID && selection == null && NoteRowCache.isCacheable(projection)
+                && mBatchNotifications.get() == null) {
+            return queryCachedNote(uri, projection, cancellationSignal);
+        }
+
+        // 单个历史版本由最近的快照和之后的增量重建，不是表中的一行
+        if (uriMatch == NOTE_REVISION_ID) {
+            List<String> segments = uri.getPathSegments();
+            Cursor c = NoteRevisions.queryRevision(mOpenHelper.getReadableDatabase(),
+                    Long.parseLong(segments.get(NotePad.Notes.NOTE_ID_PATH_POSITION)),
+                    Long.parseLong(segments.get(3)), projection);
+            c.setNotificationUri(getContext().getContentResolver(), uri);
+            return c;
+        }
+
+        SQLiteQueryBuilder qb = newQueryBuilder(uri, uriMatch);
+        String orderBy = resolveSortOrder(uri, uriMatch, sortOrder);
+        String limit = resolveLimit(uri, uriMatch);
+
+        // 以"读取"模式打开数据库对象，因为不需要进行写入。
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+
+        /*
+         * 执行查询。如果尝试读取数据库时没有问题，则返回一个 Cursor
+         * 对象；否则，游标变量包含 null。如果没有选择任何记录，则 Cursor 对象为空，并且 Cursor.getCount() 返回 0。
+         */
+        Cursor c = qb.query(
+                db,                // 要查询的数据库
+                projection,        // 要从查询返回的列
+                selection,         // where 子句的列
+                selectionArgs,     // where 子句的值
+                null,              // 不对行进行分组
+                null,              // 不按行组过滤
+                orderBy,           // 排序顺序
+                limit,             // 分页时限制行数，否则为 null
+                cancellationSignal // 客户端可用来中止查询
+        );
+
+        // 告诉 Cursor 监视哪个 URI，以便它知道其源数据何时更改。
+        // 搜索和联接结果随任意笔记的变化而变化，因此监视整个 notes URI。
+        if (uriMatch == NOTES_SEARCH || uriMatch == NOTES_WITH_TAGS) {
+            c.setNotificationUri(getContext().getContentResolver(), NotePad.Notes.CONTENT_URI);
+        } else {
+            c.setNotificationUri(getContext().getContentResolver(), uri);
+        }
+        return c;
+    }
+
+    /**
+     * 从缓存返回单条笔记，未命中时从数据库读取整行放入缓存。
+     */
+    private Cursor queryCachedNote(Uri uri, String[] projection, CancellationSignal cancellationSignal) {
+        long noteId = ContentUris.parseId(uri);
+        Object[] row = mNoteCache.get(noteId);
+        if (row == null) {
+            // 先取得代数：读取期间有写操作使该行失效时，读到的行不会放入缓存
+            long generation = mNoteCache.generation();
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            Cursor cursor = db.query(false, NotePad.Notes.TABLE_NAME, NoteRowCache.COLUMNS,
+                    NotePad.Notes._ID + " = " + noteId, null, null, null, null, null, cancellationSignal);
+            try {
+                if (cursor.moveToFirst()) {
+                    row = NoteRowCache.readRow(cursor);
+                    mNoteCache.put(noteId, row, generation);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        // 条件读取：笔记没有变化时只返回存根行
+        if (row != null && !isChanged(uri, row)) {
+            row = NoteRowCache.stub(row);
+        }
+
+        Cursor c = NoteRowCache.toCursor(row, projection);
+        c.setNotificationUri(getContext().getContentResolver(), uri);
+        return c;
+    }
+
+    /**
+     * 返回笔记行缓存的统计，方法名为 {@link #METHOD_CACHE_STATS}。
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (METHOD_CACHE_STATS.equals(method)) {
+            return mNoteCache.getStats();
+        }
+        return super.call(method, arg, extras);
+    }
 
+    /**
+     * 按 URI 类型创建查询构建器，设置表、投影映射和 URI 隐含的 where 条件。
+     *
+     * @throws IllegalArgumentException 如果传入的 URI 模式无效。
+     */
+    private SQLiteQueryBuilder newQueryBuilder(Uri uri, int uriMatch) {
         // 构造一个新的查询构建器并设置其表名
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         qb.setTables(NotePad.Notes.TABLE_NAME);
@@ -346,10 +983,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         /**
          * 根据 URI 模式匹配选择投影并调整 "where" 子句。
          */
-        switch (sUriMatcher.match(uri)) {
+        switch (uriMatch) {
             // 如果传入的 URI 是针对 notes，选择 Notes 投影
             case NOTES:
-                qb.setProjectionMap(sNotesProjectionMap);
+                qb.setProjectionMap(notesProjectionMap(uri, uriMatch));
                 break;
 
             /* 如果传入的 URI 是针对由其 ID 标识的单个笔记，选择
@@ -357,7 +994,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
              * 它选择那个单个笔记
              */
             case NOTE_ID:
-                qb.setProjectionMap(sNotesProjectionMap);
+                qb.setProjectionMap(notesProjectionMap(uri, uriMatch));
                 qb.appendWhere(
                         NotePad.Notes._ID +    // ID 列的名称
                                 "=" +
@@ -370,6 +1007,27 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 qb.setProjectionMap(sLiveFolderProjectionMap);
                 break;
 
+            case NOTES_SEARCH:
+                // 全文搜索：通过 FTS 索引定位匹配的 docid，再按主键取回笔记行
+                qb.setTables(NOTES_JOIN_TAGS + " JOIN " + TABLE_NAME_FTS
+                        + " ON " + TABLE_NAME_FTS + ".docid = " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID);
+                qb.setProjectionMap(sSearchProjectionMap);
+                String match = SearchTokenizer.buildMatchQuery(uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH));
+                if (match == null) {
+                    // 没有可搜索的词，返回空结果
+                    qb.appendWhere("0");
+                } else {
+                    qb.appendWhere(TABLE_NAME_FTS + " MATCH ");
+                    qb.appendWhereEscapeString(match);
+                }
+                break;
+
+            case NOTES_WITH_TAGS:
+                // 笔记列表连同标签名称和颜色一次查出，列表无需再逐行查询标签
+                qb.setTables(NOTES_JOIN_TAGS);
+                qb.setProjectionMap(sNotesWithTagsProjectionMap);
+                break;
+
             case 10: // 标签列表
                 qb.setTables(NotePad.Notes.TABLE_NAME_TAGS);
                 qb.setProjectionMap(sTagsProjectionMap);
@@ -381,17 +1039,227 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 qb.appendWhere("_id = " + uri.getLastPathSegment());
                 break;
 
+            case NOTE_TAGS:
+                // 单个笔记的所有标签，按主键 (note_id, tag_id) 定位关系行
+                qb.setTables(TAGS_JOIN_NOTE_TAGS);
+                qb.setProjectionMap(sNoteTagsProjectionMap);
+                qb.appendWhere(NotePad.Notes.TABLE_NAME_NOTE_TAGS + "." + NotePad.Notes.COLUMN_NAME_NOTE_ID
+                        + " = " + uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+                break;
+
+            case NOTE_REVISIONS:
+                // 单个笔记的版本列表，按唯一约束 (note_id, revision) 的索引读取
+                qb.setTables(NotePad.Notes.TABLE_NAME_REVISIONS);
+                qb.setProjectionMap(sRevisionsProjectionMap);
+                qb.appendWhere(NotePad.Notes.COLUMN_NAME_NOTE_ID
+                        + " = " + uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+                break;
+
             default:
                 // 如果 URI 不匹配任何已知模式，抛出异常。
                 throw new IllegalArgumentException("未知 URI " + uri);
         }
 
+        if (uriMatch == NOTES || uriMatch == NOTES_WITH_TAGS || uriMatch == NOTES_SEARCH) {
+            appendTagFilterWhere(qb, uri);
+        }
+        if (isKeysetPaged(uri, uriMatch)) {
+            appendKeysetWhere(qb, uri);
+        }
+        return qb;
+    }
+
+    /**
+     * 按 {@link NotePad.Notes#QUERY_PARAMETER_TAGS} 追加标签筛选条件。子查询只读取
+     * (tag_id, note_id) 索引得到笔记 ID，再按主键取回笔记；要求全部匹配时按笔记分组，
+     * 只保留命中标签数等于所列标签数的笔记。
+     */
+    private static void appendTagFilterWhere(SQLiteQueryBuilder qb, Uri uri) {
+        String tagsParameter = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_TAGS);
+        if (tagsParameter == null) {
+            return;
+        }
+
+        // 去重并排序，重复的标签 ID 会使"全部匹配"的计数永远不相等
+        TreeSet<Long> tagIds = new TreeSet<Long>();
+        for (String value : TextUtils.split(tagsParameter, ",")) {
+            value = value.trim();
+            if (value.length() > 0) {
+                tagIds.add(parseLongParameter(uri, value));
+            }
+        }
+        if (tagIds.isEmpty()) {
+            throw new IllegalArgumentException("无效的标签参数 " + uri);
+        }
+
+        String match = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_TAG_MATCH);
+        boolean matchAll;
+        if (match == null || NotePad.Notes.TAG_MATCH_ANY.equals(match)) {
+            matchAll = false;
+        } else if (NotePad.Notes.TAG_MATCH_ALL.equals(match)) {
+            matchAll = true;
+        } else {
+            throw new IllegalArgumentException("无效的标签匹配方式 " + uri);
+        }
+
+        StringBuilder where = new StringBuilder();
+        where.append(NotePad.Notes.TABLE_NAME).append('.').append(NotePad.Notes._ID)
+                .append(" IN (SELECT ").append(NotePad.Notes.COLUMN_NAME_NOTE_ID)
+                .append(" FROM ").append(NotePad.Notes.TABLE_NAME_NOTE_TAGS)
+                .append(" WHERE ").append(NotePad.Notes.COLUMN_NAME_TAG_ID);
+        if (tagIds.size() == 1) {
+            where.append(" = ").append(tagIds.first());
+        } else {
+            where.append(" IN (").append(TextUtils.join(",", tagIds)).append(')');
+            if (matchAll) {
+                where.append(" GROUP BY ").append(NotePad.Notes.COLUMN_NAME_NOTE_ID)
+                        .append(" HAVING COUNT(*) = ").append(tagIds.size());
+            }
+        }
+        where.append(')');
+        qb.appendWhere(where);
+    }
+
+    /**
+     * 返回 notes 和 notes/# 查询使用的投影映射。带有条件读取参数时，除存根行保留的列以外，
+     * 每列都改为 CASE 表达式，未变化的笔记在 SQLite 中就取 null，不经过游标窗口和 binder 传输内容。
+     */
+    private static HashMap<String, String> notesProjectionMap(Uri uri, int uriMatch) {
+        String changed = changedCondition(uri, uriMatch);
+        if (changed == null) {
+            return sNotesProjectionMap;
+        }
+        HashMap<String, String> map = new HashMap<String, String>(sNotesProjectionMap);
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            String column = entry.getKey();
+            if (!isStubColumn(column)) {
+                entry.setValue("CASE WHEN " + changed + " THEN " + entry.getValue() + " END AS " + column);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * 返回条件读取中"笔记有变化"的 SQL 条件，没有条件读取参数时返回 null。
+     */
+    private static String changedCondition(Uri uri, int uriMatch) {
+        String since = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_IF_CHANGED_SINCE);
+        String version = uriMatch == NOTE_ID
+                ? uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_IF_VERSION) : null;
+        if (since == null && version == null) {
+            return null;
+        }
+        StringBuilder condition = new StringBuilder("(");
+        if (since != null) {
+            condition.append(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE).append(" > ")
+                    .append(parseLongParameter(uri, since));
+        }
+        if (version != null) {
+            if (since != null) {
+                condition.append(" OR ");
+            }
+            condition.append(NotePad.Notes.COLUMN_NAME_VERSION).append(" != ")
+                    .append(parseLongParameter(uri, version));
+        }
+        return condition.append(")").toString();
+    }
+
+    /**
+     * 按条件读取参数判断缓存的行是否有变化，与 {@link #changedCondition} 的条件相同
+     */
+    private static boolean isChanged(Uri uri, Object[] row) {
+        String since = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_IF_CHANGED_SINCE);
+        String version = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_IF_VERSION);
+        if (since == null && version == null) {
+            return true;
+        }
+        Long modified = NoteRowCache.modified(row);
+        return (since != null && modified != null && modified > parseLongParameter(uri, since))
+                || (version != null && NoteRowCache.version(row) != parseLongParameter(uri, version));
+    }
+
+    private static boolean isStubColumn(String column) {
+        return NotePad.Notes._ID.equals(column)
+                || NotePad.Notes.COLUMN_NAME_VERSION.equals(column)
+                || NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE.equals(column);
+    }
+
+    /**
+     * 笔记列表 URI 带有任一分页参数时按键集分页处理。
+     */
+    private static boolean isKeysetPaged(Uri uri, int uriMatch) {
+        if (uriMatch != NOTES && uriMatch != NOTES_WITH_TAGS) {
+            return false;
+        }
+        return uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT) != null
+                || uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_MODIFIED) != null;
+    }
+
+    /**
+     * 追加"排在 (after_modified, after_id) 之后"的条件。按 (modified DESC, _id DESC) 排序时，
+     * 即 modified &lt; m OR (modified = m AND _id &lt; id)；写成 modified &lt;= m AND (...) 的形式，
+     * 让 SQLite 把 modified &lt;= m 用作索引的范围起点，直接定位到下一页而不是从头跳过已读的行。
+     * 列名需要限定表名，联接查询中 tags 表也有 _id 列。
+     */
+    private static void appendKeysetWhere(SQLiteQueryBuilder qb, Uri uri) {
+        String afterModified = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_MODIFIED);
+        if (afterModified == null) {
+            // 第一页
+            return;
+        }
+        String afterId = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_ID);
+        long modified = parseLongParameter(uri, afterModified);
+        String modifiedColumn = NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE;
+        String idColumn = NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID;
+        if (afterId == null) {
+            qb.appendWhere(modifiedColumn + " < " + modified);
+        } else {
+            long id = parseLongParameter(uri, afterId);
+            qb.appendWhere(modifiedColumn + " <= " + modified + " AND (" + modifiedColumn + " < " + modified
+                    + " OR " + idColumn + " < " + id + ")");
+        }
+    }
+
+    /**
+     * 返回分页查询的 LIMIT，未分页时返回 null。
+     */
+    private static String resolveLimit(Uri uri, int uriMatch) {
+        if (!isKeysetPaged(uri, uriMatch)) {
+            return null;
+        }
+        String limit = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT);
+        if (limit == null) {
+            return null;
+        }
+        long rows = parseLongParameter(uri, limit);
+        if (rows <= 0) {
+            throw new IllegalArgumentException("无效的分页大小 " + uri);
+        }
+        return String.valueOf(rows);
+    }
+
+    private static long parseLongParameter(Uri uri, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("无效的查询参数 " + uri);
+        }
+    }
 
+    /**
+     * 返回查询实际使用的排序子句：调用方未指定时使用该 URI 类型的默认排序。
+     */
+    private static String resolveSortOrder(Uri uri, int uriMatch, String sortOrder) {
+        if (isKeysetPaged(uri, uriMatch)) {
+            // 分页条件依赖固定的排序，(modified) 索引的键末尾隐含 rowid，两列排序都可以按索引顺序读取
+            return NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC, "
+                    + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " DESC";
+        }
         String orderBy;
-// 根据 URI 类型决定排序方式
-        switch (sUriMatcher.match(uri)) {
+        switch (uriMatch) {
             case 10: // 标签列表
             case 11: // 单个标签
+            case NOTE_TAGS:
                 // 标签表使用创建日期排序
                 if (TextUtils.isEmpty(sortOrder)) {
                     orderBy = "created_date ASC";
@@ -399,36 +1267,42 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     orderBy = sortOrder;
                 }
                 break;
-            default:
-                // 笔记表使用默认排序
+            case NOTE_REVISIONS:
+                // 版本列表默认最新的版本在前
                 if (TextUtils.isEmpty(sortOrder)) {
-                    orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
+                    orderBy = NotePad.Notes.COLUMN_NAME_REVISION + " DESC";
                 } else {
                     orderBy = sortOrder;
                 }
                 break;
-        }
-
-        // 以"读取"模式打开数据库对象，因为不需要进行写入。
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-
-        /*
-         * 执行查询。如果尝试读取数据库时没有问题，则返回一个 Cursor
-         * 对象；否则，游标变量包含 null。如果没有选择任何记录，则 Cursor 对象为空，并且 Cursor.getCount() 返回 0。
-         */
-        Cursor c = qb.query(
-                db,            // 要查询的数据库
-                projection,    // 要从查询返回的列
-                selection,     // where 子句的列
-                selectionArgs, // where 子句的值
-                null,          // 不对行进行分组
-                null,          // 不按行组过滤
-                orderBy        // 排序顺序
-        );
+            case NOTES_SEARCH:
+                // 搜索结果默认按命中次数排序，命中次数相同时较新的笔记在前
+                if (TextUtils.isEmpty(sortOrder)) {
+                    orderBy = "length(offsets(" + TABLE_NAME_FTS + ")) DESC, "
+                            + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC";
+                } else {
+                    orderBy = sortOrder;
+                }
+                break;
+            default:
+                // 笔记表使用默认排序
+                if (TextUtils.isEmpty(sortOrder)) {
+                    orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
+                } else {
+                    orderBy = sortOrder;
+                }
+                break;
+        }
+        return orderBy;
+    }
 
-        // 告诉 Cursor 监视哪个 URI，以便它知道其源数据何时更改
-        c.setNotificationUri(getContext().getContentResolver(), uri);
-        return c;
+    /**
+     * 返回提供程序对给定查询生成的 SQL，测试用它检查热点查询的执行计划。
+     */
+    String buildQueryForTest(Uri uri, String[] projection, String selection, String sortOrder) {
+        int uriMatch = sUriMatcher.match(uri);
+        return newQueryBuilder(uri, uriMatch).buildQuery(projection, selection, null, null,
+                resolveSortOrder(uri, uriMatch, sortOrder), resolveLimit(uri, uriMatch));
     }
 
     /**
@@ -450,12 +1324,33 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             // 如果模式是针对 notes 或 live folders，返回通用内容类型。
             case NOTES:
             case LIVE_FOLDER_NOTES:
+            case NOTES_SEARCH:
+            case NOTES_WITH_TAGS:
                 return NotePad.Notes.CONTENT_TYPE;
 
             // 如果模式是针对笔记 ID，返回笔记 ID 内容类型。
             case NOTE_ID:
                 return NotePad.Notes.CONTENT_ITEM_TYPE;
 
+            // 标签列表和笔记的标签集合返回标签目录类型
+            case 10:
+            case NOTE_TAGS:
+                return NotePad.Notes.TAGS_CONTENT_TYPE;
+
+            case 11:
+            case NOTE_TAG_ID:
+                return NotePad.Notes.TAG_CONTENT_ITEM_TYPE;
+
+            case NOTE_REVISIONS:
+                return NotePad.Notes.REVISIONS_CONTENT_TYPE;
+
+            case NOTE_REVISION_ID:
+                return NotePad.Notes.REVISION_CONTENT_ITEM_TYPE;
+
+            // 正文流是纯文本
+            case NOTE_BODY:
+                return ClipDescription.MIMETYPE_TEXT_PLAIN;
+
             // 如果 URI 模式不匹配任何允许的模式，抛出异常。
             default:
                 throw new IllegalArgumentException("未知 URI " + uri);
@@ -470,12 +1365,12 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
 
     /**
-     * 返回可用数据流的类型。支持指向特定笔记的 URI。
-     * 应用程序可以将这样的笔记转换为纯文本流。
+     * 返回可用数据流的类型。支持指向特定笔记的 URI，应用程序可以将这样的笔记转换为纯文本流；
+     * 笔记列表 URI 可以导出为纯文本、JSON Lines 或 Markdown 流。
      *
      * @param uri 要分析的 URI
-     * @param mimeTypeFilter 要检查的 MIME 类型。此方法仅返回匹配过滤器的 MIME 类型的数据流类型。当前，仅匹配 text/plain MIME 类型。
-     * @return 数据流 MIME 类型。当前，仅返回 text/plain。
+     * @param mimeTypeFilter 要检查的 MIME 类型。此方法仅返回匹配过滤器的 MIME 类型的数据流类型。
+     * @return 数据流 MIME 类型，没有匹配的类型时返回 null。
      * @throws IllegalArgumentException 如果 URI 模式不匹配任何支持的模式。
      */
     @Override
@@ -485,13 +1380,25 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          */
         switch (sUriMatcher.match(uri)) {
 
-            // 如果模式是针对 notes 或 live folders，返回 null。数据流不支持此类 URI。
+            // 笔记列表可以导出
             case NOTES:
+                return NoteExporter.EXPORT_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
+
+            // 如果模式是针对 live folders 等其他 URI，返回 null。数据流不支持此类 URI。
             case LIVE_FOLDER_NOTES:
+            case NOTES_SEARCH:
+            case NOTES_WITH_TAGS:
+            case 10:
+            case 11:
+            case NOTE_TAGS:
+            case NOTE_TAG_ID:
+            case NOTE_REVISIONS:
+            case NOTE_REVISION_ID:
                 return null;
 
-            // 如果模式是针对笔记 ID 并且 MIME 过滤器是 text/plain，则返回 text/plain
+            // 如果模式是针对笔记 ID 或笔记正文并且 MIME 过滤器是 text/plain，则返回 text/plain
             case NOTE_ID:
+            case NOTE_BODY:
                 return NOTE_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
 
             // 如果 URI 模式不匹配任何允许的模式，抛出异常。
@@ -503,8 +1410,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
     /**
      * 为每个支持的流类型返回数据流。此方法对传入 URI 执行查询，然后使用
-     * {@link android.content.ContentProvider#openPipeHelper(Uri, String, Bundle, Object,
-     * PipeDataWriter)} 启动另一个线程以将数据转换为流。
+     * {@link #openReliablePipe} 启动另一个线程以将数据转换为流。
      *
      * @param uri 指向数据流的 URI 模式
      * @param mimeTypeFilter 包含 MIME 类型的字符串。此方法尝试获取具有此 MIME 类型的数据流。
@@ -519,58 +1425,139 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // 检查 MIME 类型过滤器是否匹配支持的 MIME 类型。
         String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
 
-        // 如果 MIME 类型被支持
+        // 如果 MIME 类型被支持，启动一个新线程，将流数据管道传输回调用者。
         if (mimeTypes != null) {
+            ParcelFileDescriptor pipe;
+            if (sUriMatcher.match(uri) == NOTES) {
+                // 先查询第一个窗口，参数无效时在打开时就抛出异常
+                Cursor c = NoteExporter.queryWindow(mOpenHelper.getReadableDatabase(),
+                        newExportQueryBuilder(uri), 0);
+                pipe = openReliablePipe(uri, mimeTypes[0], opts, c);
+            } else {
+                pipe = openNoteStream(uri, mimeTypes[0], opts);
+            }
+            return new AssetFileDescriptor(pipe, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
 
-            // 检索此 URI 的笔记。使用为此提供程序定义的查询方法，
-            // 而不是使用数据库查询方法。
-            Cursor c = query(
-                    uri,                    // 笔记的 URI
-                    READ_NOTE_PROJECTION,   // 获取包含笔记 ID、标题和内容的投影
-                    null,                   // 没有 WHERE 子句，获取所有匹配记录
-                    null,                   // 因为没有 WHERE 子句，所以没有选择条件
-                    null                    // 使用默认排序顺序（修改日期，降序）
-            );
-
+        // 如果 MIME 类型不被支持，返回文件的只读句柄。
+        return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+    }
 
-            // 如果查询失败或游标为空，停止
-            if (c == null || !c.moveToFirst()) {
+    /**
+     * 以只读方式打开笔记正文流，{@link android.content.ContentResolver#openInputStream(Uri)}
+     * 经由此方法读取 notes/#/body。
+     *
+     * @throws FileNotFoundException 如果 URI 不是笔记正文 URI、模式不是只读或笔记不存在。
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) == NOTE_BODY && "r".equals(mode)) {
+            return openNoteStream(uri, ClipDescription.MIMETYPE_TEXT_PLAIN, null);
+        }
+        return super.openFile(uri, mode);
+    }
 
-                // 如果游标为空，只需关闭游标并返回
-                if (c != null) {
-                    c.close();
-                }
+    /**
+     * 读取笔记的标题和版本号，然后用 {@link #openReliablePipe} 启动另一个线程把笔记写入管道。
+     * 正文此时不读取。
+     *
+     * @throws FileNotFoundException 如果笔记不存在。
+     */
+    private ParcelFileDescriptor openNoteStream(Uri uri, String mimeType, Bundle opts)
+            throws FileNotFoundException {
+        String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, READ_NOTE_PROJECTION,
+                NotePad.Notes._ID + " = ?", new String[] { noteId }, null, null, null);
 
-                // 如果游标为 null，抛出异常
-                throw new FileNotFoundException("无法查询 " + uri);
-            }
+        // 如果笔记不存在，关闭游标并抛出异常
+        if (!c.moveToFirst()) {
+            c.close();
+            throw new FileNotFoundException("无法查询 " + uri);
+        }
+        return openReliablePipe(uri, mimeType, opts, c);
+    }
 
-            // 启动一个新线程，将流数据管道传输回调用者。
-            return new AssetFileDescriptor(
-                    openPipeHelper(uri, mimeTypes[0], opts, c, this), 0,
-                    AssetFileDescriptor.UNKNOWN_LENGTH);
+    /**
+     * 与 {@link android.content.ContentProvider#openPipeHelper(Uri, String, Bundle, Object,
+     * PipeDataWriter)} 相同，在另一个线程中用 {@link #writeDataToPipe} 写入管道，但管道带有可靠的
+     * 通信通道：笔记在写入途中被修改或删除时，写入方以错误关闭管道，读取方读到末尾后调用
+     * {@link ParcelFileDescriptor#checkError()} 会得到 IOException，而不是把不完整的数据流当作完整的。
+     */
+    private ParcelFileDescriptor openReliablePipe(final Uri uri, final String mimeType,
+                                                  final Bundle opts, final Cursor c)
+            throws FileNotFoundException {
+        final ParcelFileDescriptor[] fds;
+        try {
+            fds = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            c.close();
+            Log.w(TAG, "无法创建管道", e);
+            throw new FileNotFoundException("无法创建管道");
         }
+        // 与 openPipeHelper 一样使用 AsyncTask 的有界线程池
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeDataToPipe(fds[1], uri, mimeType, opts, c);
+                try {
+                    // 已经以错误关闭时不再改变状态
+                    fds[1].close();
+                } catch (IOException e) {
+                    Log.w(TAG, "关闭管道失败", e);
+                }
+            }
+        });
+        return fds[0];
+    }
 
-        // 如果 MIME 类型不被支持，返回文件的只读句柄。
-        return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+    /**
+     * 返回导出笔记列表的查询构建器：笔记表和 URI 中的标签筛选条件
+     */
+    private static SQLiteQueryBuilder newExportQueryBuilder(Uri uri) {
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(NotePad.Notes.TABLE_NAME);
+        appendTagFilterWhere(qb, uri);
+        return qb;
     }
 
     /**
      * {@link android.content.ContentProvider.PipeDataWriter} 的实现
-     * 以执行将游标中的数据转换为客户端可读取的数据流的实际工作。
+     * 以执行将笔记转换为客户端可读取的数据流的实际工作。笔记 ID URI 写出标题、空行和正文，
+     * 正文 URI 只写出正文，笔记列表 URI 从游标中的第一个窗口起导出所有笔记。
+     * 笔记正文在读取途中被修改或删除时以错误关闭管道；管道由调用方关闭。
      */
     @Override
     public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
                                 Bundle opts, Cursor c) {
-        // 我们目前仅支持从单个笔记条目转换为文本，
-        // 因此此处无需进行游标数据类型检查。
         FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
         PrintWriter pw = null;
+        boolean complete = true;
         try {
-            pw = new PrintWriter(new OutputStreamWriter(fout, "UTF-8"));
-            pw.println(c.getString(READ_NOTE_TITLE_INDEX));
-            pw.println("");
-            pw.println(c.getString(READ_NOTE_NOTE_INDEX));
+            pw = new PrintWriter(new OutputStreamWriter(
+                    new BufferedOutputStream(fout, STREAM_BUFFER_BYTES), "UTF-8"));
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            int uriMatch = sUriMatcher.match(uri);
+            if (uriMatch == NOTES) {
+                complete = NoteExporter.writeNotes(db, newExportQueryBuilder(uri), c, pw,
+                        NoteExporter.formatOf(mimeType));
+            } else {
+                if (uriMatch != NOTE_BODY) {
+                    pw.println(c.getString(READ_NOTE_TITLE_INDEX));
+                    pw.println("");
+                }
+                SQLiteStatement bodyStatement = NoteExporter.compileBodyStatement(db);
+                try {
+                    // substr 的起始位置从 1 开始计数
+                    complete = NoteExporter.writeBody(bodyStatement, c.getLong(READ_NOTE_ID_INDEX),
+                            c.getLong(READ_NOTE_VERSION_INDEX), 1, pw, NoteExporter.FORMAT_TEXT);
+                } finally {
+                    bodyStatement.close();
+                }
+                if (complete && uriMatch != NOTE_BODY) {
+                    pw.println();
+                }
+            }
         } catch (UnsupportedEncodingException e) {
             Log.w(TAG, "糟糕", e);
         } finally {
@@ -578,9 +1565,13 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             if (pw != null) {
                 pw.flush();
             }
+        }
+        if (!complete) {
+            // 先写出状态再关闭数据，读取方读到末尾时就能得到错误
             try {
-                fout.close();
+                output.closeWithError(uri + " 在读取正文时已被修改或删除");
             } catch (IOException e) {
+                Log.w(TAG, "关闭管道失败", e);
             }
         }
     }
@@ -621,10 +1612,13 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
             if (rowId > 0) {
                 Uri tagUri = ContentUris.withAppendedId(NotePad.Notes.TAG_ID_URI_BASE, rowId);
-                getContext().getContentResolver().notifyChange(tagUri, null);
+                notifyChange(tagUri, false);
+                onWriteCommitted();
                 return tagUri;
             }
             throw new SQLException("插入标签失败 " + uri);
+        } else if (sUriMatcher.match(uri) == NOTE_TAGS) {
+            return insertNoteTag(uri, initialValues);
             // 验证传入的 URI。仅允许完整的提供程序 URI 进行插入。
         }else if (sUriMatcher.match(uri) != NOTES) {
             throw new IllegalArgumentException("未知 URI " + uri);
@@ -661,30 +1655,55 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
         }
 
+        // 预览总是由笔记内容生成，忽略调用方传入的值
+        values.put(NotePad.Notes.COLUMN_NAME_PREVIEW,
+                makePreview(values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE)));
+
+        // 版本号由提供程序维护
+        values.put(NotePad.Notes.COLUMN_NAME_VERSION, 1);
+
         // 以"写入"模式打开数据库对象。
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
         // 执行插入并返回新笔记的 ID。
-        long rowId = db.insert(
-                NotePad.Notes.TABLE_NAME,        // 要插入的表。
-                NotePad.Notes.COLUMN_NAME_NOTE,  // 一种 hack，如果 values 为空，SQLite 将此列值设置为 null。
-                values                           // 列名的映射，以及要插入列的值。
-        );
+        long rowId;
+        db.beginTransaction();
+        try {
+            rowId = db.insert(
+                    NotePad.Notes.TABLE_NAME,        // 要插入的表。
+                    NotePad.Notes.COLUMN_NAME_NOTE,  // 一种 hack，如果 values 为空，SQLite 将此列值设置为 null。
+                    values                           // 列名的映射，以及要插入列的值。
+            );
+
+            // 在同一事务中写入全文索引和第一个历史版本
+            if (rowId > 0) {
+                indexNote(db, rowId,
+                        values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE),
+                        values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE));
+                NoteRevisions.recordInsert(db, rowId,
+                        values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE),
+                        values.getAsLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
 
         // 如果插入成功，则行 ID 存在。
         if (rowId > 0) {
             Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
-            getContext().getContentResolver().notifyChange(noteUri, null);
 
-            // 更新Widget
-            NotePadAppWidget.updateAllWidgets(getContext());
+            // 通知观察者并更新Widget；带标签的新笔记改变了标签的笔记数
+            notifyChange(noteUri, true);
+            Long tagId = values.getAsLong(NotePad.Notes.COLUMN_NAME_TAG_ID);
+            if (tagId != null && tagId > 0) {
+                notifyChange(NotePad.Notes.TAGS_CONTENT_URI, false);
+            }
+            onWriteCommitted();
 
             return noteUri;
         }
-        getContext().getContentResolver().notifyChange(uri, null);
-
-// 更新Widget
-        NotePadAppWidget.updateAllWidgets(getContext());
+        notifyChange(uri, true);
 
         // 如果插入未成功，则 rowID <= 0。抛出异常。
         throw new SQLException("插入行到 " + uri + " 失败");
@@ -702,18 +1721,27 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
+        if (sUriMatcher.match(uri) == 11) { // 删除单个标签
+            return deleteTag(uri, where, whereArgs);
+        }
+        if (sUriMatcher.match(uri) == NOTE_TAGS || sUriMatcher.match(uri) == NOTE_TAG_ID) {
+            return deleteNoteTags(uri, where, whereArgs);
+        }
 
         // 以"写入"模式打开数据库对象。
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         String finalWhere;
 
         int count;
+        long[] noteIds = null;
 
         // 根据传入的 URI 模式进行删除。
         switch (sUriMatcher.match(uri)) {
 
             // 如果传入的模式匹配 notes 的通用模式，则根据传入的 "where" 列和参数进行删除。
             case NOTES:
+                // 删除前记下受影响的笔记，以便只通知这些笔记的 URI
+                noteIds = queryScopedNoteIds(db, where, whereArgs);
                 count = db.delete(
                         NotePad.Notes.TABLE_NAME,  // 数据库表名
                         where,                     // 传入的 where 子句列名
@@ -751,10 +1779,16 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 throw new IllegalArgumentException("未知 URI " + uri);
         }
 
-        /*获取当前上下文的内容解析器对象的句柄，并通知它传入的 URI 已更改。该对象将其传递给解析器框架，
-         * 并向已为提供程序注册自己的观察者发出通知。
+        /*通知观察者传入的 URI 已更改。批量删除时尽量只通知受影响笔记的 URI，
+         * 只关心某一条笔记的观察者不会被其他笔记的变化唤醒。
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (count > 0) {
+            invalidateNotes(uri, noteIds);
+            notifyNotesChanged(uri, noteIds);
+            // 被删除的笔记可能带有标签，由触发器减少了标签的笔记数
+            notifyChange(NotePad.Notes.TAGS_CONTENT_URI, false);
+            onWriteCommitted();
+        }
 
         // 返回删除的行数。
         return count;
@@ -779,72 +1813,503 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
+        if (sUriMatcher.match(uri) == 11) { // 更新单个标签
+            return updateTag(uri, values, where, whereArgs);
+        }
 
         // 以"写入"模式打开数据库对象。
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
         String finalWhere;
+        long[] changedIds = null;
+        boolean tagsChanged = false;
+
+        // 内容变化时同步更新预览，复制一份以免修改调用方的值映射
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            values = new ContentValues(values);
+            values.put(NotePad.Notes.COLUMN_NAME_PREVIEW,
+                    makePreview(values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE)));
+        }
 
-        // 根据传入的 URI 模式进行更新
-        switch (sUriMatcher.match(uri)) {
+        // 版本号由提供程序在更新时递增，忽略调用方传入的值
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_VERSION)) {
+            values = new ContentValues(values);
+            values.remove(NotePad.Notes.COLUMN_NAME_VERSION);
+        }
 
-            // 如果传入的 URI 匹配 notes 的通用模式，则根据传入的数据进行更新。
-            case NOTES:
+        // 标题或内容变化时需要同步全文索引
+        boolean reindex = values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)
+                || values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE);
 
-                // 执行更新并返回更新的行数。
-                count = db.update(
-                        NotePad.Notes.TABLE_NAME, // 数据库表名。
-                        values,                   // 列名和新值的映射。
-                        where,                    // where 子句列名。
-                        whereArgs                 // where 子句列值以进行选择。
-                );
-                break;
+        db.beginTransaction();
+        try {
+            // 根据传入的 URI 模式进行更新
+            int uriMatch = sUriMatcher.match(uri);
+            switch (uriMatch) {
+
+                // 如果传入的 URI 匹配 notes 的通用模式，则根据传入的数据进行更新。
+                case NOTES:
+                    finalWhere = where;
+                    break;
+
+                // 如果传入的 URI 匹配单个笔记 ID，则根据传入的数据进行更新，但修改 where 子句以将其限制在特定的笔记 ID。
+                case NOTE_ID:
+                    /*
+                     * 通过将其限制为传入的笔记 ID 来开始创建最终的 WHERE 子句。
+                     */
+                    finalWhere =
+                            NotePad.Notes._ID +                              // ID 列名
+                                    " = " +                                          // 相等测试
+                                    uri.getPathSegments().                           // 传入的笔记 ID
+                                            get(NotePad.Notes.NOTE_ID_PATH_POSITION)
+                    ;
+
+                    // 如果有额外的选择条件，将它们附加到最终的 WHERE 子句
+                    if (where !=null) {
+                        finalWhere = finalWhere + " AND " + where;
+                    }
+                    break;
 
-            // 如果传入的 URI 匹配单个笔记 ID，则根据传入的数据进行更新，但修改 where 子句以将其限制在特定的笔记 ID。
-            case NOTE_ID:
-                // 从传入的 URI 获取笔记 ID
-                String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
+                // 如果传入的模式无效，抛出异常。
+                default:
+                    throw new IllegalArgumentException("未知 URI " + uri);
+            }
 
-                /*
-                 * 通过将其限制为传入的笔记 ID 来开始创建最终的 WHERE 子句。
-                 */
-                finalWhere =
-                        NotePad.Notes._ID +                              // ID 列名
-                                " = " +                                          // 相等测试
-                                uri.getPathSegments().                           // 传入的笔记 ID
-                                        get(NotePad.Notes.NOTE_ID_PATH_POSITION)
-                ;
+            // 更新前记下受影响的笔记，更新条件可能引用被修改的列
+            long[] noteIds = reindex ? queryNoteIds(db, finalWhere, whereArgs) : null;
+            if (uriMatch == NOTES) {
+                changedIds = noteIds != null ? noteIds : queryScopedNoteIds(db, finalWhere, whereArgs);
+            }
 
-                // 如果有额外的选择条件，将它们附加到最终的 WHERE 子句
-                if (where !=null) {
-                    finalWhere = finalWhere + " AND " + where;
+            // 编辑器每次保存都带上 tag_id，只有主标签真正改变时触发器才会修改关系表和标签计数，
+            // 用触发器产生的额外变更数判断是否需要通知标签观察者
+            boolean tagIdUpdated = values.containsKey(NotePad.Notes.COLUMN_NAME_TAG_ID);
+
+            // 内容变化时在更新之前记录历史版本，增量相对于即将被覆盖的内容计算
+            if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                Long modified = values.getAsLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+                long revisionDate = modified != null ? modified : System.currentTimeMillis();
+                String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+                for (long noteId : noteIds) {
+                    NoteRevisions.recordUpdate(db, noteId, note, revisionDate);
                 }
+            }
 
+            long changesBefore = tagIdUpdated ? totalChanges(db) : 0;
 
-                // 执行更新并返回更新的行数。
-                count = db.update(
-                        NotePad.Notes.TABLE_NAME, // 数据库表名。
-                        values,                   // 列名和新值的映射。
-                        finalWhere,               // 要使用的最终 WHERE 子句
-                        // whereArgs 的占位符
-                        whereArgs                 // where 子句列值以进行选择，或者
-                        // 如果值在 where 参数中则为 null。
-                );
-                break;
-            // 如果传入的模式无效，抛出异常。
-            default:
-                throw new IllegalArgumentException("未知 URI " + uri);
+            // 执行更新并返回更新的行数。
+            count = updateNotes(db, values, finalWhere, whereArgs);
+            if (tagIdUpdated) {
+                tagsChanged = totalChanges(db) - changesBefore > count;
+            }
+
+            if (noteIds != null) {
+                reindexNotes(db, noteIds, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
 
-        /*获取当前上下文的内容解析器对象的句柄，并通知它传入的 URI 已更改。该对象将其传递给解析器框架，
-         * 并向已为提供程序注册自己的观察者发出通知。
+        /*通知观察者传入的 URI 已更改。批量更新时尽量只通知受影响笔记的 URI。
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (count > 0) {
+            invalidateNotes(uri, changedIds);
+            notifyNotesChanged(uri, changedIds);
+            if (tagsChanged) {
+                // 主标签变化由触发器同步到关系表，标签的笔记数随之变化
+                notifyChange(NotePad.Notes.TAGS_CONTENT_URI, false);
+            }
+            onWriteCommitted();
+        }
 
         // 返回更新的行数。
         return count;
     }
 
+    /**
+     * 更新 notes 表，并在同一条语句中把每个受影响笔记的版本号加 1。
+     * {@link SQLiteDatabase#update} 只能把列设为给定的值，因此按值映射拼出 UPDATE 语句并绑定参数。
+     *
+     * @return 更新的行数
+     */
+    private static int updateNotes(SQLiteDatabase db, ContentValues values, String where,
+                                   String[] whereArgs) {
+        StringBuilder sql = new StringBuilder("UPDATE " + NotePad.Notes.TABLE_NAME + " SET ");
+        int whereCount = whereArgs != null ? whereArgs.length : 0;
+        Object[] bindArgs = new Object[values.size() + whereCount];
+        int i = 0;
+        for (String column : values.keySet()) {
+            sql.append(column).append(" = ?, ");
+            bindArgs[i++] = values.get(column);
+        }
+        sql.append(VERSION_INCREMENT);
+        if (!TextUtils.isEmpty(where)) {
+            sql.append(" WHERE ").append(where);
+        }
+        for (int j = 0; j < whereCount; j++) {
+            bindArgs[i++] = whereArgs[j];
+        }
+
+        SQLiteStatement statement = db.compileStatement(sql.toString());
+        try {
+            for (int j = 0; j < bindArgs.length; j++) {
+                DatabaseUtils.bindObjectToProgram(statement, j + 1, bindArgs[j]);
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * 返回该连接自打开以来插入、修改和删除的总行数，包括触发器所做的修改。
+     */
+    private static long totalChanges(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT total_changes()", null);
+    }
+
+    /**
+     * 更新单个标签的名称或颜色。笔记列表的联接查询会显示标签名称和颜色，
+     * 因此除了标签 URI 之外还通知 notes 集合。
+     */
+    private int updateTag(Uri uri, ContentValues values, String where, String[] whereArgs) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        String finalWhere = "_id = " + ContentUris.parseId(uri);
+        if (where != null) {
+            finalWhere = finalWhere + " AND " + where;
+        }
+
+        int count = db.update(NotePad.Notes.TABLE_NAME_TAGS, values, finalWhere, whereArgs);
+        if (count > 0) {
+            notifyChange(uri, false);
+            notifyChange(NotePad.Notes.CONTENT_URI, false);
+            onWriteCommitted();
+        }
+        return count;
+    }
+
+    /**
+     * 删除单个标签，并在同一事务中移除它与笔记的所有关联：以它为主标签的笔记改用该笔记的其他标签，
+     * 没有其他标签时改为无标签，不会出现笔记指向已删除标签的中间状态。
+     * 按 tag_id 查找笔记和关联分别使用 (tag_id, modified) 和 (tag_id, note_id) 索引，
+     * 标签被大量笔记使用时也不需要扫描整个表。标签 URI 和 notes 集合的通知在同一个合并窗口内发出。
+     */
+    private int deleteTag(Uri uri, String where, String[] whereArgs) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long tagId = ContentUris.parseId(uri);
+        String finalWhere = "_id = " + tagId;
+        if (where != null) {
+            finalWhere = finalWhere + " AND " + where;
+        }
+
+        int count;
+        int changedNotes = 0;
+        db.beginTransaction();
+        try {
+            count = db.delete(NotePad.Notes.TABLE_NAME_TAGS, finalWhere, whereArgs);
+            if (count > 0) {
+                // 先替换主标签（触发器随之删除对应的关联），再删除其余笔记上的关联
+                SQLiteStatement reassign = db.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                        + " SET " + NotePad.Notes.COLUMN_NAME_TAG_ID + " = COALESCE((SELECT "
+                        + NotePad.Notes.COLUMN_NAME_TAG_ID + " FROM " + NotePad.Notes.TABLE_NAME_NOTE_TAGS
+                        + " WHERE " + NotePad.Notes.COLUMN_NAME_NOTE_ID + " = " + NotePad.Notes.TABLE_NAME
+                        + "." + NotePad.Notes._ID + " AND " + NotePad.Notes.COLUMN_NAME_TAG_ID + " != " + tagId
+                        + " LIMIT 1), 0), " + VERSION_INCREMENT
+                        + " WHERE " + NotePad.Notes.COLUMN_NAME_TAG_ID + " = " + tagId);
+                try {
+                    changedNotes = reassign.executeUpdateDelete();
+                } finally {
+                    reassign.close();
+                }
+                changedNotes += db.delete(NotePad.Notes.TABLE_NAME_NOTE_TAGS,
+                        NotePad.Notes.COLUMN_NAME_TAG_ID + " = " + tagId, null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (count > 0) {
+            notifyChange(uri, false);
+            if (changedNotes > 0) {
+                invalidateNotes(NotePad.Notes.CONTENT_URI, null);
+                notifyChange(NotePad.Notes.CONTENT_URI, false);
+            }
+            onWriteCommitted();
+        }
+        return count;
+    }
+
+    /**
+     * 给笔记添加一个标签，已有该标签时不做改变。笔记还没有主标签时把这个标签设为主标签，
+     * 只显示一个标签的界面也能看到它。
+     *
+     * @return notes/#/tags/# 形式的 URI
+     * @throws SQLException 如果笔记或标签不存在
+     */
+    private Uri insertNoteTag(Uri uri, ContentValues initialValues) {
+        Long tagId = initialValues != null ? initialValues.getAsLong(NotePad.Notes.COLUMN_NAME_TAG_ID) : null;
+        if (tagId == null) {
+            throw new IllegalArgumentException("缺少 " + NotePad.Notes.COLUMN_NAME_TAG_ID + " " + uri);
+        }
+        long noteId = Long.parseLong(uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long rowId;
+        db.beginTransaction();
+        try {
+            if (DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME,
+                    NotePad.Notes._ID + " = " + noteId) == 0
+                    || DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME_TAGS,
+                    "_id = " + tagId) == 0) {
+                throw new SQLException("插入笔记标签失败 " + uri);
+            }
+
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE_ID, noteId);
+            values.put(NotePad.Notes.COLUMN_NAME_TAG_ID, tagId);
+            rowId = db.insertWithOnConflict(NotePad.Notes.TABLE_NAME_NOTE_TAGS, null, values,
+                    SQLiteDatabase.CONFLICT_IGNORE);
+
+            if (rowId != -1) {
+                ContentValues primary = new ContentValues();
+                primary.put(NotePad.Notes.COLUMN_NAME_TAG_ID, tagId);
+                updateNotes(db, primary, NotePad.Notes._ID + " = " + noteId
+                        + " AND " + NotePad.Notes.COLUMN_NAME_TAG_ID + " = 0", null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (rowId != -1) {
+            // 主标签可能改变
+            invalidateNotes(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId), null);
+            // notes/# 的观察者包括监听 notes/#/tags 的游标
+            notifyChange(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId), false);
+            notifyChange(NotePad.Notes.TAGS_CONTENT_URI, false);
+            onWriteCommitted();
+        }
+        return ContentUris.withAppendedId(uri, tagId);
+    }
+
+    /**
+     * 移除笔记的一个标签（notes/#/tags/#）或全部标签（notes/#/tags）。
+     * 被移除的标签是主标签时改用笔记剩下的某个标签，没有剩余标签时改为无标签。
+     */
+    private int deleteNoteTags(Uri uri, String where, String[] whereArgs) {
+        String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
+        String finalWhere = NotePad.Notes.COLUMN_NAME_NOTE_ID + " = " + noteId;
+        if (sUriMatcher.match(uri) == NOTE_TAG_ID) {
+            finalWhere = finalWhere + " AND " + NotePad.Notes.COLUMN_NAME_TAG_ID + " = " + ContentUris.parseId(uri);
+        }
+        if (where != null) {
+            finalWhere = finalWhere + " AND " + where;
+        }
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int count;
+        db.beginTransaction();
+        try {
+            count = db.delete(NotePad.Notes.TABLE_NAME_NOTE_TAGS, finalWhere, whereArgs);
+            if (count > 0) {
+                String remaining = "SELECT " + NotePad.Notes.COLUMN_NAME_TAG_ID + " FROM "
+                        + NotePad.Notes.TABLE_NAME_NOTE_TAGS + " WHERE "
+                        + NotePad.Notes.COLUMN_NAME_NOTE_ID + " = " + noteId;
+                db.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET " + NotePad.Notes.COLUMN_NAME_TAG_ID
+                        + " = COALESCE((" + remaining + " LIMIT 1), 0), " + VERSION_INCREMENT
+                        + " WHERE " + NotePad.Notes._ID + " = " + noteId
+                        + " AND " + NotePad.Notes.COLUMN_NAME_TAG_ID + " != 0"
+                        + " AND " + NotePad.Notes.COLUMN_NAME_TAG_ID + " NOT IN (" + remaining + ")");
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (count > 0) {
+            Uri noteUri = Uri.withAppendedPath(NotePad.Notes.CONTENT_ID_URI_BASE, noteId);
+            invalidateNotes(noteUri, null);
+            notifyChange(noteUri, false);
+            notifyChange(NotePad.Notes.TAGS_CONTENT_URI, false);
+            onWriteCommitted();
+        }
+        return count;
+    }
+
+    /**
+     * 在一个事务中插入所有行，整批只发送一次通知、更新一次Widget。
+     * 任一行插入失败时整批回滚，不发送通知。
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        BatchNotifications batch = new BatchNotifications();
+        mBatchNotifications.set(batch);
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                insert(uri, value);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            mBatchNotifications.remove();
+            db.endTransaction();
+        }
+        dispatchBatchNotifications(batch);
+        onWriteCommitted();
+        return values.length;
+    }
+
+    /**
+     * 在一个事务中执行所有操作，整批只发送一次通知。任一操作失败时整批回滚，不发送通知。
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        BatchNotifications batch = new BatchNotifications();
+        mBatchNotifications.set(batch);
+        ContentProviderResult[] results;
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            mBatchNotifications.remove();
+            db.endTransaction();
+        }
+        dispatchBatchNotifications(batch);
+        onWriteCommitted();
+        return results;
+    }
+
+    /**
+     * 记录一次已提交的写操作，累计到 {@link #CHECKPOINT_INTERVAL_WRITES} 次时在后台执行被动检查点。
+     * 批量操作中的单行写入不计数，由批量操作结束时计一次。
+     */
+    private void onWriteCommitted() {
+        if (mBatchNotifications.get() != null) {
+            return;
+        }
+        if (mWritesSinceCheckpoint.incrementAndGet() < CHECKPOINT_INTERVAL_WRITES) {
+            return;
+        }
+        mWritesSinceCheckpoint.set(0);
+        mCheckpointExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mOpenHelper.checkpoint();
+                } catch (SQLException e) {
+                    Log.w(TAG, "WAL 检查点失败", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 为针对 notes 集合的更新或删除取得受影响的笔记 ID，用于逐条通知。
+     * 没有条件或受影响的笔记超过 {@link #SCOPED_NOTIFICATION_LIMIT} 时返回 null，表示通知整个集合。
+     */
+    private static long[] queryScopedNoteIds(SQLiteDatabase db, String where, String[] whereArgs) {
+        if (where == null) {
+            return null;
+        }
+        long[] noteIds = queryNoteIds(db, where, whereArgs,
+                String.valueOf(SCOPED_NOTIFICATION_LIMIT + 1));
+        return noteIds.length > SCOPED_NOTIFICATION_LIMIT ? null : noteIds;
+    }
+
+    /**
+     * 写操作提交后使笔记行缓存失效：uri 是 notes/# 时只失效这一条，否则失效 noteIds 中的笔记，
+     * noteIds 为 null 时全部失效。批量操作中只做记录，事务提交后全部失效，
+     * 以免其他线程在提交前把旧内容重新读入缓存。
+     */
+    private void invalidateNotes(Uri uri, long[] noteIds) {
+        BatchNotifications batch = mBatchNotifications.get();
+        if (batch != null) {
+            batch.evictNoteCache = true;
+            return;
+        }
+        if (sUriMatcher.match(uri) == NOTE_ID) {
+            mNoteCache.remove(ContentUris.parseId(uri));
+        } else if (noteIds == null) {
+            mNoteCache.evictAll();
+        } else {
+            for (long noteId : noteIds) {
+                mNoteCache.remove(noteId);
+            }
+        }
+    }
+
+    /**
+     * 通知笔记的变化：noteIds 不为 null 且不超过限制时逐条通知 notes/#，否则通知 uri 本身。
+     */
+    private void notifyNotesChanged(Uri uri, long[] noteIds) {
+        if (noteIds == null || noteIds.length > SCOPED_NOTIFICATION_LIMIT) {
+            notifyChange(uri, false);
+            return;
+        }
+        for (long noteId : noteIds) {
+            notifyChange(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId), false);
+        }
+    }
+
+    /**
+     * 通知观察者 uri 的数据已更改。处于批量操作中时只记录下来，由批量操作结束时统一发送；
+     * 否则交给 {@link ChangeNotificationDispatcher}，在短暂的合并窗口后去重发送。
+     *
+     * @param updateWidgets 是否需要刷新显示最新笔记的Widget
+     */
+    private void notifyChange(Uri uri, boolean updateWidgets) {
+        BatchNotifications batch = mBatchNotifications.get();
+        if (batch != null) {
+            batch.add(uri, updateWidgets);
+            return;
+        }
+        mNotificationDispatcher.dispatch(uri, updateWidgets);
+    }
+
+    private void dispatchBatchNotifications(BatchNotifications batch) {
+        if (batch.evictNoteCache) {
+            mNoteCache.evictAll();
+        }
+        for (Uri uri : batch.uris) {
+            mNotificationDispatcher.dispatch(uri, false);
+        }
+        if (batch.updateWidgets) {
+            mNotificationDispatcher.dispatch(NotePad.Notes.CONTENT_URI, true);
+        }
+    }
+
+    /**
+     * 批量操作中积累的通知和缓存失效。单行 URI 合并为所在集合的 URI：通知集合 URI 时，
+     * 监听其下单行 URI 的观察者同样会收到通知。
+     */
+    private static final class BatchNotifications {
+        final LinkedHashSet<Uri> uris = new LinkedHashSet<Uri>();
+        boolean updateWidgets;
+        // 批量操作修改或删除了笔记，提交后清空笔记行缓存
+        boolean evictNoteCache;
+
+        void add(Uri uri, boolean widgets) {
+            switch (sUriMatcher.match(uri)) {
+                case NOTE_ID:
+                    uris.add(NotePad.Notes.CONTENT_URI);
+                    break;
+                case 11: // 单个标签
+                    uris.add(NotePad.Notes.TAGS_CONTENT_URI);
+                    break;
+                default:
+                    uris.add(uri);
+                    break;
+            }
+            updateWidgets |= widgets;
+        }
+    }
+
     /**
      * 测试包可以调用此方法来获取 NotePadProvider 底层数据库的句柄，
      * 以便它可以向数据库插入测试数据。测试用例类负责
@@ -0,0 +1,290 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * 笔记内容的历史版本，供 {@link NotePadProvider} 使用。
+ *
+ * 每次写入笔记内容记录一个版本，版本号从 1 开始按笔记递增。大多数版本只保存相对上一版本的增量：
+ * 新旧内容去掉相同的前缀和后缀后剩下的一处替换（起点、删除的长度和插入的文本），
+ * 因此历史占用的空间与每次编辑的大小有关，与笔记的大小无关。每隔 {@link #SNAPSHOT_INTERVAL}
+ * 个版本保存一次完整的快照，读取任一版本最多从最近的快照起应用 SNAPSHOT_INTERVAL - 1 个增量。
+ *
+ * 所有方法都由调用方负责事务。
+ */
+final class NoteRevisions {
+
+    /**
+     * 每隔多少个版本保存一次完整快照
+     */
+    static final int SNAPSHOT_INTERVAL = 20;
+
+    // 增量的起点和删除的字符数，快照的这两列为 null
+    private static final String COLUMN_DELTA_START = "delta_start";
+    private static final String COLUMN_DELTA_LENGTH = "delta_length";
+    // 快照的完整内容，或增量插入的文本
+    private static final String COLUMN_DATA = "data";
+
+    /**
+     * 版本列表中"是否为快照"一列的表达式
+     */
+    static final String SNAPSHOT_EXPRESSION = "(" + COLUMN_DELTA_START + " IS NULL)";
+
+    /**
+     * 读取单个版本时返回的列
+     */
+    static final String[] REVISION_COLUMNS = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_NOTE_ID,
+            NotePad.Notes.COLUMN_NAME_REVISION,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_NOTE
+    };
+    private static final int REVISION_NOTE_INDEX = 4;
+
+    private NoteRevisions() {
+    }
+
+    /**
+     * 创建版本表。唯一约束 (note_id, revision) 即按笔记和版本号查找的索引；
+     * 删除笔记时由触发器删除它的所有版本。
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + NotePad.Notes.TABLE_NAME_REVISIONS + " ("
+                + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.Notes.COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                + NotePad.Notes.COLUMN_NAME_REVISION + " INTEGER NOT NULL,"
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
+                + COLUMN_DELTA_START + " INTEGER,"
+                + COLUMN_DELTA_LENGTH + " INTEGER,"
+                + COLUMN_DATA + " TEXT NOT NULL,"
+                + "UNIQUE (" + NotePad.Notes.COLUMN_NAME_NOTE_ID + ", "
+                + NotePad.Notes.COLUMN_NAME_REVISION + ")"
+                + ");");
+        db.execSQL("CREATE TRIGGER notes_revisions_bd BEFORE DELETE ON " + NotePad.Notes.TABLE_NAME
+                + " BEGIN DELETE FROM " + NotePad.Notes.TABLE_NAME_REVISIONS
+                + " WHERE " + NotePad.Notes.COLUMN_NAME_NOTE_ID + " = old." + NotePad.Notes._ID
+                + "; END;");
+    }
+
+    /**
+     * 记录新插入的笔记的内容，作为它的第一个版本
+     */
+    static void recordInsert(SQLiteDatabase db, long noteId, String note, long modified) {
+        insertSnapshot(db, noteId, 1, note, modified);
+    }
+
+    /**
+     * 在更新笔记内容之前调用，记录新内容为一个版本；内容没有变化时不记录。
+     * 旧内容从 notes 表读取，它就是最新版本的内容。升级之前就存在的笔记还没有历史，
+     * 先把旧内容记为第一个版本。
+     */
+    static void recordUpdate(SQLiteDatabase db, long noteId, String note, long modified) {
+        if (note == null) {
+            note = "";
+        }
+        // 旧内容可能超过游标窗口的大小，用编译的语句读取，不经过游标窗口
+        String where = " FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = " + noteId;
+        String previous;
+        Long previousModified;
+        try {
+            previous = queryString(db, "SELECT ifnull(" + NotePad.Notes.COLUMN_NAME_NOTE + ", '')" + where);
+            String date = queryString(db, "SELECT " + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + where);
+            previousModified = date != null ? Long.valueOf(date) : null;
+        } catch (SQLiteDoneException e) {
+            return;
+        }
+        if (previous.equals(note)) {
+            return;
+        }
+
+        long revision = lastRevision(db, noteId);
+        if (revision == 0) {
+            insertSnapshot(db, noteId, 1, previous, previousModified);
+            revision = 1;
+        }
+        revision++;
+
+        int prefix = commonPrefix(previous, note);
+        int suffix = commonSuffix(previous, note, prefix);
+        int inserted = note.length() - prefix - suffix;
+        // 增量插入的文本超过新内容的一半时，保存快照的代价相差不多，还能缩短之后的增量链
+        if ((revision - 1) % SNAPSHOT_INTERVAL == 0 || inserted * 2 > note.length()) {
+            insertSnapshot(db, noteId, revision, note, modified);
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE_ID, noteId);
+        values.put(NotePad.Notes.COLUMN_NAME_REVISION, revision);
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, modified);
+        values.put(COLUMN_DELTA_START, prefix);
+        values.put(COLUMN_DELTA_LENGTH, previous.length() - prefix - suffix);
+        values.put(COLUMN_DATA, note.substring(prefix, prefix + inserted));
+        db.insertOrThrow(NotePad.Notes.TABLE_NAME_REVISIONS, null, values);
+    }
+
+    /**
+     * 返回笔记的某个版本，列为 {@link #REVISION_COLUMNS} 中投影所列的列（投影为 null 时为全部）。
+     * 版本不存在时返回空游标。
+     *
+     * @throws IllegalArgumentException 投影包含不支持的列
+     */
+    static MatrixCursor queryRevision(SQLiteDatabase db, long noteId, long revision, String[] projection) {
+        String[] columns = projection != null ? projection : REVISION_COLUMNS;
+        int[] indexes = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indexes[i] = indexOf(columns[i]);
+        }
+
+        MatrixCursor result = new MatrixCursor(columns, 1);
+        Cursor cursor = db.query(NotePad.Notes.TABLE_NAME_REVISIONS,
+                new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE },
+                NotePad.Notes.COLUMN_NAME_NOTE_ID + " = " + noteId
+                        + " AND " + NotePad.Notes.COLUMN_NAME_REVISION + " = " + revision,
+                null, null, null, null);
+        Object[] row;
+        try {
+            if (!cursor.moveToFirst()) {
+                return result;
+            }
+            row = new Object[] {
+                    cursor.getLong(0),
+                    noteId,
+                    revision,
+                    cursor.isNull(1) ? null : cursor.getLong(1),
+                    null
+            };
+        } finally {
+            cursor.close();
+        }
+        // 只有投影包含内容时才重建
+        for (int index : indexes) {
+            if (index == REVISION_NOTE_INDEX) {
+                row[REVISION_NOTE_INDEX] = reconstruct(db, noteId, revision);
+                break;
+            }
+        }
+
+        Object[] values = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            values[i] = row[indexes[i]];
+        }
+        result.addRow(values);
+        return result;
+    }
+
+    /**
+     * 从不晚于 revision 的最近快照开始依次应用增量，重建该版本的内容
+     */
+    static String reconstruct(SQLiteDatabase db, long noteId, long revision) {
+        String where = NotePad.Notes.COLUMN_NAME_NOTE_ID + " = " + noteId;
+        StringBuilder text;
+        long base;
+        Cursor cursor = db.query(NotePad.Notes.TABLE_NAME_REVISIONS,
+                new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_REVISION },
+                where + " AND " + NotePad.Notes.COLUMN_NAME_REVISION + " <= " + revision
+                        + " AND " + SNAPSHOT_EXPRESSION,
+                null, null, null, NotePad.Notes.COLUMN_NAME_REVISION + " DESC", "1");
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            text = new StringBuilder(queryData(db, cursor.getLong(0)));
+            base = cursor.getLong(1);
+        } finally {
+            cursor.close();
+        }
+
+        // 快照和增量的文本可能超过游标窗口的大小，游标只读取位置，文本逐条用编译的语句读取
+        cursor = db.query(NotePad.Notes.TABLE_NAME_REVISIONS,
+                new String[] { NotePad.Notes._ID, COLUMN_DELTA_START, COLUMN_DELTA_LENGTH },
+                where + " AND " + NotePad.Notes.COLUMN_NAME_REVISION + " > " + base
+                        + " AND " + NotePad.Notes.COLUMN_NAME_REVISION + " <= " + revision,
+                null, null, null, NotePad.Notes.COLUMN_NAME_REVISION + " ASC");
+        try {
+            while (cursor.moveToNext()) {
+                int start = cursor.getInt(1);
+                text.replace(start, start + cursor.getInt(2), queryData(db, cursor.getLong(0)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return text.toString();
+    }
+
+    /**
+     * 返回版本行中的文本
+     */
+    private static String queryData(SQLiteDatabase db, long rowId) {
+        return queryString(db, "SELECT " + COLUMN_DATA + " FROM " + NotePad.Notes.TABLE_NAME_REVISIONS
+                + " WHERE " + NotePad.Notes._ID + " = " + rowId);
+    }
+
+    /**
+     * 执行只返回一个值的查询。结果直接读入字符串，不受游标窗口大小的限制。
+     *
+     * @throws SQLiteDoneException 查询没有返回行
+     */
+    private static String queryString(SQLiteDatabase db, String sql) {
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            return statement.simpleQueryForString();
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static void insertSnapshot(SQLiteDatabase db, long noteId, long revision, String note,
+                                       Long modified) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE_ID, noteId);
+        values.put(NotePad.Notes.COLUMN_NAME_REVISION, revision);
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, modified);
+        values.put(COLUMN_DATA, note != null ? note : "");
+        db.insertOrThrow(NotePad.Notes.TABLE_NAME_REVISIONS, null, values);
+    }
+
+    private static long lastRevision(SQLiteDatabase db, long noteId) {
+        Cursor cursor = db.query(NotePad.Notes.TABLE_NAME_REVISIONS,
+                new String[] { "MAX(" + NotePad.Notes.COLUMN_NAME_REVISION + ")" },
+                NotePad.Notes.COLUMN_NAME_NOTE_ID + " = " + noteId, null, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int max = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    // 公共后缀不与已经算出的公共前缀重叠
+    private static int commonSuffix(String a, String b, int prefix) {
+        int max = Math.min(a.length(), b.length()) - prefix;
+        int i = 0;
+        while (i < max && a.charAt(a.length() - 1 - i) == b.charAt(b.length() - 1 - i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < REVISION_COLUMNS.length; i++) {
+            if (REVISION_COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("无效的列 " + column);
+    }
+}
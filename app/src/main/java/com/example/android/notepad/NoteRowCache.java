@@ -0,0 +1,201 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Bundle;
+import android.util.LruCache;
+
+/**
+ * 按ID缓存最近读取的笔记行，供 {@link NotePadProvider} 响应 notes/# 查询。
+ *
+ * 打开一条笔记时编辑器、标题编辑框和粘贴等会多次读取同一行，命中缓存时直接由内存中的行
+ * 构造游标，不再访问 SQLite。缓存按估算的字节数限制总大小，超过上限时淘汰最久未使用的行；
+ * 过大的笔记不缓存，避免一条笔记挤掉其他所有行。
+ *
+ * 写操作提交后由提供程序调用 {@link #remove(long)} 或 {@link #evictAll()}。
+ * 每次失效都会递增代数，失效之前开始的读取不能再把读到的旧行放入缓存。
+ */
+final class NoteRowCache {
+
+    /**
+     * 缓存的列，即 notes/# 查询可以返回的所有列
+     */
+    static final String[] COLUMNS = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_PREVIEW,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_TAG_ID,
+            NotePad.Notes.COLUMN_NAME_VERSION
+    };
+
+    /**
+     * {@link #getStats()} 返回的 Bundle 中的键
+     */
+    static final String STATS_HITS = "hits";
+    static final String STATS_MISSES = "misses";
+    static final String STATS_EVICTIONS = "evictions";
+    static final String STATS_SIZE = "size";
+    static final String STATS_MAX_SIZE = "max_size";
+
+    // 每行除字符串内容外的固定开销估算（对象头、数组和装箱的数值列）
+    private static final int ROW_OVERHEAD_BYTES = 96;
+
+    private final LruCache<Long, Object[]> mRows;
+    private final int mMaxRowBytes;
+
+    // 由 this 保护
+    private long mGeneration;
+
+    /**
+     * @param maxBytes 缓存的总大小上限（估算的字节数），单行最多占四分之一
+     */
+    NoteRowCache(int maxBytes) {
+        mRows = new LruCache<Long, Object[]>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, Object[] row) {
+                return estimateSize(row);
+            }
+        };
+        mMaxRowBytes = maxBytes / 4;
+    }
+
+    /**
+     * 查询的投影是否都在缓存的列中。投影为 null 时返回所有缓存的列。
+     */
+    static boolean isCacheable(String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        for (String column : projection) {
+            if (indexOf(column) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 返回缓存的行，不存在时返回 null。返回的数组不能修改。
+     */
+    Object[] get(long noteId) {
+        return mRows.get(noteId);
+    }
+
+    /**
+     * 返回当前代数，在从数据库读取行之前取得，放入缓存时传给 {@link #put}。
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * 放入从数据库读到的行。读取期间发生过失效时丢弃，读到的可能是写操作之前的内容。
+     */
+    synchronized void put(long noteId, Object[] row, long generation) {
+        if (generation == mGeneration && estimateSize(row) <= mMaxRowBytes) {
+            mRows.put(noteId, row);
+        }
+    }
+
+    /**
+     * 使一条笔记的缓存失效。
+     */
+    synchronized void remove(long noteId) {
+        mGeneration++;
+        mRows.remove(noteId);
+    }
+
+    /**
+     * 使所有缓存失效，用于无法逐条确定受影响笔记的写操作。
+     */
+    synchronized void evictAll() {
+        mGeneration++;
+        mRows.evictAll();
+    }
+
+    /**
+     * 返回命中、未命中、淘汰次数和当前大小，用于调整缓存大小。
+     */
+    Bundle getStats() {
+        Bundle stats = new Bundle();
+        stats.putInt(STATS_HITS, mRows.hitCount());
+        stats.putInt(STATS_MISSES, mRows.missCount());
+        stats.putInt(STATS_EVICTIONS, mRows.evictionCount());
+        stats.putInt(STATS_SIZE, mRows.size());
+        stats.putInt(STATS_MAX_SIZE, mRows.maxSize());
+        return stats;
+    }
+
+    /**
+     * 从游标的当前行读取一行缓存数据，游标的列必须是 {@link #COLUMNS}。
+     */
+    static Object[] readRow(Cursor cursor) {
+        return new Object[] {
+                cursor.getLong(0),
+                cursor.getString(1),
+                cursor.getString(2),
+                cursor.getString(3),
+                cursor.isNull(4) ? null : cursor.getLong(4),
+                cursor.isNull(5) ? null : cursor.getLong(5),
+                cursor.getLong(6)
+        };
+    }
+
+    /**
+     * 返回行的版本号
+     */
+    static long version(Object[] row) {
+        return (Long) row[6];
+    }
+
+    /**
+     * 返回行的修改时间，可能为 null
+     */
+    static Long modified(Object[] row) {
+        return (Long) row[4];
+    }
+
+    /**
+     * 返回条件读取的存根行：只保留 _id、修改时间和版本号
+     */
+    static Object[] stub(Object[] row) {
+        return new Object[] { row[0], null, null, null, row[4], null, row[6] };
+    }
+
+    /**
+     * 用缓存的行构造只含投影中各列的游标；row 为 null 时返回空游标。
+     */
+    static MatrixCursor toCursor(Object[] row, String[] projection) {
+        String[] columns = projection != null ? projection : COLUMNS;
+        MatrixCursor cursor = new MatrixCursor(columns, row != null ? 1 : 0);
+        if (row != null) {
+            Object[] values = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                values[i] = row[indexOf(columns[i])];
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int estimateSize(Object[] row) {
+        int size = ROW_OVERHEAD_BYTES;
+        for (Object value : row) {
+            if (value instanceof String) {
+                size += ((String) value).length() * 2;
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.android.notepad;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.List;
+
+/**
+ * 笔记列表的适配器。
+ *
+ * 行ID即笔记ID（稳定ID）。新的结果通过 {@link AsyncListDiffer} 在后台线程与当前列表比较，
+ * 只对新增、删除、移动和内容变化的行发出更新，其余可见行不会重新绑定，滚动位置也保持不变。
+ * 绑定时只把快照中算好的文本和颜色设置到视图上，滚动时不产生临时对象。
+ */
+class NotesAdapter extends RecyclerView.Adapter<NotesAdapter.ViewHolder> {
+
+    /**
+     * 行的点击回调
+     */
+    interface OnNoteClickListener {
+        void onNoteClick(NoteItem note);
+    }
+
+    private static final DiffUtil.ItemCallback<NoteItem> DIFF_CALLBACK =
+            new DiffUtil.ItemCallback<NoteItem>() {
+                @Override
+                public boolean areItemsTheSame(@NonNull NoteItem oldItem, @NonNull NoteItem newItem) {
+                    return oldItem.id == newItem.id;
+                }
+
+                @Override
+                public boolean areContentsTheSame(@NonNull NoteItem oldItem, @NonNull NoteItem newItem) {
+                    return oldItem.equals(newItem);
+                }
+            };
+
+    private final AsyncListDiffer<NoteItem> mDiffer = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+    private final OnNoteClickListener mClickListener;
+    private final View.OnCreateContextMenuListener mContextMenuListener;
+
+    /**
+     * @param contextMenuListener 长按行时创建上下文菜单，回调中的 View 是行的根视图
+     */
+    NotesAdapter(OnNoteClickListener clickListener,
+                 View.OnCreateContextMenuListener contextMenuListener) {
+        mClickListener = clickListener;
+        mContextMenuListener = contextMenuListener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * 提交新的列表，差异计算完成并应用后调用 commitCallback（可以为 null）。
+     * 提交后调用方不能再修改这个列表。
+     */
+    void submitList(List<NoteItem> notes, Runnable commitCallback) {
+        mDiffer.submitList(notes, commitCallback);
+    }
+
+    /**
+     * 返回当前显示的列表，不可修改
+     */
+    List<NoteItem> getCurrentList() {
+        return mDiffer.getCurrentList();
+    }
+
+    NoteItem getItem(int position) {
+        return mDiffer.getCurrentList().get(position);
+    }
+
+    @Override
+    public int getItemCount() {
+        return mDiffer.getCurrentList().size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return getItem(position).id;
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.noteslist_item, parent, false);
+        final ViewHolder holder = new ViewHolder(view);
+        view.setOnClickListener(v -> {
+            int position = holder.getBindingAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                mClickListener.onNoteClick(getItem(position));
+            }
+        });
+        view.setOnCreateContextMenuListener(mContextMenuListener);
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        NoteItem note = getItem(position);
+        holder.title.setText(note.title);
+        holder.time.setText(note.modifiedText);
+
+        // 预览由提供程序截断好，列表不会读取完整的笔记内容
+        holder.preview.setText(note.preview != null ? note.preview : "");
+
+        // 标签名称和颜色由联接查询直接给出
+        if (note.hasTag()) {
+            holder.tag.setText(note.tagName);
+            holder.tag.setBackgroundColor(note.tagColor);
+            holder.tag.setTextColor(note.tagTextColor);
+            holder.tag.setVisibility(View.VISIBLE);
+        } else {
+            holder.tag.setVisibility(View.GONE);
+        }
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView title;
+        final TextView time;
+        final TextView preview;
+        final TextView tag;
+
+        ViewHolder(@NonNull View itemView) {
+            super(itemView);
+            title = itemView.findViewById(android.R.id.text1);
+            time = itemView.findViewById(R.id.tv_time);
+            preview = itemView.findViewById(R.id.tv_preview);
+            tag = itemView.findViewById(R.id.tv_tag);
+        }
+    }
+}
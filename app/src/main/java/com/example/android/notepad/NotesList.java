@@ -7,35 +7,33 @@ import android.content.ComponentName;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
-import android.graphics.Color;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.Handler;
-import android.util.Log;
+import android.os.OperationCanceledException;
 import android.view.ContextMenu;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ContextMenu.ContextMenuInfo;
-import android.widget.AdapterView;
 import android.widget.Button;
-import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
-import android.widget.TextView;
 import android.widget.Toast;
 import androidx.appcompat.widget.SearchView;
 
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.DividerItemDecoration;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
         /**
  * 显示笔记列表。如果启动Intent中提供了{@link Uri}，则显示该Uri对应的笔记，
@@ -47,34 +45,56 @@ public class NotesList extends AppCompatActivity {
             private static final String TAG = "NotesList";
 
             /**
-             * 游标适配器所需的列
+             * 当前筛选的标签ID
              */
-            private static final String[] PROJECTION = new String[]{
-                    NotePad.Notes._ID, // 0
-                    NotePad.Notes.COLUMN_NAME_TITLE, // 1
-                    NotePad.Notes.COLUMN_NAME_NOTE, // 2
-                    NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 3
-                    NotePad.Notes.COLUMN_NAME_TAG_ID // 4 标签ID列
-            };
+            private long mCurrentFilterTagId = -1; // -1 表示不过滤
 
             /**
-             * 标题列的索引
+             * 普通列表每页加载的笔记数
              */
-            private long mCurrentFilterTagId = -1; // -1 表示不过滤
-            private static final int COLUMN_INDEX_TITLE = 1;
-            private static final int COLUMN_INDEX_NOTE = 2;
-            private static final int COLUMN_INDEX_MODIFICATION_DATE = 3;
-            private static final int COLUMN_INDEX_TAG_ID = 4;
+            private static final int PAGE_SIZE = 50;
 
             private Button mTagFilterButton;
-            private Map<Long, Tag> mTagCache = new HashMap<>();
 
             private Handler searchHandler = new Handler();
             private Runnable searchRunnable;
-            private ListView mListView;
-            private SimpleCursorAdapter mAdapter;
+            private RecyclerView mRecyclerView;
+            private NotesAdapter mAdapter;
             private ThemeSelectionDialog themeDialog;
 
+            // 执行列表查询的后台线程，单线程保证查询按提交顺序执行
+            private final ExecutorService mQueryExecutor = Executors.newSingleThreadExecutor();
+            // 当前正在执行的查询的取消信号，只在主线程访问
+            private CancellationSignal mQuerySignal;
+            // 当前的搜索词，为 null 表示显示普通列表
+            private String mSearchQuery;
+            // 最近一次提交给适配器的列表，适配器可能还在后台计算差异，分页以它为准
+            private List<NoteItem> mNotes = new ArrayList<>();
+            // 上下文菜单所针对的笔记
+            private NoteItem mContextMenuNote;
+            // 普通列表是否还有未加载的页
+            private boolean mHasMorePages;
+            // 每次开始替换整个列表的查询时加一，在此之前提交的单行查询的结果不再使用
+            private int mListGeneration;
+
+            private final ContentObserver mNotesObserver = new ContentObserver(new Handler()) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    onChange(selfChange, null);
+                }
+
+                @Override
+                public void onChange(boolean selfChange, Uri uri) {
+                    long noteId = parseNoteId(uri);
+                    if (noteId >= 0 && mSearchQuery == null) {
+                        // 单条笔记的变化（例如编辑器的自动保存）只重新查询这一行
+                        reloadNote(noteId);
+                    } else {
+                        reloadCurrentQuery();
+                    }
+                }
+            };
+
             /**
              * 当Android从头开始启动此Activity时调用onCreate
              */
@@ -100,143 +120,38 @@ public class NotesList extends AppCompatActivity {
                     intent.setData(NotePad.Notes.CONTENT_URI);
                 }
 
-                // 初始化ListView
-                mListView = findViewById(R.id.list_view);
-
-                /*
-                 * 为ListView设置上下文菜单激活的回调。监听器设置为
-                 * 此Activity。效果是为ListView中的项目启用上下文菜单，
-                 * 并且上下文菜单由NotesList中的方法处理。
-                 */
-                mListView.setOnCreateContextMenuListener(this);
-
-                /* 执行托管查询。Activity在需要时处理关闭和重新查询游标
-                 */
-                Cursor cursor = getContentResolver().query(
-                        getIntent().getData(),
-                        PROJECTION,
-                        null,
-                        null,
-                        NotePad.Notes.DEFAULT_SORT_ORDER
-                );
-
-                /*
-                 * 以下两个数组在游标中的列和ListView中项目的视图ID之间创建"映射"
-                 * dataColumns数组中的每个元素代表一个列名；
-                 * viewID数组中的每个元素代表一个视图的ID。
-                 * SimpleCursorAdapter按升序映射它们以确定每个列值将出现在ListView中的位置。
-                 */
-
-                // 要在视图中显示的游标列的名称，初始化为标题列
-                String[] dataColumns = {
-                        NotePad.Notes.COLUMN_NAME_TITLE,
-                        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
-                        NotePad.Notes.COLUMN_NAME_NOTE,  // 添加笔记内容用于预览
-                        NotePad.Notes.COLUMN_NAME_TAG_ID  // 标签ID
-                };
-
-                // 将显示游标列的视图ID，初始化为noteslist_item.xml中的TextView
-                int[] viewIDs = {
-                        android.R.id.text1,
-                        R.id.tv_time,
-                        R.id.tv_preview,
-                        R.id.tv_tag          // 只保留一个标签文本视图
-                };
-
-                // 创建适配器
-                mAdapter = new SimpleCursorAdapter(
-                        this,
-                        R.layout.noteslist_item,
-                        cursor,
-                        dataColumns,
-                        viewIDs
-                );
-
-                // 设置自定义的ViewBinder来处理时间显示逻辑
-                mAdapter.setViewBinder(new SimpleCursorAdapter.ViewBinder() {
+                // 初始化列表。行的视图和绑定由 NotesAdapter 负责，点击打开笔记，长按弹出上下文菜单
+                mRecyclerView = findViewById(R.id.list_view);
+                final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+                mRecyclerView.setLayoutManager(layoutManager);
+                mRecyclerView.setHasFixedSize(true);
+                DividerItemDecoration divider = new DividerItemDecoration(this, DividerItemDecoration.VERTICAL);
+                divider.setDrawable(ContextCompat.getDrawable(this, R.drawable.list_divider));
+                mRecyclerView.addItemDecoration(divider);
+                mAdapter = new NotesAdapter(note -> onNoteClick(note.id), this);
+                mRecyclerView.setAdapter(mAdapter);
+
+                // 滚动到接近已加载部分的末尾时加载下一页
+                mRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
                     @Override
-                    public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
-                        if (view.getId() == R.id.tv_time) {
-                            long modificationDate = cursor.getLong(COLUMN_INDEX_MODIFICATION_DATE);
-                            String timeText = formatTimestamp(modificationDate);
-                            TextView timeView = (TextView) view;
-                            timeView.setText(timeText);
-                            return true;
-                        } else if (view.getId() == R.id.tv_preview) {
-                            String noteContent = cursor.getString(COLUMN_INDEX_NOTE);
-                            if (noteContent != null && noteContent.length() > 100) {
-                                noteContent = noteContent.substring(0, 100) + "...";
-                            }
-                            TextView previewView = (TextView) view;
-                            previewView.setText(noteContent != null ? noteContent : "");
-                            return true;
-                        } else if (view.getId() == R.id.tag_indicator || view.getId() == R.id.tv_tag) {
-                            // 两个标签视图都使用同一个标签ID列
-                            long tagId = cursor.getLong(COLUMN_INDEX_TAG_ID);
-
-                            if (view.getId() == R.id.tag_indicator) {
-                                View tagView = view;
-                                if (tagId > 0) {
-                                    Tag tag = getTagFromCache(tagId);
-                                    if (tag != null) {
-                                        tagView.setBackgroundColor(tag.getColor());
-                                        tagView.setVisibility(View.VISIBLE);
-                                    } else {
-                                        tagView.setVisibility(View.INVISIBLE);
-                                    }
-                                } else {
-                                    tagView.setVisibility(View.INVISIBLE);
-                                }
-                                return true;
-                            } else if (view.getId() == R.id.tv_tag) {
-                                TextView tagTextView = (TextView) view;
-                                if (tagId > 0) {
-                                    Tag tag = getTagFromCache(tagId);
-                                    if (tag != null) {
-                                        tagTextView.setText(tag.getName());
-                                        tagTextView.setBackgroundColor(tag.getColor());
-                                        int textColor = getContrastColor(tag.getColor());
-                                        tagTextView.setTextColor(textColor);
-                                        tagTextView.setVisibility(View.VISIBLE);
-                                    } else {
-                                        tagTextView.setVisibility(View.GONE);
-                                    }
-                                } else {
-                                    tagTextView.setVisibility(View.GONE);
-                                }
-                                return true;
-                            }
+                    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                        int itemCount = mAdapter.getItemCount();
+                        if (itemCount > 0 && layoutManager.findLastVisibleItemPosition()
+                                >= itemCount - PAGE_SIZE / 2) {
+                            loadNextPage();
                         }
-                        return false;
                     }
                 });
 
-                mListView.setAdapter(mAdapter);
+                // 提前在后台加载标签，筛选对话框打开时可以直接使用
+                TagRepository.getInstance(this);
 
-                // 设置列表项点击监听器
-                mListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
-                    @Override
-                    public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                        onListItemClick((ListView) parent, view, position, id);
-                    }
-                });
-            }
-            private int getContrastColor(int color) {
-                // 计算颜色的亮度
-                double luminance = (0.299 * Color.red(color) +
-                        0.587 * Color.green(color) +
-                        0.114 * Color.blue(color)) / 255;
-
-                // 如果亮度大于0.5，使用黑色文字，否则使用白色文字
-                return luminance > 0.5 ? Color.BLACK : Color.WHITE;
-            }
+                // 数据变化时在后台重新执行当前的查询
+                getContentResolver().registerContentObserver(
+                        NotePad.Notes.CONTENT_URI, true, mNotesObserver);
 
-            /**
-             * 格式化时间戳为易读的字符串
-             */
-            private String formatTimestamp(long timestamp) {
-                SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.getDefault());
-                return sdf.format(new Date(timestamp));
+                // 在后台加载笔记列表
+                refreshNoteList();
             }
 
             /*
@@ -304,123 +219,309 @@ public class NotesList extends AppCompatActivity {
                 return super.onCreateOptionsMenu(menu);
             }
 
+            @Override
+            protected void onDestroy() {
+                super.onDestroy();
+                getContentResolver().unregisterContentObserver(mNotesObserver);
+                searchHandler.removeCallbacks(searchRunnable);
+
+                // 中止仍在执行的查询，并关闭当前游标
+                if (mQuerySignal != null) {
+                    mQuerySignal.cancel();
+                    mQuerySignal = null;
+                }
+                mQueryExecutor.shutdown();
+            }
+
+            /**
+             * 重新执行当前显示的查询（搜索或按标签筛选），用于笔记集合的变化
+             */
+            private void reloadCurrentQuery() {
+                if (mSearchQuery != null) {
+                    loadSearchResults(mSearchQuery, false);
+                } else {
+                    // 重新加载已经显示的所有行，避免列表缩回第一页
+                    refreshNoteList(Math.max(PAGE_SIZE, mNotes.size()));
+                }
+            }
+
             private void performSearch(String query) {
                 if (query == null || query.trim().isEmpty()) {
                     refreshNoteList();
                     return;
                 }
+                loadSearchResults(query, true);
+            }
 
-                String selection;
-                String[] selectionArgs;
+            private void loadSearchResults(String query, boolean notifyIfEmpty) {
+                mSearchQuery = query;
+                mListGeneration++;
 
-                if (mCurrentFilterTagId != -1) {
-                    selection = "(" + NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? OR " +
-                            NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?) AND " +
-                            NotePad.Notes.COLUMN_NAME_TAG_ID + " = ?";
-                    selectionArgs = new String[]{"%" + query + "%", "%" + query + "%",
-                            String.valueOf(mCurrentFilterTagId)};
-                } else {
-                    selection = NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? OR " +
-                            NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?";
-                    selectionArgs = new String[]{"%" + query + "%", "%" + query + "%"};
-                }
+                // 通过全文索引搜索标题和内容，结果按相关度排序，不分页
+                Uri searchUri = appendTagFilter(NotePad.Notes.SEARCH_URI.buildUpon()
+                        .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, query))
+                        .build();
 
-                Cursor cursor = getContentResolver().query(
-                        getIntent().getData(),
-                        PROJECTION,
-                        selection,
-                        selectionArgs,
-                        NotePad.Notes.DEFAULT_SORT_ORDER
-                );
+                loadNotes(searchUri, getTagFilterSelection(), getTagFilterSelectionArgs(), null,
+                        notes -> showResults(notes, 0, notifyIfEmpty));
+            }
 
-                mAdapter.changeCursor(cursor);
+            /**
+             * 刷新笔记列表，显示所有笔记的第一页
+             */
+            private void refreshNoteList() {
+                refreshNoteList(PAGE_SIZE);
+            }
+
+            /**
+             * 刷新笔记列表，从头加载 limit 条笔记，其余的在滚动时分页加载
+             */
+            private void refreshNoteList(final int limit) {
+                mSearchQuery = null;
+                mListGeneration++;
 
-                if (cursor != null && cursor.getCount() == 0) {
-                    Toast.makeText(this, R.string.no_search_results, Toast.LENGTH_SHORT).show();
+                // 联接查询一次取回标签名称和颜色，绑定列表行时无需再逐行查询标签
+                Uri uri = appendTagFilter(NotePad.Notes.NOTES_WITH_TAGS_URI.buildUpon()
+                        .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, String.valueOf(limit)))
+                        .build();
+
+                loadNotes(uri, getTagFilterSelection(), getTagFilterSelectionArgs(), null,
+                        notes -> showResults(notes, limit, false));
+            }
+
+            /**
+             * 加载普通列表的下一页。以已加载的最后一行的 (修改时间, ID) 为起点，
+             * 提供程序通过索引直接定位，不会重新读取前面的行。
+             */
+            private void loadNextPage() {
+                // 搜索结果不分页；有查询正在执行时等它完成再决定是否继续加载
+                if (!mHasMorePages || mSearchQuery != null || mQuerySignal != null) {
+                    return;
+                }
+                if (mNotes.isEmpty()) {
+                    return;
                 }
+                NoteItem last = mNotes.get(mNotes.size() - 1);
+                Uri uri = appendTagFilter(NotePad.Notes.NOTES_WITH_TAGS_URI.buildUpon())
+                        .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_MODIFIED,
+                                String.valueOf(last.modified))
+                        .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_ID,
+                                String.valueOf(last.id))
+                        .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, String.valueOf(PAGE_SIZE))
+                        .build();
+
+                loadNotes(uri, getTagFilterSelection(), getTagFilterSelectionArgs(), null, this::appendPage);
             }
 
             /**
-             * 刷新笔记列表，显示所有笔记
+             * 重新查询普通列表中的一条笔记并修补已加载的列表。查询排在此前提交的查询之后执行；
+             * 结果返回之前又开始了替换整个列表的查询时丢弃结果，新的列表已经包含这条笔记的变化。
              */
-            private void refreshNoteList() {
-                String selection = null;
-                String[] selectionArgs = null;
+            private void reloadNote(final long noteId) {
+                final int generation = mListGeneration;
+                String selection = NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " = " + noteId;
+                String filter = getTagFilterSelection();
+                if (filter != null) {
+                    selection = selection + " AND " + filter;
+                }
+                final String noteSelection = selection;
+                final Uri uri = appendTagFilter(NotePad.Notes.NOTES_WITH_TAGS_URI.buildUpon()).build();
+
+                mQueryExecutor.execute(() -> {
+                    List<NoteItem> notes = null;
+                    Cursor cursor = getContentResolver().query(uri, NoteItem.PROJECTION,
+                            noteSelection, getTagFilterSelectionArgs(), null);
+                    if (cursor != null) {
+                        try {
+                            notes = NoteItem.fromCursor(cursor);
+                        } finally {
+                            cursor.close();
+                        }
+                    }
+
+                    final List<NoteItem> result = notes;
+                    runOnUiThread(() -> {
+                        if (result == null || generation != mListGeneration || mSearchQuery != null
+                                || isDestroyed()) {
+                            return;
+                        }
+                        patchNote(noteId, result.isEmpty() ? null : result.get(0));
+                    });
+                });
+            }
 
-                if (mCurrentFilterTagId != -1) {
-                    selection = NotePad.Notes.COLUMN_NAME_TAG_ID + " = ?";
-                    selectionArgs = new String[]{String.valueOf(mCurrentFilterTagId)};
+            /**
+             * 用一条笔记的新快照修补已加载的列表：移到按 (修改时间, ID) 倒序的位置，
+             * note 为 null（笔记已被删除或不再符合筛选条件）时移除。
+             * 排在已加载的最后一行之后、并且还有未加载的页时不插入，由之后的分页加载。
+             */
+            private void patchNote(long noteId, NoteItem note) {
+                List<NoteItem> notes = new ArrayList<>(mNotes);
+                for (int i = 0; i < notes.size(); i++) {
+                    if (notes.get(i).id == noteId) {
+                        notes.remove(i);
+                        break;
+                    }
                 }
+                if (note != null) {
+                    int position = 0;
+                    while (position < notes.size() && isAfter(note, notes.get(position))) {
+                        position++;
+                    }
+                    if (position < notes.size() || !mHasMorePages) {
+                        notes.add(position, note);
+                    }
+                }
+                mNotes = notes;
+                mAdapter.submitList(notes, null);
+            }
 
-                Cursor cursor = getContentResolver().query(
-                        getIntent().getData(),
-                        PROJECTION,
-                        selection,
-                        selectionArgs,
-                        NotePad.Notes.DEFAULT_SORT_ORDER
-                );
+            // 按 (修改时间, ID) 倒序时 a 是否排在 b 之后
+            private static boolean isAfter(NoteItem a, NoteItem b) {
+                return a.modified < b.modified || (a.modified == b.modified && a.id < b.id);
+            }
 
-                mAdapter.changeCursor(cursor);
+            /**
+             * 返回 notes/# 形式的 URI 中的笔记 ID，其他 URI 返回 -1
+             */
+            private static long parseNoteId(Uri uri) {
+                if (uri == null) {
+                    return -1;
+                }
+                List<String> segments = uri.getPathSegments();
+                if (segments.size() != 2
+                        || !NotePad.Notes.CONTENT_URI.getLastPathSegment().equals(segments.get(0))) {
+                    return -1;
+                }
+                try {
+                    return Long.parseLong(segments.get(1));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
             }
 
+            /**
+             * 按标签筛选时通过关系表匹配带有该标签的笔记，不只是以它为主标签的笔记
+             */
+            private Uri.Builder appendTagFilter(Uri.Builder builder) {
+                if (mCurrentFilterTagId > 0) {
+                    builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_TAGS,
+                            String.valueOf(mCurrentFilterTagId));
+                }
+                return builder;
+            }
 
-            /*
-             * 检查剪贴板的内容 启用/禁用粘贴选项，若有选中项则生成编辑操作，动态更新菜单状态
+            /**
+             * "无标签"筛选：没有任何标签的笔记主标签为 0
              */
-            @Override
-            public boolean onPrepareOptionsMenu(Menu menu) {
-                super.onPrepareOptionsMenu(menu);
+            private String getTagFilterSelection() {
+                return mCurrentFilterTagId == 0 ? NotePad.Notes.COLUMN_NAME_TAG_ID + " = 0" : null;
+            }
 
-                // 获取当前显示的笔记数量
-                final boolean haveItems = mAdapter.getCount() > 0;
+            private String[] getTagFilterSelectionArgs() {
+                return null;
+            }
 
-                // 如果列表中有任何笔记（这意味着其中一个被选中），
-                // 那么我们需要生成可以在当前选择上执行的操作。
-                // 这将是我们自己的特定操作以及可以找到的任何扩展的组合。
-                if (haveItems && mListView.getSelectedItemId() != AdapterView.INVALID_ROW_ID) {
+            /**
+             * 用新的查询结果替换整个列表。适配器在后台与当前列表比较，只更新有变化的行。
+             *
+             * @param pageLimit 普通列表本次加载的行数，结果满页时说明可能还有下一页；搜索结果传 0
+             */
+            private void showResults(List<NoteItem> notes, int pageLimit, boolean notifyIfEmpty) {
+                if (notes == null) {
+                    notes = new ArrayList<>();
+                }
+                mNotes = notes;
+                mHasMorePages = pageLimit > 0 && notes.size() >= pageLimit;
+                mAdapter.submitList(notes, null);
 
-                    // 这是选中的项目
-                    Uri uri = ContentUris.withAppendedId(getIntent().getData(), mListView.getSelectedItemId());
+                if (notifyIfEmpty && notes.isEmpty()) {
+                    Toast.makeText(NotesList.this, R.string.no_search_results,
+                            Toast.LENGTH_SHORT).show();
+                }
+            }
 
-                    // 创建一个包含一个元素的Intent数组。这将用于根据选定的菜单项发送Intent
-                    Intent[] specifics = new Intent[1];
+            /**
+             * 把新加载的一页接在已加载的行之后。提交的是新的列表，已提交的列表不能修改。
+             */
+            private void appendPage(List<NoteItem> page) {
+                if (page == null) {
+                    mHasMorePages = false;
+                    return;
+                }
+                mHasMorePages = page.size() >= PAGE_SIZE;
+                if (page.isEmpty()) {
+                    return;
+                }
+                List<NoteItem> notes = new ArrayList<>(mNotes.size() + page.size());
+                notes.addAll(mNotes);
+                notes.addAll(page);
+                mNotes = notes;
+                mAdapter.submitList(notes, null);
+            }
 
-                    // 将数组中的Intent设置为对所选笔记URI的EDIT操作
-                    specifics[0] = new Intent(Intent.ACTION_EDIT, uri);
+            /**
+             * 查询完成后在主线程接收结果
+             */
+            private interface QueryCallback {
+                void onQueryLoaded(List<NoteItem> notes);
+            }
 
-                    // 创建一个包含一个元素的菜单项数组。这将包含EDIT选项
-                    MenuItem[] items = new MenuItem[1];
+            /**
+             * 在后台线程执行查询并把结果读成快照，完成后在主线程把快照交给回调，游标在后台关闭。
+             * 新的查询会取消上一个尚未完成的查询，被取消的查询在 SQLite 内部中止，
+             * 只有最新一次查询的结果会显示。
+             */
+            private void loadNotes(final Uri uri, final String selection, final String[] selectionArgs,
+                                   final String sortOrder, final QueryCallback callback) {
+                if (mQuerySignal != null) {
+                    mQuerySignal.cancel();
+                }
+                final CancellationSignal signal = new CancellationSignal();
+                mQuerySignal = signal;
 
-                    // 创建一个没有特定操作的Intent，使用所选笔记的URI
-                    Intent intent = new Intent(null, uri);
+                mQueryExecutor.execute(() -> {
+                    if (signal.isCanceled()) {
+                        return;
+                    }
+                    List<NoteItem> notes = null;
+                    Cursor cursor = null;
+                    try {
+                        cursor = getContentResolver().query(
+                                uri, NoteItem.PROJECTION, selection, selectionArgs, sortOrder, signal);
+                        if (cursor != null) {
+                            notes = NoteItem.fromCursor(cursor);
+                        }
+                    } catch (OperationCanceledException e) {
+                        return;
+                    } finally {
+                        if (cursor != null) {
+                            cursor.close();
+                        }
+                    }
 
-                    /* 将ALTERNATIVE类别添加到Intent，使用笔记ID URI作为其数据。这准备Intent作为在菜单中分组替代选项的位置。
-                     */
-                    intent.addCategory(Intent.CATEGORY_ALTERNATIVE);
+                    final List<NoteItem> result = notes;
+                    runOnUiThread(() -> {
+                        // 在等待期间被更新的查询取代，或 Activity 已销毁，丢弃结果
+                        if (signal != mQuerySignal || isDestroyed()) {
+                            return;
+                        }
+                        mQuerySignal = null;
+                        callback.onQueryLoaded(result);
+                    });
+                });
+            }
 
-                    /*
-                     * 向菜单添加替代选项
-                     */
-                    menu.addIntentOptions(
-                            Menu.CATEGORY_ALTERNATIVE,  // 将Intent作为替代组中的选项添加
-                            Menu.NONE,                  // 不需要唯一的项目ID
-                            Menu.NONE,                  // 替代选项不需要按顺序排列
-                            null,                       // 不将调用者名称从组中排除
-                            specifics,                  // 这些特定选项必须首先出现
-                            intent,                     // 这些Intent对象映射到specifics中的选项
-                            Menu.NONE,                  // 不需要标志
-                            items                       // 从specifics到Intent映射生成的菜单项
-                    );
 
-                    // 如果编辑菜单项存在，为其添加快捷键
-                    if (items[0] != null) {
-                        // 将编辑菜单项快捷键设置为数字"1"，字母"e"
-                        items[0].setShortcut('1', 'e');
-                    }
-                } else {
-                    // 如果列表为空，从菜单中移除任何现有的替代操作
-                    menu.removeGroup(Menu.CATEGORY_ALTERNATIVE);
-                }
+            /*
+             * 检查剪贴板的内容 启用/禁用粘贴选项，若有选中项则生成编辑操作，动态更新菜单状态
+             */
+            @Override
+            public boolean onPrepareOptionsMenu(Menu menu) {
+                super.onPrepareOptionsMenu(menu);
+
+                // RecyclerView 没有选中项，针对单条笔记的替代操作通过上下文菜单提供
+                menu.removeGroup(Menu.CATEGORY_ALTERNATIVE);
 
                 // 显示菜单
                 return true;
@@ -450,7 +551,7 @@ public class NotesList extends AppCompatActivity {
 
             /**
              * 当用户在列表中上下文点击笔记时调用此方法。NotesList将其自身注册
-             * 为ListView中上下文菜单的处理程序（这是在onCreate()中完成的）。
+             * 为列表每一行的上下文菜单的处理程序（这是在NotesAdapter创建行视图时完成的）。
              * <p>
              * 唯一可用的选项是COPY和DELETE。
              * <p>
@@ -459,45 +560,27 @@ public class NotesList extends AppCompatActivity {
             @Override
             public void onCreateContextMenu(ContextMenu menu, View view, ContextMenuInfo menuInfo) {
 
-                // 菜单项中的数据
-                AdapterView.AdapterContextMenuInfo info;
-
-                // 尝试获取长按的ListView中项目的位置
-                try {
-                    // 将传入的数据对象转换为AdapterView对象的类型
-                    info = (AdapterView.AdapterContextMenuInfo) menuInfo;
-                } catch (ClassCastException e) {
-                    // 如果菜单对象无法转换，记录错误
-                    Log.e(TAG, "bad menuInfo", e);
-                    return;
-                }
-
-                /*
-                 * 获取选定位置处项目关联的数据。getItem()返回
-                 * ListView的后备适配器与项目关联的任何数据。在NotesList中，
-                 * 适配器将笔记的所有数据与其列表项关联。因此，
-                 * getItem()将该数据作为Cursor返回。
-                 */
-                Cursor cursor = (Cursor) mAdapter.getItem(info.position);
-
-                // 如果游标为空，则由于某种原因适配器无法从提供者获取数据，因此向调用者返回null
-                if (cursor == null) {
-                    // 由于某种原因请求的项目不可用，不执行任何操作
+                // 长按的是列表中的一行，由行视图找到对应的笔记快照
+                int position = mRecyclerView.getChildAdapterPosition(view);
+                if (position == RecyclerView.NO_POSITION) {
+                    // 行已被移除，不执行任何操作
                     return;
                 }
+                NoteItem note = mAdapter.getItem(position);
+                mContextMenuNote = note;
 
                 // 从XML资源加载菜单
                 MenuInflater inflater = getMenuInflater();
                 inflater.inflate(R.menu.list_context_menu, menu);
 
                 // 将菜单标题设置为所选笔记的标题
-                menu.setHeaderTitle(cursor.getString(COLUMN_INDEX_TITLE));
+                menu.setHeaderTitle(note.title);
 
                 // 附加到菜单项，用于任何其他可以对其进行操作的活动。
                 // 这会在系统上查询任何对我们的数据实现ALTERNATIVE_ACTION的活动，
                 // 为找到的每个活动添加一个菜单项。
                 Intent intent = new Intent(null, Uri.withAppendedPath(getIntent().getData(),
-                        Integer.toString((int) info.id)));
+                        Long.toString(note.id)));
                 intent.addCategory(Intent.CATEGORY_ALTERNATIVE);
                 intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                 menu.addIntentOptions(Menu.CATEGORY_ALTERNATIVE, 0, 0,
@@ -511,32 +594,13 @@ public class NotesList extends AppCompatActivity {
              */
             @Override
             public boolean onContextItemSelected(MenuItem item) {
-                // 菜单项中的数据
-                AdapterView.AdapterContextMenuInfo info;
-
-                /*
-                 * 从菜单项中获取额外信息。当笔记列表中的笔记被长按时，
-                 * 会出现上下文菜单。菜单的菜单项自动获取与长按的笔记关联的数据。
-                 * 数据来自支持列表的提供者。
-                 *
-                 * 笔记的数据在ContextMenuInfo对象中传递给上下文菜单创建例程。
-                 *
-                 * 当单击上下文菜单项之一时，相同的数据与笔记ID一起通过item参数传递给onContextItemSelected()。
-                 */
-                try {
-                    // 将item中的数据对象转换为AdapterView对象的类型
-                    info = (AdapterView.AdapterContextMenuInfo) item.getMenuInfo();
-                } catch (ClassCastException e) {
-
-                    // 如果对象无法转换，记录错误
-                    Log.e(TAG, "bad menuInfo", e);
-
-                    // 触发菜单项的默认处理
+                // 上下文菜单由 onCreateContextMenu() 为长按的笔记创建
+                if (mContextMenuNote == null) {
                     return false;
                 }
 
                 // 将所选笔记的ID附加到随传入Intent发送的URI
-                Uri noteUri = ContentUris.withAppendedId(getIntent().getData(), info.id);
+                Uri noteUri = ContentUris.withAppendedId(getIntent().getData(), mContextMenuNote.id);
 
                 /*
                  * 获取菜单项的ID并将其与已知操作进行比较
@@ -585,7 +649,7 @@ public class NotesList extends AppCompatActivity {
              * 此方法处理PICK（从提供者获取数据）或GET_CONTENT（获取或创建数据）的传入操作。
              * 如果传入操作是EDIT，此方法发送新的Intent以启动NoteEditor。
              */
-            protected void onListItemClick(ListView l, View v, int position, long id) {
+            private void onNoteClick(long id) {
 
                 // 从传入URI和行ID构造新URI
                 Uri uri = ContentUris.withAppendedId(getIntent().getData(), id);
@@ -607,16 +671,6 @@ public class NotesList extends AppCompatActivity {
                 }
             }
 
-            // 添加获取适配器的方法
-            public SimpleCursorAdapter getListAdapter() {
-                return mAdapter;
-            }
-
-            // 添加获取选中项ID的方法
-            public long getSelectedItemId() {
-                return mListView.getSelectedItemId();
-            }
-
             private void showThemeSelectionDialog() {
                 themeDialog = new ThemeSelectionDialog();
                 themeDialog.setOnThemeChangeListener(themeIndex -> {
@@ -630,63 +684,13 @@ public class NotesList extends AppCompatActivity {
                 ThemeManager.applyTheme(this);
             }
 
-            // 添加标签缓存方法
-            private Tag getTagFromCache(long tagId) {
-                if (mTagCache.containsKey(tagId)) {
-                    return mTagCache.get(tagId);
-                }
-
-                // 从数据库查询
-                Uri tagUri = ContentUris.withAppendedId(NotePad.Notes.TAG_ID_URI_BASE, tagId);
-                Cursor cursor = getContentResolver().query(
-                        tagUri,
-                        new String[]{
-                                NotePad.Notes.COLUMN_NAME_TAG_NAME,
-                                NotePad.Notes.COLUMN_NAME_TAG_COLOR
-                        },
-                        null,
-                        null,
-                        null
-                );
-
-                if (cursor != null && cursor.moveToFirst()) {
-                    Tag tag = new Tag();
-                    tag.setId(tagId);
-                    tag.setName(cursor.getString(0));
-                    tag.setColor(cursor.getInt(1));
-                    mTagCache.put(tagId, tag);
-                    cursor.close();
-                    return tag;
-                }
-
-                return null;
-            }
-
             private void showTagFilterDialog() {
                 androidx.appcompat.app.AlertDialog.Builder builder =
                         new androidx.appcompat.app.AlertDialog.Builder(this);
                 builder.setTitle(R.string.tag_filter);
 
-                // 加载所有标签
-                final List<Tag> tags = new ArrayList<>();
-                Cursor cursor = getContentResolver().query(
-                        NotePad.Notes.TAGS_CONTENT_URI,
-                        new String[]{"_id", "name", "color"},
-                        null,
-                        null,
-                        "name ASC"
-                );
-
-                if (cursor != null) {
-                    while (cursor.moveToNext()) {
-                        Tag tag = new Tag();
-                        tag.setId(cursor.getLong(0));
-                        tag.setName(cursor.getString(1));
-                        tag.setColor(cursor.getInt(2));
-                        tags.add(tag);
-                    }
-                    cursor.close();
-                }
+                // 从共享的标签缓存取得所有标签，按名称排序
+                final List<Tag> tags = TagRepository.getInstance(this).getTagsSortedByName();
 
                 // 添加"全部"选项
                 Tag allTag = new Tag();
@@ -700,9 +704,13 @@ public class NotesList extends AppCompatActivity {
                 noTag.setName(getString(R.string.tag_none));
                 tags.add(1, noTag);
 
+                // 标签后显示笔记数，计数由提供程序维护，无需逐个标签查询
                 String[] tagNames = new String[tags.size()];
                 for (int i = 0; i < tags.size(); i++) {
-                    tagNames[i] = tags.get(i).getName();
+                    Tag tag = tags.get(i);
+                    tagNames[i] = tag.getId() > 0
+                            ? getString(R.string.tag_with_count, tag.getName(), tag.getNoteCount())
+                            : tag.getName();
                 }
 
                 int selectedIndex = 0;
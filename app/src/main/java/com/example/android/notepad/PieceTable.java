@@ -0,0 +1,203 @@
+package com.example.android.notepad;
+
+import java.util.ArrayList;
+
+/**
+ * 大笔记的文本存储：片段表。
+ *
+ * 原始内容保存在只读的字符串中，编辑时插入的文本只追加到添加缓冲区，文档由按顺序排列的片段
+ * 组成，每个片段引用两个缓冲区之一中的一段。替换只拆分和增删片段，不复制原始内容，
+ * 因此在几兆字节的笔记中编辑的开销只与片段数有关。连续输入的字符合并到同一个片段中。
+ *
+ * 只有 {@link #toString()} 会拼出完整的字符串，应当只在保存时调用；
+ * 显示时用 {@link #subSequence(int, int)} 取出一段窗口。此类不是线程安全的。
+ */
+final class PieceTable implements CharSequence {
+
+    /**
+     * 一个片段：added 为 true 时引用添加缓冲区，否则引用原始内容
+     */
+    private static final class Piece {
+        final boolean added;
+        final int start;
+        final int length;
+
+        Piece(boolean added, int start, int length) {
+            this.added = added;
+            this.start = start;
+            this.length = length;
+        }
+    }
+
+    private final String mOriginal;
+    private final StringBuilder mAdded = new StringBuilder();
+    // 按文档顺序排列，不含空片段
+    private final ArrayList<Piece> mPieces = new ArrayList<>();
+    private int mLength;
+
+    PieceTable(String original) {
+        mOriginal = original;
+        mLength = original.length();
+        if (mLength > 0) {
+            mPieces.add(new Piece(false, 0, mLength));
+        }
+    }
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + mLength);
+        }
+        int pos = 0;
+        for (Piece piece : mPieces) {
+            if (index < pos + piece.length) {
+                return bufferOf(piece).charAt(piece.start + index - pos);
+            }
+            pos += piece.length;
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * 返回 [start, end) 之间的文本，复制到新的字符串中。
+     */
+    @Override
+    public String subSequence(int start, int end) {
+        checkRange(start, end);
+        StringBuilder out = new StringBuilder(end - start);
+        int pos = 0;
+        for (Piece piece : mPieces) {
+            int pieceEnd = pos + piece.length;
+            if (pieceEnd > start) {
+                if (pos >= end) {
+                    break;
+                }
+                int from = Math.max(start, pos) - pos;
+                int to = Math.min(end, pieceEnd) - pos;
+                out.append(bufferOf(piece), piece.start + from, piece.start + to);
+            }
+            pos = pieceEnd;
+        }
+        return out.toString();
+    }
+
+    /**
+     * 拼出完整的文档
+     */
+    @Override
+    public String toString() {
+        if (mPieces.size() == 1 && !mPieces.get(0).added && mLength == mOriginal.length()) {
+            return mOriginal;
+        }
+        return subSequence(0, mLength);
+    }
+
+    /**
+     * 返回 fromIndex 及之后第一次出现 c 的位置，不存在时返回 -1
+     */
+    int indexOf(char c, int fromIndex) {
+        int pos = 0;
+        for (Piece piece : mPieces) {
+            int pieceEnd = pos + piece.length;
+            if (pieceEnd > fromIndex) {
+                CharSequence buffer = bufferOf(piece);
+                for (int i = Math.max(fromIndex, pos) - pos; i < piece.length; i++) {
+                    if (buffer.charAt(piece.start + i) == c) {
+                        return pos + i;
+                    }
+                }
+            }
+            pos = pieceEnd;
+        }
+        return -1;
+    }
+
+    /**
+     * 返回 fromIndex 及之前最后一次出现 c 的位置，不存在时返回 -1
+     */
+    int lastIndexOf(char c, int fromIndex) {
+        int pos = mLength;
+        for (int p = mPieces.size() - 1; p >= 0; p--) {
+            Piece piece = mPieces.get(p);
+            pos -= piece.length;
+            if (pos <= fromIndex) {
+                CharSequence buffer = bufferOf(piece);
+                for (int i = Math.min(fromIndex - pos, piece.length - 1); i >= 0; i--) {
+                    if (buffer.charAt(piece.start + i) == c) {
+                        return pos + i;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 用 text 中 [textStart, textEnd) 之间的字符替换文档中 [start, end) 之间的文本。
+     * 插入时 start == end，删除时 textStart == textEnd。
+     */
+    void replace(int start, int end, CharSequence text, int textStart, int textEnd) {
+        checkRange(start, end);
+        int from = splitAt(start);
+        int to = splitAt(end);
+        mPieces.subList(from, to).clear();
+
+        int count = textEnd - textStart;
+        if (count > 0) {
+            int addedStart = mAdded.length();
+            mAdded.append(text, textStart, textEnd);
+            Piece previous = from > 0 ? mPieces.get(from - 1) : null;
+            if (previous != null && previous.added
+                    && previous.start + previous.length == addedStart) {
+                // 紧接着上一次输入的位置继续输入，延长原来的片段
+                mPieces.set(from - 1, new Piece(true, previous.start, previous.length + count));
+            } else {
+                mPieces.add(from, new Piece(true, addedStart, count));
+            }
+        }
+        mLength += count - (end - start);
+    }
+
+    /**
+     * 返回片段数，用于测试
+     */
+    int pieceCount() {
+        return mPieces.size();
+    }
+
+    /**
+     * 确保 offset 处是片段的边界，返回从 offset 开始的片段的下标（offset 为文档末尾时返回片段数）
+     */
+    private int splitAt(int offset) {
+        int pos = 0;
+        for (int i = 0; i < mPieces.size(); i++) {
+            if (pos == offset) {
+                return i;
+            }
+            Piece piece = mPieces.get(i);
+            if (offset < pos + piece.length) {
+                int head = offset - pos;
+                mPieces.set(i, new Piece(piece.added, piece.start, head));
+                mPieces.add(i + 1, new Piece(piece.added, piece.start + head, piece.length - head));
+                return i + 1;
+            }
+            pos += piece.length;
+        }
+        return mPieces.size();
+    }
+
+    private CharSequence bufferOf(Piece piece) {
+        return piece.added ? mAdded : mOriginal;
+    }
+
+    private void checkRange(int start, int end) {
+        if (start < 0 || end < start || end > mLength) {
+            throw new IndexOutOfBoundsException("[" + start + ", " + end + "), length " + mLength);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.android.notepad;
+
+import java.util.Locale;
+
+/**
+ * 全文搜索的分词规范化工具。
+ *
+ * SQLite 自带的 simple 分词器只按空白和 ASCII 标点切分，整段中文会被当成一个词，
+ * 因此索引文本和查询都先经过这里处理：中日韩字符连续段拆成相互重叠的二元组
+ * （"重要笔记" -> "重要 要笔 笔记 记"），其他文字按字母数字切词并转为小写。
+ * 索引和查询使用同一套切分规则，两个字以上的中文词可以直接命中索引。
+ */
+final class SearchTokenizer {
+
+    // 这个类不能被实例化
+    private SearchTokenizer() {
+    }
+
+    /**
+     * 将标题或正文转换为写入 FTS 表的文本。
+     * 每个中日韩字符段在二元组之后额外输出末尾的单字，保证段内每个字都是某个词的开头，
+     * 从而单字查询可以通过前缀匹配命中。
+     */
+    static String normalizeForIndex(String text) {
+        if (text == null || text.isEmpty()) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder(text.length() * 2);
+        String lower = text.toLowerCase(Locale.ROOT);
+        int length = lower.length();
+        int i = 0;
+        while (i < length) {
+            int cp = lower.codePointAt(i);
+            if (isCjk(cp)) {
+                int end = cjkRunEnd(lower, i);
+                appendBigrams(out, lower, i, end);
+                appendToken(out, lower, lower.offsetByCodePoints(end, -1), end);
+                i = end;
+            } else if (Character.isLetterOrDigit(cp)) {
+                int end = wordEnd(lower, i);
+                appendToken(out, lower, i, end);
+                i = end;
+            } else {
+                i += Character.charCount(cp);
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * 将用户输入的搜索词转换为 FTS MATCH 表达式，各部分之间为隐式 AND。
+     * 中文段按与索引相同的规则拆成二元组短语；单个汉字和其他文字的词按前缀匹配。
+     * 双引号等 FTS 语法字符不会出现在输出中。
+     *
+     * @return MATCH 表达式；如果输入中没有可搜索的词，返回 null。
+     */
+    static String buildMatchQuery(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        String lower = query.toLowerCase(Locale.ROOT);
+        int length = lower.length();
+        int i = 0;
+        while (i < length) {
+            int cp = lower.codePointAt(i);
+            int end;
+            if (isCjk(cp)) {
+                end = cjkRunEnd(lower, i);
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append('"');
+                if (lower.codePointCount(i, end) == 1) {
+                    // 单个汉字：匹配以它开头的二元组或末尾单字
+                    match.append(lower, i, end).append('*');
+                } else {
+                    // 连续二元组组成短语，要求在索引中相邻出现
+                    appendBigrams(match, lower, i, end);
+                    match.setLength(match.length() - 1);
+                }
+                match.append('"');
+            } else if (Character.isLetterOrDigit(cp)) {
+                end = wordEnd(lower, i);
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append('"').append(lower, i, end).append("*\"");
+            } else {
+                end = i + Character.charCount(cp);
+            }
+            i = end;
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /**
+     * 判断码点是否属于需要按二元组切分的文字（汉字、假名、谚文音节）。
+     * 使用码点区间判断，Character.UnicodeScript 在 API 24 以下不可用。
+     */
+    static boolean isCjk(int codePoint) {
+        return (codePoint >= 0x3040 && codePoint <= 0x30FF)     // 平假名、片假名
+                || (codePoint >= 0x31F0 && codePoint <= 0x31FF) // 片假名扩展
+                || (codePoint >= 0x3400 && codePoint <= 0x4DBF) // 汉字扩展 A
+                || (codePoint >= 0x4E00 && codePoint <= 0x9FFF) // 基本汉字
+                || (codePoint >= 0xAC00 && codePoint <= 0xD7AF) // 谚文音节
+                || (codePoint >= 0xF900 && codePoint <= 0xFAFF) // 兼容汉字
+                || (codePoint >= 0x20000 && codePoint <= 0x2FFFF); // 汉字扩展 B 及以后
+    }
+
+    private static int cjkRunEnd(String s, int start) {
+        int i = start;
+        while (i < s.length()) {
+            int cp = s.codePointAt(i);
+            if (!isCjk(cp)) {
+                break;
+            }
+            i += Character.charCount(cp);
+        }
+        return i;
+    }
+
+    private static int wordEnd(String s, int start) {
+        int i = start;
+        while (i < s.length()) {
+            int cp = s.codePointAt(i);
+            if (isCjk(cp) || !Character.isLetterOrDigit(cp)) {
+                break;
+            }
+            i += Character.charCount(cp);
+        }
+        return i;
+    }
+
+    /**
+     * 输出 [start, end) 段内相互重叠的二元组，每个二元组后跟一个空格。
+     */
+    private static void appendBigrams(StringBuilder out, String s, int start, int end) {
+        int first = start;
+        while (first < end) {
+            int second = s.offsetByCodePoints(first, 1);
+            if (second >= end) {
+                break;
+            }
+            int third = s.offsetByCodePoints(second, 1);
+            out.append(s, first, third).append(' ');
+            first = second;
+        }
+    }
+
+    private static void appendToken(StringBuilder out, String s, int start, int end) {
+        out.append(s, start, end).append(' ');
+    }
+}
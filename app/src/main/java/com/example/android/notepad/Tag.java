@@ -5,6 +5,7 @@ public class Tag {
     private String name;
     private int color;
     private long createdDate;
+    private int noteCount;
 
     public Tag() {}
 
@@ -28,6 +29,9 @@ public class Tag {
     public long getCreatedDate() { return createdDate; }
     public void setCreatedDate(long createdDate) { this.createdDate = createdDate; }
 
+    public int getNoteCount() { return noteCount; }
+    public void setNoteCount(int noteCount) { this.noteCount = noteCount; }
+
     @Override
     public String toString() {
         return name;
@@ -0,0 +1,198 @@
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 进程内共享的标签缓存。
+ *
+ * 标签在后台线程一次性加载，按ID存放在 {@link LongSparseArray} 中（避免 Long 装箱），
+ * 并通过 {@link NotePad.Notes#TAGS_CONTENT_URI} 上的 ContentObserver 在标签增删改或
+ * 标签的笔记数变化后自动重新加载。
+ * 笔记列表、编辑器和标签对话框都从这里读取标签，不再各自在主线程查询。
+ *
+ * 所有方法都只能在主线程调用；返回的 {@link Tag} 对象是共享的，调用方不能修改。
+ */
+final class TagRepository {
+
+    private static final String TAG = "TagRepository";
+
+    private static final String[] PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TAG_NAME,
+            NotePad.Notes.COLUMN_NAME_TAG_COLOR,
+            "created_date",
+            NotePad.Notes.COLUMN_NAME_TAG_NOTE_COUNT
+    };
+
+    /**
+     * 标签数据变化（包括首次加载完成）时在主线程回调
+     */
+    interface Listener {
+        void onTagsChanged(TagRepository repository);
+    }
+
+    private static TagRepository sInstance;
+
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final List<Listener> mListeners = new ArrayList<Listener>();
+
+    // 当前快照，整体替换，不在原对象上修改
+    private LongSparseArray<Tag> mTagsById = new LongSparseArray<Tag>();
+    private List<Tag> mTags = Collections.emptyList();
+    private boolean mLoaded;
+
+    // 每次加载递增，只接受最新一次加载的结果
+    private int mGeneration;
+
+    private final ContentObserver mObserver = new ContentObserver(mMainHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            reload();
+        }
+    };
+
+    private TagRepository(Context context) {
+        mContext = context.getApplicationContext();
+        mContext.getContentResolver().registerContentObserver(
+                NotePad.Notes.TAGS_CONTENT_URI, true, mObserver);
+        reload();
+    }
+
+    /**
+     * 返回共享实例，第一次调用时开始在后台加载标签。
+     */
+    static synchronized TagRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TagRepository(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * 首次加载是否已完成。未完成时 {@link #getTag(long)} 总是返回 null。
+     */
+    boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * 返回指定ID的标签，不存在时返回 null。
+     */
+    Tag getTag(long tagId) {
+        return mTagsById.get(tagId);
+    }
+
+    /**
+     * 返回所有标签，按创建时间排列。返回的列表不可修改。
+     */
+    List<Tag> getTags() {
+        return mTags;
+    }
+
+    /**
+     * 返回按名称排序的所有标签的新列表，调用方可以修改这个列表。
+     */
+    List<Tag> getTagsSortedByName() {
+        List<Tag> sorted = new ArrayList<Tag>(mTags);
+        Collections.sort(sorted, new Comparator<Tag>() {
+            @Override
+            public int compare(Tag a, Tag b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return sorted;
+    }
+
+    void addListener(Listener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * 在后台重新加载所有标签，完成后替换快照并通知监听器。
+     */
+    void reload() {
+        final int generation = ++mGeneration;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Tag> tags = queryTags();
+                if (tags == null) {
+                    return;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration) {
+                            publish(tags);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private List<Tag> queryTags() {
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(NotePad.Notes.TAGS_CONTENT_URI, PROJECTION,
+                    null, null, "created_date ASC");
+            if (cursor == null) {
+                return null;
+            }
+            List<Tag> tags = new ArrayList<Tag>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                Tag tag = new Tag();
+                tag.setId(cursor.getLong(0));
+                tag.setName(cursor.getString(1));
+                tag.setColor(cursor.getInt(2));
+                tag.setCreatedDate(cursor.getLong(3));
+                tag.setNoteCount(cursor.getInt(4));
+                tags.add(tag);
+            }
+            return tags;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error loading tags", e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private void publish(List<Tag> tags) {
+        LongSparseArray<Tag> byId = new LongSparseArray<Tag>(tags.size());
+        for (Tag tag : tags) {
+            byId.put(tag.getId(), tag);
+        }
+        mTagsById = byId;
+        mTags = Collections.unmodifiableList(tags);
+        mLoaded = true;
+
+        // 复制一份，监听器可能在回调中注销自己
+        for (Listener listener : new ArrayList<Listener>(mListeners)) {
+            listener.onTagsChanged(this);
+        }
+    }
+}
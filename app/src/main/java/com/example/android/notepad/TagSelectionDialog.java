@@ -4,7 +4,6 @@ import android.app.Dialog;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
-import android.database.Cursor;
 import android.graphics.Color;
 import android.net.Uri;
 import android.os.Bundle;
@@ -62,6 +61,14 @@ public class TagSelectionDialog extends DialogFragment {
 
     private int selectedColor = 0xFF2196F3;
 
+    // 标签在管理对话框或其他界面中被修改后刷新网格
+    private final TagRepository.Listener tagListener = repository -> {
+        loadTags();
+        if (tagAdapter != null) {
+            tagAdapter.notifyDataSetChanged();
+        }
+    };
+
     public static TagSelectionDialog newInstance(long currentTagId) {
         TagSelectionDialog dialog = new TagSelectionDialog();
         Bundle args = new Bundle();
@@ -83,6 +90,7 @@ public class TagSelectionDialog extends DialogFragment {
         }
 
         loadTags();
+        TagRepository.getInstance(requireContext()).addListener(tagListener);
 
         MaterialAlertDialogBuilder builder = new MaterialAlertDialogBuilder(requireContext());
         LayoutInflater inflater = requireActivity().getLayoutInflater();
@@ -143,28 +151,8 @@ public class TagSelectionDialog extends DialogFragment {
     private void loadTags() {
         tags.clear();
 
-        Cursor cursor = requireContext().getContentResolver().query(
-                NotePad.Notes.TAGS_CONTENT_URI,
-                new String[]{"_id",
-                        NotePad.Notes.COLUMN_NAME_TAG_NAME,
-                        NotePad.Notes.COLUMN_NAME_TAG_COLOR,
-                        "created_date"},
-                null,
-                null,
-                "created_date ASC"
-        );
-
-        if (cursor != null) {
-            while (cursor.moveToNext()) {
-                Tag tag = new Tag();
-                tag.setId(cursor.getLong(0));
-                tag.setName(cursor.getString(1));
-                tag.setColor(cursor.getInt(2));
-                tag.setCreatedDate(cursor.getLong(3));
-                tags.add(tag);
-            }
-            cursor.close();
-        }
+        // 标签来自共享缓存，按创建时间排列
+        tags.addAll(TagRepository.getInstance(requireContext()).getTags());
 
         Tag noTag = new Tag();
         noTag.setId(0);
@@ -173,6 +161,12 @@ public class TagSelectionDialog extends DialogFragment {
         tags.add(0, noTag);
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        TagRepository.getInstance(requireContext()).removeListener(tagListener);
+    }
+
     private void setupColorPalette() {
         if (colorPalette == null) return;
 
@@ -32,18 +32,28 @@ public class ThemeManager {
             {0xFFFF9800, 0xFFF57C00, 0xFFFFD740}  // 琥珀色主题
     };
 
+    // 缓存的主题索引，-1 表示尚未从偏好设置读取。主题只通过 setThemeIndex 修改，
+    // 因此绘制时取主题颜色不必每次读取 SharedPreferences
+    private static volatile int sThemeIndex = -1;
+
     /**
      * 获取当前主题索引
      */
     public static int getCurrentThemeIndex(Context context) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        return prefs.getInt(PREF_THEME_INDEX, DEFAULT_THEME_INDEX);
+        int index = sThemeIndex;
+        if (index < 0) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            index = prefs.getInt(PREF_THEME_INDEX, DEFAULT_THEME_INDEX);
+            sThemeIndex = index;
+        }
+        return index;
     }
 
     /**
      * 设置主题索引
      */
     public static void setThemeIndex(Context context, int index) {
+        sThemeIndex = index;
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         prefs.edit().putInt(PREF_THEME_INDEX, index).apply();
     }